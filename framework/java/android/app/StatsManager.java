@@ -28,8 +28,11 @@ import android.os.Binder;
 import android.os.IPullAtomCallback;
 import android.os.IPullAtomResultReceiver;
 import android.os.IStatsManagerService;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.StatsConfigDataParcel;
 import android.os.StatsFrameworkInitializer;
+import android.os.SystemClock;
 import android.util.AndroidException;
 import android.util.Log;
 import android.util.StatsEvent;
@@ -38,9 +41,21 @@ import android.util.StatsEventParcel;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * API for statsd clients to send configurations and retrieve data.
@@ -52,11 +67,16 @@ public final class StatsManager {
     private static final String TAG = "StatsManager";
     private static final boolean DEBUG = false;
 
+    // Only serializes the lookup of the service handle. Binder calls are made without holding
+    // any lock, so that a slow call does not stall other StatsManager users in the process.
     private static final Object sLock = new Object();
     private final Context mContext;
 
-    @GuardedBy("sLock")
-    private IStatsManagerService mStatsManagerService;
+    // Written once under sLock, read without locking.
+    private volatile IStatsManagerService mStatsManagerService;
+
+    // Runs the asynchronous operations of this instance in the order they were requested.
+    private final SerialExecutor mAsyncExecutor = new SerialExecutor();
 
     /**
      * Long extra of uid that added the relevant stats config.
@@ -122,6 +142,11 @@ public final class StatsManager {
      **/
     @VisibleForTesting public static final long DEFAULT_TIMEOUT_MILLIS = 2_000L; // 2 seconds.
 
+    /**
+     * @hide
+     **/
+    @VisibleForTesting public static final int DEFAULT_MAX_CONCURRENT_PULLS = 1;
+
     /**
      * Constructor for StatsManagerClient.
      *
@@ -144,23 +169,88 @@ public final class StatsManager {
      */
     @RequiresPermission(allOf = { DUMP, PACKAGE_USAGE_STATS })
     public void addConfig(long configKey, byte[] config) throws StatsUnavailableException {
-        synchronized (sLock) {
-            try {
-                IStatsManagerService service = getIStatsManagerServiceLocked();
-                // can throw IllegalArgumentException
-                service.addConfiguration(configKey, config, mContext.getOpPackageName());
-            } catch (RemoteException e) {
-                Log.e(TAG, "Failed to connect to statsmanager when adding configuration");
-                throw new StatsUnavailableException("could not connect", e);
-            } catch (SecurityException e) {
-                throw new StatsUnavailableException(e.getMessage(), e);
-            } catch (IllegalStateException e) {
-                Log.e(TAG, "Failed to addConfig in statsmanager");
-                throw new StatsUnavailableException(e.getMessage(), e);
-            }
+        try {
+            IStatsManagerService service = getIStatsManagerService();
+            // can throw IllegalArgumentException
+            service.addConfiguration(configKey, config, mContext.getOpPackageName());
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to connect to statsmanager when adding configuration");
+            throw new StatsUnavailableException("could not connect", e);
+        } catch (SecurityException e) {
+            throw new StatsUnavailableException(e.getMessage(), e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to addConfig in statsmanager");
+            throw new StatsUnavailableException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Adds several configurations with a single call to the stats service. Each configuration is
+     * handled as by {@link #addConfig(long, byte[])}, independently of the others.
+     * This call can block on statsd.
+     *
+     * @param configKeys Arbitrary integers that allow clients to track the configurations.
+     * @param configs    Wire-encoded StatsdConfig protos, one per entry of configKeys.
+     * @throws StatsUnavailableException if unsuccessful due to failing to connect to stats service
+     * @throws IllegalArgumentException if configKeys and configs differ in length, or if some
+     *         configs are not wire-encoded StatsdConfig protos. In the latter case, all the other
+     *         configs are added.
+     */
+    @RequiresPermission(allOf = { DUMP, PACKAGE_USAGE_STATS })
+    public void addConfigs(@NonNull long[] configKeys, @NonNull byte[][] configs)
+            throws StatsUnavailableException {
+        if (configKeys.length != configs.length) {
+            throw new IllegalArgumentException("Got " + configKeys.length + " config keys for "
+                    + configs.length + " configs");
+        }
+        StatsConfigDataParcel[] parcels = new StatsConfigDataParcel[configKeys.length];
+        for (int i = 0; i < configKeys.length; i++) {
+            parcels[i] = new StatsConfigDataParcel();
+            parcels[i].configKey = configKeys[i];
+            parcels[i].data = configs[i];
+        }
+        long[] failedKeys;
+        try {
+            IStatsManagerService service = getIStatsManagerService();
+            failedKeys = service.addConfigurations(parcels, mContext.getOpPackageName());
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to connect to statsmanager when adding configurations");
+            throw new StatsUnavailableException("could not connect", e);
+        } catch (SecurityException e) {
+            throw new StatsUnavailableException(e.getMessage(), e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to addConfigs in statsmanager");
+            throw new StatsUnavailableException(e.getMessage(), e);
+        }
+        if (failedKeys != null && failedKeys.length > 0) {
+            throw new IllegalArgumentException(
+                    "Could not parse configs " + Arrays.toString(failedKeys));
         }
     }
 
+    /**
+     * Same as {@link #addConfig(long, byte[])}, but returns immediately. The configuration is
+     * added on a background thread, and the outcome is reported to callback on executor.
+     * Asynchronous operations of a StatsManager instance run one at a time, in the order they
+     * were requested. Failures are reported with a {@link StatsUnavailableException} or an
+     * {@link IllegalArgumentException} if config is not a wire-encoded StatsdConfig proto.
+     *
+     * @param configKey An arbitrary integer that allows clients to track the configuration.
+     * @param config    Wire-encoded StatsdConfig proto that specifies metrics (and all
+     *                  dependencies eg, conditions and matchers).
+     * @param executor  The executor on which to run the callback.
+     * @param callback  The callback notified once the configuration is added, with a null result.
+     */
+    @RequiresPermission(allOf = { DUMP, PACKAGE_USAGE_STATS })
+    public void addConfigAsync(long configKey, @NonNull byte[] config,
+            @NonNull @CallbackExecutor Executor executor,
+            @NonNull StatsOperationCallback<Void> callback) {
+        runAsync(executor, callback, () -> {
+            addConfig(configKey, config);
+            return null;
+        });
+    }
+
     // TODO: Temporary for backwards compatibility. Remove.
     /**
      * @deprecated Use {@link #addConfig(long, byte[])}
@@ -186,22 +276,63 @@ public final class StatsManager {
      */
     @RequiresPermission(allOf = { DUMP, PACKAGE_USAGE_STATS })
     public void removeConfig(long configKey) throws StatsUnavailableException {
-        synchronized (sLock) {
-            try {
-                IStatsManagerService service = getIStatsManagerServiceLocked();
-                service.removeConfiguration(configKey, mContext.getOpPackageName());
-            } catch (RemoteException e) {
-                Log.e(TAG, "Failed to connect to statsmanager when removing configuration");
-                throw new StatsUnavailableException("could not connect", e);
-            } catch (SecurityException e) {
-                throw new StatsUnavailableException(e.getMessage(), e);
-            } catch (IllegalStateException e) {
-                Log.e(TAG, "Failed to removeConfig in statsmanager");
-                throw new StatsUnavailableException(e.getMessage(), e);
-            }
+        try {
+            IStatsManagerService service = getIStatsManagerService();
+            service.removeConfiguration(configKey, mContext.getOpPackageName());
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to connect to statsmanager when removing configuration");
+            throw new StatsUnavailableException("could not connect", e);
+        } catch (SecurityException e) {
+            throw new StatsUnavailableException(e.getMessage(), e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to removeConfig in statsmanager");
+            throw new StatsUnavailableException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Removes several configurations from logging with a single call to the stats service.
+     *
+     * This call can block on statsd.
+     *
+     * @param configKeys Configuration keys to remove.
+     * @throws StatsUnavailableException if unsuccessful due to failing to connect to stats service
+     */
+    @RequiresPermission(allOf = { DUMP, PACKAGE_USAGE_STATS })
+    public void removeConfigs(@NonNull long[] configKeys) throws StatsUnavailableException {
+        try {
+            IStatsManagerService service = getIStatsManagerService();
+            service.removeConfigurations(configKeys, mContext.getOpPackageName());
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to connect to statsmanager when removing configurations");
+            throw new StatsUnavailableException("could not connect", e);
+        } catch (SecurityException e) {
+            throw new StatsUnavailableException(e.getMessage(), e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to removeConfigs in statsmanager");
+            throw new StatsUnavailableException(e.getMessage(), e);
         }
     }
 
+    /**
+     * Same as {@link #removeConfig(long)}, but returns immediately. The configuration is removed
+     * on a background thread, and the outcome is reported to callback on executor. Asynchronous
+     * operations of a StatsManager instance run one at a time, in the order they were requested.
+     *
+     * @param configKey Configuration key to remove.
+     * @param executor  The executor on which to run the callback.
+     * @param callback  The callback notified once the configuration is removed, with a null
+     *                  result.
+     */
+    @RequiresPermission(allOf = { DUMP, PACKAGE_USAGE_STATS })
+    public void removeConfigAsync(long configKey, @NonNull @CallbackExecutor Executor executor,
+            @NonNull StatsOperationCallback<Void> callback) {
+        runAsync(executor, callback, () -> {
+            removeConfig(configKey);
+            return null;
+        });
+    }
+
     // TODO: Temporary for backwards compatibility. Remove.
     /**
      * @deprecated Use {@link #removeConfig(long)}
@@ -251,23 +382,21 @@ public final class StatsManager {
     public void setBroadcastSubscriber(
             PendingIntent pendingIntent, long configKey, long subscriberId)
             throws StatsUnavailableException {
-        synchronized (sLock) {
-            try {
-                IStatsManagerService service = getIStatsManagerServiceLocked();
-                if (pendingIntent != null) {
-                    service.setBroadcastSubscriber(configKey, subscriberId, pendingIntent,
-                            mContext.getOpPackageName());
-                } else {
-                    service.unsetBroadcastSubscriber(configKey, subscriberId,
-                            mContext.getOpPackageName());
-                }
-            } catch (RemoteException e) {
-                Log.e(TAG, "Failed to connect to statsmanager when adding broadcast subscriber",
-                        e);
-                throw new StatsUnavailableException("could not connect", e);
-            } catch (SecurityException e) {
-                throw new StatsUnavailableException(e.getMessage(), e);
+        try {
+            IStatsManagerService service = getIStatsManagerService();
+            if (pendingIntent != null) {
+                service.setBroadcastSubscriber(configKey, subscriberId, pendingIntent,
+                        mContext.getOpPackageName());
+            } else {
+                service.unsetBroadcastSubscriber(configKey, subscriberId,
+                        mContext.getOpPackageName());
             }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to connect to statsmanager when adding broadcast subscriber",
+                    e);
+            throw new StatsUnavailableException("could not connect", e);
+        } catch (SecurityException e) {
+            throw new StatsUnavailableException(e.getMessage(), e);
         }
     }
 
@@ -305,22 +434,20 @@ public final class StatsManager {
     @RequiresPermission(allOf = { DUMP, PACKAGE_USAGE_STATS })
     public void setFetchReportsOperation(PendingIntent pendingIntent, long configKey)
             throws StatsUnavailableException {
-        synchronized (sLock) {
-            try {
-                IStatsManagerService service = getIStatsManagerServiceLocked();
-                if (pendingIntent == null) {
-                    service.removeDataFetchOperation(configKey, mContext.getOpPackageName());
-                } else {
-                    service.setDataFetchOperation(configKey, pendingIntent,
-                            mContext.getOpPackageName());
-                }
-
-            } catch (RemoteException e) {
-                Log.e(TAG, "Failed to connect to statsmanager when registering data listener.");
-                throw new StatsUnavailableException("could not connect", e);
-            } catch (SecurityException e) {
-                throw new StatsUnavailableException(e.getMessage(), e);
+        try {
+            IStatsManagerService service = getIStatsManagerService();
+            if (pendingIntent == null) {
+                service.removeDataFetchOperation(configKey, mContext.getOpPackageName());
+            } else {
+                service.setDataFetchOperation(configKey, pendingIntent,
+                        mContext.getOpPackageName());
             }
+
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to connect to statsmanager when registering data listener.");
+            throw new StatsUnavailableException("could not connect", e);
+        } catch (SecurityException e) {
+            throw new StatsUnavailableException(e.getMessage(), e);
         }
     }
 
@@ -342,24 +469,22 @@ public final class StatsManager {
     @RequiresPermission(allOf = { DUMP, PACKAGE_USAGE_STATS })
     public @NonNull long[] setActiveConfigsChangedOperation(@Nullable PendingIntent pendingIntent)
             throws StatsUnavailableException {
-        synchronized (sLock) {
-            try {
-                IStatsManagerService service = getIStatsManagerServiceLocked();
-                if (pendingIntent == null) {
-                    service.removeActiveConfigsChangedOperation(mContext.getOpPackageName());
-                    return new long[0];
-                } else {
-                    return service.setActiveConfigsChangedOperation(pendingIntent,
-                            mContext.getOpPackageName());
-                }
-
-            } catch (RemoteException e) {
-                Log.e(TAG, "Failed to connect to statsmanager "
-                        + "when registering active configs listener.");
-                throw new StatsUnavailableException("could not connect", e);
-            } catch (SecurityException e) {
-                throw new StatsUnavailableException(e.getMessage(), e);
+        try {
+            IStatsManagerService service = getIStatsManagerService();
+            if (pendingIntent == null) {
+                service.removeActiveConfigsChangedOperation(mContext.getOpPackageName());
+                return new long[0];
+            } else {
+                return service.setActiveConfigsChangedOperation(pendingIntent,
+                        mContext.getOpPackageName());
             }
+
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to connect to statsmanager "
+                    + "when registering active configs listener.");
+            throw new StatsUnavailableException("could not connect", e);
+        } catch (SecurityException e) {
+            throw new StatsUnavailableException(e.getMessage(), e);
         }
     }
 
@@ -389,20 +514,109 @@ public final class StatsManager {
      */
     @RequiresPermission(allOf = { DUMP, PACKAGE_USAGE_STATS })
     public byte[] getReports(long configKey) throws StatsUnavailableException {
-        synchronized (sLock) {
-            try {
-                IStatsManagerService service = getIStatsManagerServiceLocked();
-                return service.getData(configKey, mContext.getOpPackageName());
-            } catch (RemoteException e) {
-                Log.e(TAG, "Failed to connect to statsmanager when getting data");
-                throw new StatsUnavailableException("could not connect", e);
-            } catch (SecurityException e) {
-                throw new StatsUnavailableException(e.getMessage(), e);
-            } catch (IllegalStateException e) {
-                Log.e(TAG, "Failed to getReports in statsmanager");
-                throw new StatsUnavailableException(e.getMessage(), e);
+        try {
+            IStatsManagerService service = getIStatsManagerService();
+            return service.getData(configKey, mContext.getOpPackageName());
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to connect to statsmanager when getting data");
+            throw new StatsUnavailableException("could not connect", e);
+        } catch (SecurityException e) {
+            throw new StatsUnavailableException(e.getMessage(), e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to getReports in statsmanager");
+            throw new StatsUnavailableException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Request the data collected for the given configKey, written to the given file descriptor
+     * instead of being returned in a single array. This avoids holding the whole report in one
+     * allocation on each side and the binder transaction size limit for large reports.
+     * This getter is destructive - it also clears the retrieved metrics from statsd's memory.
+     * This call returns once the report is taken from statsd's memory. The report is then written
+     * to fd in the background, and statsd closes its copy of fd once done. If fd is the write end
+     * of a pipe, the read end must be drained within 10 seconds, and reaches end of file once the
+     * caller closed fd too. A report that could not be written in time is lost.
+     *
+     * @param configKey Configuration key to retrieve data from.
+     * @param fd File descriptor the serialized ConfigMetricsReportList proto is written to. The
+     *           caller keeps ownership of fd.
+     * @throws StatsUnavailableException if unsuccessful due to failing to connect to stats service,
+     *                                   or if too many reports are still being written
+     */
+    @RequiresPermission(allOf = { DUMP, PACKAGE_USAGE_STATS })
+    public void getReports(long configKey, @NonNull ParcelFileDescriptor fd)
+            throws StatsUnavailableException {
+        try {
+            IStatsManagerService service = getIStatsManagerService();
+            service.getDataFd(configKey, fd, mContext.getOpPackageName());
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to connect to statsmanager when getting data");
+            throw new StatsUnavailableException("could not connect", e);
+        } catch (SecurityException e) {
+            throw new StatsUnavailableException(e.getMessage(), e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to getReports in statsmanager");
+            throw new StatsUnavailableException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Request the data collected for several configKeys with a single call to the stats service.
+     * This getter is destructive - it also clears the retrieved metrics from statsd's memory.
+     * This call can block on statsd.
+     *
+     * @param configKeys Configuration keys to retrieve data from.
+     * @return Serialized ConfigMetricsReportList protos, one per entry of configKeys.
+     * @throws StatsUnavailableException if unsuccessful due to failing to connect to stats service
+     */
+    @RequiresPermission(allOf = { DUMP, PACKAGE_USAGE_STATS })
+    public @NonNull byte[][] getReports(@NonNull long[] configKeys)
+            throws StatsUnavailableException {
+        byte[][] reports = new byte[configKeys.length][];
+        try {
+            IStatsManagerService service = getIStatsManagerService();
+            // The stats service may only return the first reports, to fit in a binder
+            // transaction. The others are fetched by the next calls.
+            int numReports = 0;
+            while (numReports < configKeys.length) {
+                long[] remainingKeys = numReports == 0 ? configKeys
+                        : Arrays.copyOfRange(configKeys, numReports, configKeys.length);
+                StatsConfigDataParcel[] parcels =
+                        service.getDataForConfigs(remainingKeys, mContext.getOpPackageName());
+                if (parcels.length == 0) {
+                    throw new IllegalStateException("No reports returned by the stats service");
+                }
+                for (int i = 0; i < parcels.length && numReports < configKeys.length; i++) {
+                    reports[numReports++] = parcels[i].data;
+                }
             }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to connect to statsmanager when getting data");
+            throw new StatsUnavailableException("could not connect", e);
+        } catch (SecurityException e) {
+            throw new StatsUnavailableException(e.getMessage(), e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to getReports in statsmanager");
+            throw new StatsUnavailableException(e.getMessage(), e);
         }
+        return reports;
+    }
+
+    /**
+     * Same as {@link #getReports(long)}, but returns immediately. The data is retrieved on a
+     * background thread, and reported to callback on executor. Asynchronous operations of a
+     * StatsManager instance run one at a time, in the order they were requested.
+     * This getter is destructive - it also clears the retrieved metrics from statsd's memory.
+     *
+     * @param configKey Configuration key to retrieve data from.
+     * @param executor  The executor on which to run the callback.
+     * @param callback  The callback receiving the serialized ConfigMetricsReportList proto.
+     */
+    @RequiresPermission(allOf = { DUMP, PACKAGE_USAGE_STATS })
+    public void getReportsAsync(long configKey, @NonNull @CallbackExecutor Executor executor,
+            @NonNull StatsOperationCallback<byte[]> callback) {
+        runAsync(executor, callback, () -> getReports(configKey));
     }
 
     // TODO: Temporary for backwards compatibility. Remove.
@@ -430,19 +644,17 @@ public final class StatsManager {
      */
     @RequiresPermission(allOf = { DUMP, PACKAGE_USAGE_STATS })
     public byte[] getStatsMetadata() throws StatsUnavailableException {
-        synchronized (sLock) {
-            try {
-                IStatsManagerService service = getIStatsManagerServiceLocked();
-                return service.getMetadata(mContext.getOpPackageName());
-            } catch (RemoteException e) {
-                Log.e(TAG, "Failed to connect to statsmanager when getting metadata");
-                throw new StatsUnavailableException("could not connect", e);
-            } catch (SecurityException e) {
-                throw new StatsUnavailableException(e.getMessage(), e);
-            } catch (IllegalStateException e) {
-                Log.e(TAG, "Failed to getStatsMetadata in statsmanager");
-                throw new StatsUnavailableException(e.getMessage(), e);
-            }
+        try {
+            IStatsManagerService service = getIStatsManagerService();
+            return service.getMetadata(mContext.getOpPackageName());
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to connect to statsmanager when getting metadata");
+            throw new StatsUnavailableException("could not connect", e);
+        } catch (SecurityException e) {
+            throw new StatsUnavailableException(e.getMessage(), e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to getStatsMetadata in statsmanager");
+            throw new StatsUnavailableException(e.getMessage(), e);
         }
     }
 
@@ -470,23 +682,21 @@ public final class StatsManager {
     @RequiresPermission(allOf = {DUMP, PACKAGE_USAGE_STATS})
     public long[] getRegisteredExperimentIds()
             throws StatsUnavailableException {
-        synchronized (sLock) {
-            try {
-                IStatsManagerService service = getIStatsManagerServiceLocked();
-                return service.getRegisteredExperimentIds();
-            } catch (RemoteException e) {
-                if (DEBUG) {
-                    Log.d(TAG,
-                            "Failed to connect to StatsManagerService when getting "
-                                    + "registered experiment IDs");
-                }
-                throw new StatsUnavailableException("could not connect", e);
-            } catch (SecurityException e) {
-              throw new StatsUnavailableException(e.getMessage(), e);
-            } catch (IllegalStateException e) {
-              Log.e(TAG, "Failed to getRegisteredExperimentIds in statsmanager");
-              throw new StatsUnavailableException(e.getMessage(), e);
+        try {
+            IStatsManagerService service = getIStatsManagerService();
+            return service.getRegisteredExperimentIds();
+        } catch (RemoteException e) {
+            if (DEBUG) {
+                Log.d(TAG,
+                        "Failed to connect to StatsManagerService when getting "
+                                + "registered experiment IDs");
             }
+            throw new StatsUnavailableException("could not connect", e);
+        } catch (SecurityException e) {
+          throw new StatsUnavailableException(e.getMessage(), e);
+        } catch (IllegalStateException e) {
+          Log.e(TAG, "Failed to getRegisteredExperimentIds in statsmanager");
+          throw new StatsUnavailableException(e.getMessage(), e);
         }
     }
 
@@ -506,27 +716,88 @@ public final class StatsManager {
     public void setPullAtomCallback(int atomTag, @Nullable PullAtomMetadata metadata,
             @NonNull @CallbackExecutor Executor executor,
             @NonNull StatsPullAtomCallback callback) {
+        setPullAtomCallbackInternal(atomTag, metadata, executor, callback);
+    }
+
+    private void setPullAtomCallbackInternal(int atomTag, @Nullable PullAtomMetadata metadata,
+            @Nullable Executor executor, @NonNull StatsPullAtomCallback callback) {
         long coolDownMillis =
                 metadata == null ? DEFAULT_COOL_DOWN_MILLIS : metadata.mCoolDownMillis;
         long timeoutMillis = metadata == null ? DEFAULT_TIMEOUT_MILLIS : metadata.mTimeoutMillis;
+        int maxConcurrentPulls = metadata == null
+                ? DEFAULT_MAX_CONCURRENT_PULLS : metadata.mMaxConcurrentPulls;
         int[] additiveFields = metadata == null ? new int[0] : metadata.mAdditiveFields;
         if (additiveFields == null) {
             additiveFields = new int[0];
         }
+        // Cached results would be sent without the cursors of incremental pulls.
+        boolean resultCacheEnabled = metadata != null && metadata.mResultCacheEnabled
+                && !(callback instanceof StatsIncrementalPullAtomCallback);
+        if (callback instanceof StatsIncrementalPullAtomCallback && additiveFields.length == 0) {
+            throw new IllegalArgumentException(
+                    "Incremental pull callbacks require additive fields, atom " + atomTag);
+        }
 
-        synchronized (sLock) {
-            try {
-                IStatsManagerService service = getIStatsManagerServiceLocked();
-                PullAtomCallbackInternal rec =
-                    new PullAtomCallbackInternal(atomTag, callback, executor);
-                service.registerPullAtomCallback(
-                        atomTag, coolDownMillis, timeoutMillis, additiveFields, rec);
-            } catch (RemoteException e) {
-                throw new RuntimeException("Unable to register pull callback", e);
-            }
+        try {
+            IStatsManagerService service = getIStatsManagerService();
+            PullAtomCallbackInternal rec =
+                new PullAtomCallbackInternal(atomTag, callback, executor, timeoutMillis,
+                        maxConcurrentPulls, resultCacheEnabled ? coolDownMillis : 0);
+            service.registerPullAtomCallback(
+                    atomTag, coolDownMillis, timeoutMillis, additiveFields, rec);
+        } catch (RemoteException e) {
+            throw new RuntimeException("Unable to register pull callback", e);
         }
     }
 
+    /**
+     * Sets a callback for an atom when that atom is to be pulled, like
+     * {@link #setPullAtomCallback(int, PullAtomMetadata, Executor, StatsPullAtomCallback)}, but
+     * runs the callback on a thread pool shared by the pullers of this process.
+     *
+     * Pulls of the same atom run up to the maximum concurrent pulls of the metadata at a time,
+     * so that a slow callback does not hold up the pulls of other atoms. A pull that could not
+     * start within half the timeout of the metadata is answered with {@link #PULL_SKIP} without
+     * invoking the callback, leaving statsd time to use the answer.
+     * This method should not be called by third-party apps.
+     *
+     * @param atomTag           The tag of the atom for this puller callback.
+     * @param metadata          Optional metadata specifying the timeout, cool down time, and
+     *                          additive fields for mapping isolated to host uids.
+     * @param callback          The callback to be invoked when the stats service pulls the atom.
+     *
+     */
+    @RequiresPermission(android.Manifest.permission.REGISTER_STATS_PULL_ATOM)
+    public void setPullAtomCallback(int atomTag, @Nullable PullAtomMetadata metadata,
+            @NonNull StatsPullAtomCallback callback) {
+        setPullAtomCallbackInternal(atomTag, metadata, /*executor=*/ null, callback);
+    }
+
+    /**
+     * Returns the histogram of the latencies of the pulls of the atom run by the pull executor
+     * used by {@link #setPullAtomCallback(int, PullAtomMetadata, StatsPullAtomCallback)}, from
+     * the pull request to its completion. Bucket i counts latencies below 2^i milliseconds, and
+     * the last bucket the longer ones.
+     *
+     * @hide
+     */
+    @VisibleForTesting
+    @NonNull
+    public static long[] getPullLatencyHistogram(int atomTag) {
+        return StatsPullExecutor.getInstance().getLatencyHistogram(atomTag);
+    }
+
+    /**
+     * Returns the number of pulls of the atom skipped by the pull executor because they could not
+     * start before their timeout.
+     *
+     * @hide
+     */
+    @VisibleForTesting
+    public static long getSkippedPullCount(int atomTag) {
+        return StatsPullExecutor.getInstance().getSkippedPullCount(atomTag);
+    }
+
     /**
      * Clears a callback for an atom when that atom is to be pulled. Note that any ongoing
      * pulls will still occur. This method should not be called by third-party apps.
@@ -536,45 +807,112 @@ public final class StatsManager {
      */
     @RequiresPermission(android.Manifest.permission.REGISTER_STATS_PULL_ATOM)
     public void clearPullAtomCallback(int atomTag) {
-        synchronized (sLock) {
-            try {
-                IStatsManagerService service = getIStatsManagerServiceLocked();
-                service.unregisterPullAtomCallback(atomTag);
-            } catch (RemoteException e) {
-                throw new RuntimeException("Unable to unregister pull atom callback");
-            }
+        try {
+            IStatsManagerService service = getIStatsManagerService();
+            service.unregisterPullAtomCallback(atomTag);
+        } catch (RemoteException e) {
+            throw new RuntimeException("Unable to unregister pull atom callback");
         }
     }
 
     private static class PullAtomCallbackInternal extends IPullAtomCallback.Stub {
+        // Results larger than this are streamed through a pipe, as a binder transaction has a
+        // 1 MB buffer shared by all in-flight transactions of the process.
+        private static final int MAX_PARCELED_RESULT_SIZE = 256 * 1024;
+
+        private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+
         public final int mAtomId;
         public final StatsPullAtomCallback mCallback;
+        // Same as mCallback if it supports incremental pulls, null otherwise.
+        @Nullable
+        public final StatsIncrementalPullAtomCallback mIncrementalCallback;
+        // Null to use the StatsPullExecutor.
+        @Nullable
         public final Executor mExecutor;
+        public final long mTimeoutMillis;
+        // Only used with the StatsPullExecutor.
+        public final int mMaxConcurrentPulls;
+        // How long a pull result is replayed to statsd instead of invoking the callback again.
+        // 0 if results are not cached.
+        public final long mResultCacheMillis;
+
+        // Size of the previous pull result, used to size the Arena of the next pull.
+        private volatile int mLastPullSize = 0;
+
+        private static final class CachedResult {
+            final byte[] mPayload;
+            final int[] mEventSizes;
+            final long mElapsedRealtimeMillis;
 
-        PullAtomCallbackInternal(int atomId, StatsPullAtomCallback callback, Executor executor) {
+            CachedResult(byte[] payload, int[] eventSizes, long elapsedRealtimeMillis) {
+                mPayload = payload;
+                mEventSizes = eventSizes;
+                mElapsedRealtimeMillis = elapsedRealtimeMillis;
+            }
+        }
+
+        // Last successful pull result, if result caching is enabled.
+        @Nullable
+        private volatile CachedResult mCachedResult = null;
+
+        PullAtomCallbackInternal(int atomId, StatsPullAtomCallback callback,
+                @Nullable Executor executor, long timeoutMillis, int maxConcurrentPulls,
+                long resultCacheMillis) {
             mAtomId = atomId;
             mCallback = callback;
+            mIncrementalCallback = callback instanceof StatsIncrementalPullAtomCallback
+                    ? (StatsIncrementalPullAtomCallback) callback : null;
             mExecutor = executor;
+            mTimeoutMillis = timeoutMillis;
+            mMaxConcurrentPulls = maxConcurrentPulls;
+            mResultCacheMillis = resultCacheMillis;
         }
 
         @Override
         public void onPullAtom(int atomTag, IPullAtomResultReceiver resultReceiver) {
+            if (mIncrementalCallback != null) {
+                onPullAtomIncremental(atomTag, /*cursor=*/ 0, resultReceiver);
+                return;
+            }
             final long token = Binder.clearCallingIdentity();
             try {
-                mExecutor.execute(() -> {
+                Runnable pull = () -> {
+                    if (mResultCacheMillis > 0 && replayCachedResult(resultReceiver, atomTag)) {
+                        return;
+                    }
                     List<StatsEvent> data = new ArrayList<>();
-                    int successInt = mCallback.onPullAtom(atomTag, data);
+                    // Events built by the callback on this thread are stored in the arena, so
+                    // that the whole result can be sent without a byte array per event.
+                    StatsEvent.Arena arena = new StatsEvent.Arena(mLastPullSize);
+                    int successInt;
+                    arena.attach();
+                    try {
+                        successInt = mCallback.onPullAtom(atomTag, data);
+                    } finally {
+                        arena.detach();
+                    }
+                    mLastPullSize = arena.getSize();
                     boolean success = successInt == PULL_SUCCESS;
-                    StatsEventParcel[] parcels = new StatsEventParcel[data.size()];
-                    for (int i = 0; i < data.size(); i++) {
-                        parcels[i] = new StatsEventParcel();
-                        parcels[i].buffer = data.get(i).getBytes();
+                    int[] eventSizes = arena.getEventSizes(data);
+                    final int resultSize = getResultSize(data, eventSizes, arena);
+                    if (mResultCacheMillis > 0 && success
+                            && resultSize <= MAX_PARCELED_RESULT_SIZE) {
+                        cacheResult(data, eventSizes, arena, resultSize);
                     }
-                    try {
-                        resultReceiver.pullFinished(atomTag, success, parcels);
-                    } catch (RemoteException e) {
-                        Log.w(TAG, "StatsPullResultReceiver failed for tag " + mAtomId
-                                + " due to TransactionTooLarge. Calling pullFinish with no data");
+                    if (resultSize <= MAX_PARCELED_RESULT_SIZE) {
+                        try {
+                            sendParceledResult(resultReceiver, atomTag, success, data, eventSizes,
+                                    arena);
+                            return;
+                        } catch (RemoteException e) {
+                            Log.w(TAG, "StatsPullResultReceiver failed for tag " + mAtomId
+                                    + " due to TransactionTooLarge. Streaming the result instead");
+                        }
+                    }
+                    if (!streamResult(resultReceiver, atomTag, success, data, eventSizes, arena)) {
+                        Log.w(TAG, "Streaming the pull result failed for tag " + mAtomId
+                                + ". Calling pullFinish with no data");
                         StatsEventParcel[] emptyData = new StatsEventParcel[0];
                         try {
                             resultReceiver.pullFinished(atomTag, /*success=*/false, emptyData);
@@ -583,11 +921,244 @@ public final class StatsManager {
                                     + " with empty payload");
                         }
                     }
-                });
+                };
+                executePull(atomTag, pull, resultReceiver);
+            } finally {
+                Binder.restoreCallingIdentity(token);
+            }
+        }
+
+        @Override
+        public void onPullAtomIncremental(int atomTag, long cursor,
+                IPullAtomResultReceiver resultReceiver) {
+            if (mIncrementalCallback == null) {
+                // statsd only asks for incremental pulls after an incremental result.
+                onPullAtom(atomTag, resultReceiver);
+                return;
+            }
+            final long token = Binder.clearCallingIdentity();
+            try {
+                Runnable pull = () -> pullIncremental(atomTag, cursor, resultReceiver);
+                executePull(atomTag, pull, resultReceiver);
             } finally {
                 Binder.restoreCallingIdentity(token);
             }
         }
+
+        private void pullIncremental(int atomTag, long cursor,
+                IPullAtomResultReceiver resultReceiver) {
+            // Taken before invoking the callback, so that the dimensions that change while it
+            // runs are returned again by the next pull.
+            final long resultCursor = SystemClock.elapsedRealtimeNanos();
+            List<StatsEvent> data = new ArrayList<>();
+            StatsEvent.Arena arena = new StatsEvent.Arena(mLastPullSize);
+            int successInt;
+            arena.attach();
+            try {
+                successInt = mIncrementalCallback.onPullAtom(atomTag, cursor, data);
+            } finally {
+                arena.detach();
+            }
+            mLastPullSize = arena.getSize();
+            boolean success = successInt == PULL_SUCCESS;
+            int[] eventSizes = arena.getEventSizes(data);
+            final int resultSize = getResultSize(data, eventSizes, arena);
+            if (resultSize <= MAX_PARCELED_RESULT_SIZE) {
+                byte[] payload;
+                if (eventSizes != null) {
+                    payload = arena.getPayload();
+                } else {
+                    eventSizes = getEventSizes(data);
+                    payload = copyPayload(data, eventSizes, resultSize);
+                }
+                try {
+                    resultReceiver.pullFinishedIncremental(atomTag, success, cursor, resultCursor,
+                            payload, eventSizes);
+                    return;
+                } catch (RemoteException e) {
+                    Log.w(TAG, "StatsPullResultReceiver failed for tag " + mAtomId
+                            + " when sending the incremental result");
+                }
+            }
+            // The changed dimensions alone cannot be streamed, as streamed results replace the
+            // previous result. Failing the pull makes statsd ask for every dimension next time.
+            if (cursor != 0
+                    || !streamResult(resultReceiver, atomTag, success, data, eventSizes, arena)) {
+                Log.w(TAG, "Incremental pull result of tag " + mAtomId
+                        + " could not be sent. Calling pullFinish with no data");
+                try {
+                    resultReceiver.pullFinished(atomTag, /*success=*/false,
+                            new StatsEventParcel[0]);
+                } catch (RemoteException nestedException) {
+                    Log.w(TAG, "StatsPullResultReceiver failed for tag " + mAtomId
+                            + " with empty payload");
+                }
+            }
+        }
+
+        /**
+         * Sends the cached result to statsd if it is still within the cool down.
+         *
+         * @return false if the callback has to be invoked instead.
+         */
+        private boolean replayCachedResult(IPullAtomResultReceiver resultReceiver, int atomTag) {
+            final CachedResult cachedResult = mCachedResult;
+            if (cachedResult == null || SystemClock.elapsedRealtime()
+                    - cachedResult.mElapsedRealtimeMillis >= mResultCacheMillis) {
+                return false;
+            }
+            try {
+                resultReceiver.pullFinishedWithSharedBuffer(atomTag, /*success=*/true,
+                        cachedResult.mPayload, cachedResult.mEventSizes);
+                return true;
+            } catch (RemoteException e) {
+                Log.w(TAG, "StatsPullResultReceiver failed for tag " + mAtomId
+                        + " when replaying the cached result");
+                return false;
+            }
+        }
+
+        private void cacheResult(List<StatsEvent> data, @Nullable int[] eventSizes,
+                StatsEvent.Arena arena, int resultSize) {
+            byte[] payload;
+            if (eventSizes != null) {
+                payload = arena.getPayload();
+            } else {
+                eventSizes = getEventSizes(data);
+                payload = copyPayload(data, eventSizes, resultSize);
+            }
+            mCachedResult = new CachedResult(payload, eventSizes, SystemClock.elapsedRealtime());
+        }
+
+        private static int[] getEventSizes(List<StatsEvent> data) {
+            int[] eventSizes = new int[data.size()];
+            for (int i = 0; i < data.size(); i++) {
+                eventSizes[i] = data.get(i).getNumBytes();
+            }
+            return eventSizes;
+        }
+
+        /**
+         * Copies the events back to back in a new buffer, for events not built in an arena.
+         */
+        private static byte[] copyPayload(List<StatsEvent> data, int[] eventSizes,
+                int resultSize) {
+            byte[] payload = new byte[resultSize];
+            int offset = 0;
+            for (int i = 0; i < data.size(); i++) {
+                System.arraycopy(data.get(i).getBytes(), 0, payload, offset, eventSizes[i]);
+                offset += eventSizes[i];
+            }
+            return payload;
+        }
+
+        private void executePull(int atomTag, Runnable pull,
+                IPullAtomResultReceiver resultReceiver) {
+            if (mExecutor != null) {
+                mExecutor.execute(pull);
+                return;
+            }
+            // Half the timeout is left for the callback, or for statsd to get the failure.
+            StatsPullExecutor.getInstance().execute(atomTag, mMaxConcurrentPulls,
+                    mTimeoutMillis / 2, pull, () -> failPull(resultReceiver, atomTag));
+        }
+
+        private void failPull(IPullAtomResultReceiver resultReceiver, int atomTag) {
+            try {
+                resultReceiver.pullFinished(atomTag, /*success=*/false, new StatsEventParcel[0]);
+            } catch (RemoteException e) {
+                Log.w(TAG, "StatsPullResultReceiver failed for tag " + mAtomId
+                        + " when failing the pull");
+            }
+        }
+
+        private static int getResultSize(List<StatsEvent> data, @Nullable int[] eventSizes,
+                StatsEvent.Arena arena) {
+            if (eventSizes != null) {
+                return arena.getSize();
+            }
+            int size = 0;
+            for (int i = 0; i < data.size(); i++) {
+                size += data.get(i).getNumBytes();
+            }
+            return size;
+        }
+
+        private static void sendParceledResult(IPullAtomResultReceiver resultReceiver,
+                int atomTag, boolean success, List<StatsEvent> data, @Nullable int[] eventSizes,
+                StatsEvent.Arena arena) throws RemoteException {
+            if (eventSizes != null) {
+                resultReceiver.pullFinishedWithSharedBuffer(
+                        atomTag, success, arena.getPayload(), eventSizes);
+            } else {
+                StatsEventParcel[] parcels = new StatsEventParcel[data.size()];
+                for (int i = 0; i < data.size(); i++) {
+                    parcels[i] = new StatsEventParcel();
+                    parcels[i].buffer = data.get(i).getBytes();
+                }
+                resultReceiver.pullFinished(atomTag, success, parcels);
+            }
+        }
+
+        /**
+         * Streams the pull result to statsd through a pipe, in the format documented in
+         * IPullAtomResultReceiver#pullFinishedWithFileDescriptor.
+         *
+         * @return false if the pipe could not be handed to statsd. Failures while writing to the
+         *         pipe are detected by statsd as a truncated stream.
+         */
+        private static boolean streamResult(IPullAtomResultReceiver resultReceiver, int atomTag,
+                boolean success, List<StatsEvent> data, @Nullable int[] eventSizes,
+                StatsEvent.Arena arena) {
+            ParcelFileDescriptor[] fds;
+            try {
+                fds = ParcelFileDescriptor.createPipe();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to create a pipe for the pull result of tag " + atomTag, e);
+                return false;
+            }
+
+            try {
+                resultReceiver.pullFinishedWithFileDescriptor(atomTag, success, fds[0]);
+            } catch (RemoteException e) {
+                closePipeEnd(fds[1]);
+                return false;
+            } finally {
+                closePipeEnd(fds[0]);
+            }
+
+            // statsd reads the pipe while it is written, so the result is never held in full by
+            // a binder transaction.
+            try (OutputStream out = new BufferedOutputStream(
+                    new ParcelFileDescriptor.AutoCloseOutputStream(fds[1]), PIPE_BUFFER_SIZE)) {
+                ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * (data.size() + 1))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(data.size());
+                for (int i = 0; i < data.size(); i++) {
+                    header.putInt(data.get(i).getNumBytes());
+                }
+                out.write(header.array());
+                if (eventSizes != null) {
+                    arena.writePayload(out);
+                } else {
+                    for (int i = 0; i < data.size(); i++) {
+                        StatsEvent event = data.get(i);
+                        out.write(event.getBytes(), 0, event.getNumBytes());
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to stream the pull result of tag " + atomTag, e);
+            }
+            return true;
+        }
+
+        private static void closePipeEnd(ParcelFileDescriptor fd) {
+            try {
+                fd.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close a pipe end of a pull result.", e);
+            }
+        }
     }
 
     /**
@@ -599,12 +1170,17 @@ public final class StatsManager {
         private final long mCoolDownMillis;
         private final long mTimeoutMillis;
         private final int[] mAdditiveFields;
+        private final boolean mResultCacheEnabled;
+        private final int mMaxConcurrentPulls;
 
         // Private Constructor for builder
-        private PullAtomMetadata(long coolDownMillis, long timeoutMillis, int[] additiveFields) {
+        private PullAtomMetadata(long coolDownMillis, long timeoutMillis, int[] additiveFields,
+                boolean resultCacheEnabled, int maxConcurrentPulls) {
             mCoolDownMillis = coolDownMillis;
             mTimeoutMillis = timeoutMillis;
             mAdditiveFields = additiveFields;
+            mResultCacheEnabled = resultCacheEnabled;
+            mMaxConcurrentPulls = maxConcurrentPulls;
         }
 
         /**
@@ -614,6 +1190,8 @@ public final class StatsManager {
             private long mCoolDownMillis;
             private long mTimeoutMillis;
             private int[] mAdditiveFields;
+            private boolean mResultCacheEnabled;
+            private int mMaxConcurrentPulls;
 
             /**
              * Returns a new PullAtomMetadata.Builder object for constructing PullAtomMetadata for
@@ -623,6 +1201,8 @@ public final class StatsManager {
                 mCoolDownMillis = DEFAULT_COOL_DOWN_MILLIS;
                 mTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
                 mAdditiveFields = null;
+                mResultCacheEnabled = false;
+                mMaxConcurrentPulls = DEFAULT_MAX_CONCURRENT_PULLS;
             }
 
             /**
@@ -659,13 +1239,43 @@ public final class StatsManager {
                 return this;
             }
 
+            /**
+             * Set whether the result of a successful pull is cached in the calling process for
+             * the cool down time. While cached, the result is sent to the stats service again
+             * instead of invoking the callback, e.g. when several configs pull the atom. Useful
+             * for expensive callbacks. Disabled by default.
+             */
+            @NonNull
+            public Builder setResultCacheEnabled(boolean resultCacheEnabled) {
+                mResultCacheEnabled = resultCacheEnabled;
+                return this;
+            }
+
+            /**
+             * Set the number of pulls of the atom that may run at the same time. Only used for
+             * callbacks registered without an executor, see
+             * {@link StatsManager#setPullAtomCallback(int, PullAtomMetadata,
+             * StatsPullAtomCallback)}. Further pulls wait for a running pull to complete.
+             * Defaults to 1.
+             */
+            @NonNull
+            public Builder setMaxConcurrentPulls(int maxConcurrentPulls) {
+                if (maxConcurrentPulls < 1) {
+                    throw new IllegalArgumentException(
+                            "maxConcurrentPulls must be positive: " + maxConcurrentPulls);
+                }
+                mMaxConcurrentPulls = maxConcurrentPulls;
+                return this;
+            }
+
             /**
              * Builds and returns a PullAtomMetadata object with the values set in the builder and
              * defaults for unset fields.
              */
             @NonNull
             public PullAtomMetadata build() {
-                return new PullAtomMetadata(mCoolDownMillis, mTimeoutMillis, mAdditiveFields);
+                return new PullAtomMetadata(mCoolDownMillis, mTimeoutMillis, mAdditiveFields,
+                        mResultCacheEnabled, mMaxConcurrentPulls);
             }
         }
 
@@ -694,6 +1304,20 @@ public final class StatsManager {
         public int[] getAdditiveFields() {
             return mAdditiveFields;
         }
+
+        /**
+         * Return whether pull results are cached in the calling process for the cool down time.
+         */
+        public boolean isResultCacheEnabled() {
+            return mResultCacheEnabled;
+        }
+
+        /**
+         * Return the number of pulls of the atom that may run at the same time.
+         */
+        public int getMaxConcurrentPulls() {
+            return mMaxConcurrentPulls;
+        }
     }
 
     /**
@@ -708,17 +1332,163 @@ public final class StatsManager {
         int onPullAtom(int atomTag, @NonNull List<StatsEvent> data);
     }
 
-    @GuardedBy("sLock")
-    private IStatsManagerService getIStatsManagerServiceLocked() {
-        if (mStatsManagerService != null) {
+    /**
+     * Callback interface for pulling atoms that only returns the dimensions whose values changed
+     * since the previous pull. The stats service merges them into the result of the previous
+     * pull: each returned event replaces the event with the same non-additive field values.
+     *
+     * The metadata of the callback must set the additive fields, which hold the values of each
+     * dimension. Dimensions that are no longer returned are only dropped by the stats service
+     * when it requests every dimension, which it does periodically.
+     */
+    public interface StatsIncrementalPullAtomCallback extends StatsPullAtomCallback {
+        /**
+         * Pull data for the specified atom tag, filling in the provided list of StatsEvent data.
+         *
+         * @param cursor the {@link android.os.SystemClock#elapsedRealtimeNanos()} at which the
+         *               previous pull merged by the stats service started, or 0 if the stats
+         *               service needs every dimension. Only the dimensions that changed since
+         *               then need to be added to data.
+         * @return {@link #PULL_SUCCESS} if the pull was successful, or {@link #PULL_SKIP} if not.
+         */
+        int onPullAtom(int atomTag, long cursor, @NonNull List<StatsEvent> data);
+
+        /**
+         * Pull every dimension of the specified atom tag.
+         */
+        @Override
+        default int onPullAtom(int atomTag, @NonNull List<StatsEvent> data) {
+            return onPullAtom(atomTag, /*cursor=*/ 0, data);
+        }
+    }
+
+    /**
+     * Callback interface for the outcome of an asynchronous StatsManager operation.
+     *
+     * @param <T> The type of the result of the operation.
+     */
+    public interface StatsOperationCallback<T> {
+        /**
+         * Called when the operation succeeded.
+         */
+        void onResult(@Nullable T result);
+
+        /**
+         * Called when the operation failed, with the exception the synchronous variant of the
+         * operation would have thrown.
+         */
+        void onError(@NonNull Exception error);
+    }
+
+    @VisibleForTesting
+    interface StatsOperation<T> {
+        T run() throws StatsUnavailableException;
+    }
+
+    private <T> void runAsync(Executor executor, StatsOperationCallback<T> callback,
+            StatsOperation<T> operation) {
+        runAsync(mAsyncExecutor, executor, callback, operation);
+    }
+
+    /**
+     * Runs the operation on operationExecutor, and reports its outcome to callback on executor.
+     */
+    @VisibleForTesting
+    static <T> void runAsync(Executor operationExecutor, Executor executor,
+            StatsOperationCallback<T> callback, StatsOperation<T> operation) {
+        Objects.requireNonNull(executor);
+        Objects.requireNonNull(callback);
+        operationExecutor.execute(() -> {
+            T result;
+            try {
+                result = operation.run();
+            } catch (StatsUnavailableException | RuntimeException e) {
+                executor.execute(() -> callback.onError(e));
+                return;
+            }
+            executor.execute(() -> callback.onResult(result));
+        });
+    }
+
+    /**
+     * Runs tasks one at a time, in the order they were submitted, on the threads shared by the
+     * asynchronous operations of the process. A slow task only delays the next tasks of the
+     * same SerialExecutor, e.g. a report requested after a config was added by the same
+     * StatsManager covers that config, while the operations of other instances keep running.
+     */
+    @VisibleForTesting
+    static final class SerialExecutor implements Executor {
+        private final Object mLock = new Object();
+        @GuardedBy("mLock")
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        @GuardedBy("mLock")
+        private boolean mRunning = false;
+
+        @Override
+        public void execute(@NonNull Runnable task) {
+            Objects.requireNonNull(task);
+            synchronized (mLock) {
+                mTasks.add(task);
+                if (mRunning) {
+                    return;
+                }
+                mRunning = true;
+            }
+            AsyncExecutorHolder.sExecutor.execute(this::runTasks);
+        }
+
+        private void runTasks() {
+            while (true) {
+                Runnable task;
+                synchronized (mLock) {
+                    task = mTasks.poll();
+                    if (task == null) {
+                        mRunning = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Asynchronous operation threw", e);
+                }
+            }
+        }
+    }
+
+    // Runs the blocking binder calls of asynchronous operations, so that they can be pipelined
+    // without parking the callers' threads. Each SerialExecutor uses at most one thread at a
+    // time. Created on first use.
+    private static class AsyncExecutorHolder {
+        private static final int MAX_THREADS = 4;
+        private static final long KEEP_ALIVE_SECONDS = 10;
+
+        static final ThreadPoolExecutor sExecutor;
+
+        static {
+            final AtomicInteger threadCount = new AtomicInteger();
+            sExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    r -> new Thread(r, "StatsManagerAsync-" + threadCount.incrementAndGet()));
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    private IStatsManagerService getIStatsManagerService() {
+        IStatsManagerService service = mStatsManagerService;
+        if (service != null) {
+            return service;
+        }
+        synchronized (sLock) {
+            if (mStatsManagerService == null) {
+                mStatsManagerService = IStatsManagerService.Stub.asInterface(
+                        StatsFrameworkInitializer
+                        .getStatsServiceManager()
+                        .getStatsManagerServiceRegisterer()
+                        .get());
+            }
             return mStatsManagerService;
         }
-        mStatsManagerService = IStatsManagerService.Stub.asInterface(
-                StatsFrameworkInitializer
-                .getStatsServiceManager()
-                .getStatsManagerServiceRegisterer()
-                .get());
-        return mStatsManagerService;
     }
 
     /**
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.annotation.NonNull;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the pull callbacks registered without an executor.
+ *
+ * <p>Each atom tag runs at most its own number of concurrent pulls, so that a slow puller only
+ * delays its own atom, and pulls of other atoms keep running on the other threads. A pull that
+ * could not start within its queue time, because its atom or the whole pool is busy, is failed
+ * from a timer when that time runs out, so statsd gets an answer while it still waits for one.
+ * Pulls that do not fit in the bounded queues are failed right away. A pull that throws is
+ * reported to statsd as failed, and does not hold up the next pulls of its atom.</p>
+ *
+ * @hide
+ */
+final class StatsPullExecutor {
+    private static final String TAG = "StatsPullExecutor";
+
+    private static final int MAX_THREADS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    // Pulls given an atom slot that wait for a thread of the pool.
+    private static final int MAX_QUEUED_PULLS = 64;
+    // Pulls of an atom that wait for one of its slots.
+    private static final int MAX_PENDING_PULLS_PER_ATOM = 16;
+
+    // Latency histogram buckets: bucket i counts latencies below 2^i milliseconds, and the last
+    // bucket counts the longer ones.
+    static final int NUM_LATENCY_BUCKETS = 16;
+
+    private static final class PendingPull {
+        final Runnable mPull;
+        final Runnable mFail;
+        final long mSubmitMillis;
+        // Guarded by the lock of the executor. Set once the pull either started or was failed
+        // without running.
+        boolean mClaimed = false;
+        // Guarded by the lock of the executor.
+        ScheduledFuture<?> mDeadline;
+
+        PendingPull(Runnable pull, Runnable fail) {
+            mPull = pull;
+            mFail = fail;
+            mSubmitMillis = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private static final class AtomState {
+        int mRunningPulls = 0;
+        final ArrayDeque<PendingPull> mPendingPulls = new ArrayDeque<>();
+        long mSkippedPulls = 0;
+        final long[] mLatencyHistogram = new long[NUM_LATENCY_BUCKETS];
+    }
+
+    private static final class InstanceHolder {
+        static final StatsPullExecutor sInstance = new StatsPullExecutor();
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    // Fails the pulls that could not start in time.
+    private final ScheduledThreadPoolExecutor mDeadlineExecutor;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final SparseArray<AtomState> mAtomStates = new SparseArray<>();
+
+    private StatsPullExecutor() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_PULLS),
+                r -> new Thread(r, "StatsPull-" + threadCount.incrementAndGet()));
+        mExecutor.allowCoreThreadTimeOut(true);
+        mDeadlineExecutor = new ScheduledThreadPoolExecutor(1,
+                r -> new Thread(r, "StatsPullDeadline"));
+        mDeadlineExecutor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        mDeadlineExecutor.allowCoreThreadTimeOut(true);
+        mDeadlineExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    static StatsPullExecutor getInstance() {
+        return InstanceHolder.sInstance;
+    }
+
+    /**
+     * Runs the pull.
+     *
+     * @param maxConcurrentPulls the number of pulls of the atom tag that may run at once.
+     * @param fail answers statsd with a failed pull. Run instead of the pull if the pull could
+     *             not start within maxQueueMillis, or after it if it threw.
+     */
+    void execute(int atomTag, int maxConcurrentPulls, long maxQueueMillis, @NonNull Runnable pull,
+            @NonNull Runnable fail) {
+        final PendingPull pendingPull = new PendingPull(pull, fail);
+        final boolean runNow;
+        final boolean skipNow;
+        synchronized (mLock) {
+            AtomState state = mAtomStates.get(atomTag);
+            if (state == null) {
+                state = new AtomState();
+                mAtomStates.put(atomTag, state);
+            }
+            if (state.mRunningPulls < maxConcurrentPulls) {
+                state.mRunningPulls++;
+                runNow = true;
+                skipNow = false;
+            } else if (state.mPendingPulls.size() < MAX_PENDING_PULLS_PER_ATOM) {
+                state.mPendingPulls.add(pendingPull);
+                runNow = false;
+                skipNow = false;
+            } else {
+                pendingPull.mClaimed = true;
+                state.mSkippedPulls++;
+                runNow = false;
+                skipNow = true;
+            }
+            if (!skipNow) {
+                pendingPull.mDeadline = mDeadlineExecutor.schedule(
+                        () -> expire(atomTag, pendingPull), maxQueueMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (runNow) {
+            submit(atomTag, pendingPull);
+        } else if (skipNow) {
+            Log.w(TAG, "Skipping pull of atom " + atomTag + " as too many of its pulls wait");
+            runFail(atomTag, pendingPull);
+        }
+    }
+
+    /**
+     * Returns a copy of the latency histogram of the atom tag, measured from the time each pull
+     * was requested until it completed.
+     */
+    long[] getLatencyHistogram(int atomTag) {
+        synchronized (mLock) {
+            AtomState state = mAtomStates.get(atomTag);
+            return state == null ? new long[NUM_LATENCY_BUCKETS]
+                    : state.mLatencyHistogram.clone();
+        }
+    }
+
+    /**
+     * Returns the number of pulls of the atom tag skipped because they could not start in time or
+     * did not fit in the queues.
+     */
+    long getSkippedPullCount(int atomTag) {
+        synchronized (mLock) {
+            AtomState state = mAtomStates.get(atomTag);
+            return state == null ? 0 : state.mSkippedPulls;
+        }
+    }
+
+    /**
+     * Hands the pull, which holds a slot of its atom, to the pool.
+     */
+    private void submit(int atomTag, PendingPull pendingPull) {
+        PendingPull next = pendingPull;
+        while (next != null) {
+            final PendingPull pull = next;
+            try {
+                mExecutor.execute(() -> run(atomTag, pull));
+                return;
+            } catch (RejectedExecutionException e) {
+                if (claim(atomTag, pull, /*skip=*/ true)) {
+                    Log.w(TAG, "Skipping pull of atom " + atomTag + " as the pull queue is full");
+                    runFail(atomTag, pull);
+                }
+                next = onPullDone(atomTag, pull, /*ran=*/ false);
+            }
+        }
+    }
+
+    private void run(int atomTag, PendingPull pendingPull) {
+        PendingPull next = pendingPull;
+        while (next != null) {
+            // False if the pull was failed when its queue time ran out.
+            final boolean ran = claim(atomTag, next, /*skip=*/ false);
+            try {
+                if (ran) {
+                    try {
+                        next.mPull.run();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Pull of atom " + atomTag + " threw", e);
+                        runFail(atomTag, next);
+                    }
+                }
+            } finally {
+                next = onPullDone(atomTag, next, ran);
+            }
+        }
+    }
+
+    /**
+     * Fails the pull if it is still waiting for a slot of its atom or for a thread.
+     */
+    private void expire(int atomTag, PendingPull pull) {
+        synchronized (mLock) {
+            if (!claim(atomTag, pull, /*skip=*/ true)) {
+                return;
+            }
+            // A pull holding a slot of its atom is still in the pool queue, and releases the
+            // slot once a thread takes it.
+            mAtomStates.get(atomTag).mPendingPulls.remove(pull);
+        }
+        Log.w(TAG, "Skipping pull of atom " + atomTag + " that could not start in time");
+        runFail(atomTag, pull);
+    }
+
+    /**
+     * Marks the pull as started, or as skipped if skip is set.
+     *
+     * @return false if the pull had already started or been skipped.
+     */
+    private boolean claim(int atomTag, PendingPull pull, boolean skip) {
+        synchronized (mLock) {
+            if (pull.mClaimed) {
+                return false;
+            }
+            pull.mClaimed = true;
+            pull.mDeadline.cancel(/*mayInterruptIfRunning=*/ false);
+            if (skip) {
+                mAtomStates.get(atomTag).mSkippedPulls++;
+            }
+            return true;
+        }
+    }
+
+    private static void runFail(int atomTag, PendingPull pull) {
+        try {
+            pull.mFail.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to report the failed pull of atom " + atomTag, e);
+        }
+    }
+
+    /**
+     * Records the pull, and hands over its slot to the next pending pull of the same atom.
+     *
+     * @return the next pull to run on this thread, or null if there is none.
+     */
+    private PendingPull onPullDone(int atomTag, PendingPull pull, boolean ran) {
+        final long latencyMillis = SystemClock.elapsedRealtime() - pull.mSubmitMillis;
+        synchronized (mLock) {
+            AtomState state = mAtomStates.get(atomTag);
+            if (ran) {
+                state.mLatencyHistogram[getLatencyBucket(latencyMillis)]++;
+            }
+            PendingPull next = state.mPendingPulls.poll();
+            if (next == null) {
+                state.mRunningPulls--;
+            }
+            return next;
+        }
+    }
+
+    private static int getLatencyBucket(long latencyMillis) {
+        final int bucket = 64 - Long.numberOfLeadingZeros(Math.max(latencyMillis, 0));
+        return Math.min(bucket, NUM_LATENCY_BUCKETS - 1);
+    }
+}
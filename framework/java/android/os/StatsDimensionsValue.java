@@ -15,11 +15,14 @@
  */
 package android.os;
 
+import android.annotation.Nullable;
 import android.annotation.SystemApi;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 
 /**
  * Container for statsd dimension value information, corresponding to a
@@ -50,6 +53,9 @@ import java.util.List;
  * <p>
  * The field is always an int, and always exists; it can be obtained using {@link #getField()}.
  *
+ * <p>
+ * Instances are immutable, and can be used as keys of hash based collections.
+ *
  *
  * @hide
  */
@@ -72,7 +78,22 @@ public final class StatsDimensionsValue implements Parcelable {
     /** Indicates that this holds a List of StatsDimensionsValues. */
     public static final int TUPLE_VALUE_TYPE = 7;
 
-    private final StatsDimensionsValueParcel mInner;
+    private final int mField;
+    private final int mValueType;
+    // The int, long, boolean or float value, stored in a long to avoid a field per type. Floats
+    // are stored as their raw int bits.
+    private final long mPrimitiveValue;
+    @Nullable
+    private final String mStringValue;
+    // Unmodifiable, only set for tuples.
+    @Nullable
+    private final List<StatsDimensionsValue> mTupleValues;
+
+    // Computed on first use. As all the other fields are final, racing threads compute the same
+    // values, like String#hashCode.
+    private int mHashCode;
+    @Nullable
+    private String mString;
 
     /**
      * Creates a {@code StatsDimensionValue} from a parcel.
@@ -80,7 +101,7 @@ public final class StatsDimensionsValue implements Parcelable {
      * @hide
      */
     public StatsDimensionsValue(Parcel in) {
-        mInner = StatsDimensionsValueParcel.CREATOR.createFromParcel(in);
+        this(StatsDimensionsValueParcel.CREATOR.createFromParcel(in));
     }
 
     /**
@@ -89,7 +110,41 @@ public final class StatsDimensionsValue implements Parcelable {
      * @hide
      */
     public StatsDimensionsValue(StatsDimensionsValueParcel parcel) {
-        mInner = parcel;
+        mField = parcel.field;
+        mValueType = parcel.valueType;
+        String stringValue = null;
+        long primitiveValue = 0;
+        List<StatsDimensionsValue> tupleValues = null;
+        switch (parcel.valueType) {
+            case STRING_VALUE_TYPE:
+                stringValue = parcel.stringValue;
+                break;
+            case INT_VALUE_TYPE:
+                primitiveValue = parcel.intValue;
+                break;
+            case LONG_VALUE_TYPE:
+                primitiveValue = parcel.longValue;
+                break;
+            case BOOLEAN_VALUE_TYPE:
+                primitiveValue = parcel.boolValue ? 1 : 0;
+                break;
+            case FLOAT_VALUE_TYPE:
+                primitiveValue = Float.floatToRawIntBits(parcel.floatValue);
+                break;
+            case TUPLE_VALUE_TYPE:
+                int length = (parcel.tupleValue == null) ? 0 : parcel.tupleValue.length;
+                ArrayList<StatsDimensionsValue> children = new ArrayList<>(length);
+                for (int i = 0; i < length; i++) {
+                    children.add(new StatsDimensionsValue(parcel.tupleValue[i]));
+                }
+                tupleValues = Collections.unmodifiableList(children);
+                break;
+            default:
+                break;
+        }
+        mStringValue = stringValue;
+        mPrimitiveValue = primitiveValue;
+        mTupleValues = tupleValues;
     }
 
     /**
@@ -98,7 +153,7 @@ public final class StatsDimensionsValue implements Parcelable {
      * @return the field
      */
     public int getField() {
-        return mInner.field;
+        return mField;
     }
 
     /**
@@ -108,8 +163,8 @@ public final class StatsDimensionsValue implements Parcelable {
      *         null otherwise
      */
     public String getStringValue() {
-        if (mInner.valueType == STRING_VALUE_TYPE) {
-            return mInner.stringValue;
+        if (mValueType == STRING_VALUE_TYPE) {
+            return mStringValue;
         } else {
             Log.w(TAG, "Value type is " + getValueTypeAsString() + ", not string.");
             return null;
@@ -122,8 +177,8 @@ public final class StatsDimensionsValue implements Parcelable {
      * @return the int held if {@link #getValueType()} == {@link #INT_VALUE_TYPE}, 0 otherwise
      */
     public int getIntValue() {
-        if (mInner.valueType == INT_VALUE_TYPE) {
-            return mInner.intValue;
+        if (mValueType == INT_VALUE_TYPE) {
+            return (int) mPrimitiveValue;
         } else {
             Log.w(TAG, "Value type is " + getValueTypeAsString() + ", not int.");
             return 0;
@@ -136,8 +191,8 @@ public final class StatsDimensionsValue implements Parcelable {
      * @return the long held if {@link #getValueType()} == {@link #LONG_VALUE_TYPE}, 0 otherwise
      */
     public long getLongValue() {
-        if (mInner.valueType == LONG_VALUE_TYPE) {
-            return mInner.longValue;
+        if (mValueType == LONG_VALUE_TYPE) {
+            return mPrimitiveValue;
         } else {
             Log.w(TAG, "Value type is " + getValueTypeAsString() + ", not long.");
             return 0;
@@ -151,8 +206,8 @@ public final class StatsDimensionsValue implements Parcelable {
      *         false otherwise
      */
     public boolean getBooleanValue() {
-        if (mInner.valueType == BOOLEAN_VALUE_TYPE) {
-            return mInner.boolValue;
+        if (mValueType == BOOLEAN_VALUE_TYPE) {
+            return mPrimitiveValue != 0;
         } else {
             Log.w(TAG, "Value type is " + getValueTypeAsString() + ", not boolean.");
             return false;
@@ -165,8 +220,8 @@ public final class StatsDimensionsValue implements Parcelable {
      * @return the float held if {@link #getValueType()} == {@link #FLOAT_VALUE_TYPE}, 0 otherwise
      */
     public float getFloatValue() {
-        if (mInner.valueType == FLOAT_VALUE_TYPE) {
-            return mInner.floatValue;
+        if (mValueType == FLOAT_VALUE_TYPE) {
+            return Float.intBitsToFloat((int) mPrimitiveValue);
         } else {
             Log.w(TAG, "Value type is " + getValueTypeAsString() + ", not float.");
             return 0;
@@ -177,18 +232,25 @@ public final class StatsDimensionsValue implements Parcelable {
      * Retrieve the tuple, in the form of a {@link List} of {@link StatsDimensionsValue}, held,
      * if any.
      *
-     * @return the {@link List} of {@link StatsDimensionsValue} held
+     * @return a new {@link List} of the {@link StatsDimensionsValue} held
      *         if {@link #getValueType()} == {@link #TUPLE_VALUE_TYPE},
      *         null otherwise
      */
     public List<StatsDimensionsValue> getTupleValueList() {
-        if (mInner.valueType == TUPLE_VALUE_TYPE) {
-            int length = (mInner.tupleValue == null) ? 0 : mInner.tupleValue.length;
-            List<StatsDimensionsValue> tupleValues = new ArrayList<>(length);
-            for (int i = 0; i < length; i++) {
-                tupleValues.add(new StatsDimensionsValue(mInner.tupleValue[i]));
-            }
-            return tupleValues;
+        final List<StatsDimensionsValue> tupleValues = getUnmodifiableTupleValueList();
+        return tupleValues == null ? null : new ArrayList<>(tupleValues);
+    }
+
+    /**
+     * Same as {@link #getTupleValueList()}, but returns the same unmodifiable {@link List} on
+     * every call instead of a copy.
+     *
+     * @hide
+     */
+    @Nullable
+    public List<StatsDimensionsValue> getUnmodifiableTupleValueList() {
+        if (mValueType == TUPLE_VALUE_TYPE) {
+            return mTupleValues;
         } else {
             Log.w(TAG, "Value type is " + getValueTypeAsString() + ", not tuple.");
             return null;
@@ -209,7 +271,7 @@ public final class StatsDimensionsValue implements Parcelable {
      * @return the constant representing the type of value stored
      */
     public int getValueType() {
-        return mInner.valueType;
+        return mValueType;
     }
 
     /**
@@ -219,7 +281,7 @@ public final class StatsDimensionsValue implements Parcelable {
      * @return true if {@link #getValueType()} is equal to {@code valueType}.
      */
     public boolean isValueType(int valueType) {
-        return mInner.valueType == valueType;
+        return mValueType == valueType;
     }
 
     /**
@@ -232,31 +294,43 @@ public final class StatsDimensionsValue implements Parcelable {
      */
     // Follows the format of statsd's dimension.h toString.
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(mInner.field);
+        String string = mString;
+        if (string == null) {
+            StringBuilder sb = new StringBuilder();
+            appendTo(sb);
+            string = sb.toString();
+            mString = string;
+        }
+        return string;
+    }
+
+    private void appendTo(StringBuilder sb) {
+        if (mString != null) {
+            sb.append(mString);
+            return;
+        }
+        sb.append(mField);
         sb.append(":");
-        switch (mInner.valueType) {
+        switch (mValueType) {
             case STRING_VALUE_TYPE:
-                sb.append(mInner.stringValue);
+                sb.append(mStringValue);
                 break;
             case INT_VALUE_TYPE:
-                sb.append(String.valueOf(mInner.intValue));
+                sb.append(getIntValue());
                 break;
             case LONG_VALUE_TYPE:
-                sb.append(String.valueOf(mInner.longValue));
+                sb.append(getLongValue());
                 break;
             case BOOLEAN_VALUE_TYPE:
-                sb.append(String.valueOf(mInner.boolValue));
+                sb.append(getBooleanValue());
                 break;
             case FLOAT_VALUE_TYPE:
-                sb.append(String.valueOf(mInner.floatValue));
+                sb.append(getFloatValue());
                 break;
             case TUPLE_VALUE_TYPE:
                 sb.append("{");
-                int length = (mInner.tupleValue == null) ? 0 : mInner.tupleValue.length;
-                for (int i = 0; i < length; i++) {
-                    StatsDimensionsValue child = new StatsDimensionsValue(mInner.tupleValue[i]);
-                    sb.append(child.toString());
+                for (int i = 0; i < mTupleValues.size(); i++) {
+                    mTupleValues.get(i).appendTo(sb);
                     sb.append("|");
                 }
                 sb.append("}");
@@ -265,7 +339,41 @@ public final class StatsDimensionsValue implements Parcelable {
                 Log.w(TAG, "Incorrect value type");
                 break;
         }
-        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(@Nullable Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof StatsDimensionsValue)) {
+            return false;
+        }
+        StatsDimensionsValue other = (StatsDimensionsValue) obj;
+        // The cached hash codes rule out most unequal tuples without comparing their children.
+        return mField == other.mField
+                && mValueType == other.mValueType
+                && mPrimitiveValue == other.mPrimitiveValue
+                && hashCode() == other.hashCode()
+                && Objects.equals(mStringValue, other.mStringValue)
+                && Objects.equals(mTupleValues, other.mTupleValues);
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = mHashCode;
+        if (hashCode == 0) {
+            hashCode = 31 * mField + mValueType;
+            hashCode = 31 * hashCode + Long.hashCode(mPrimitiveValue);
+            hashCode = 31 * hashCode + Objects.hashCode(mStringValue);
+            if (mTupleValues != null) {
+                for (int i = 0; i < mTupleValues.size(); i++) {
+                    hashCode = 31 * hashCode + mTupleValues.get(i).hashCode();
+                }
+            }
+            mHashCode = hashCode;
+        }
+        return hashCode;
     }
 
     /**
@@ -290,14 +398,46 @@ public final class StatsDimensionsValue implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel out, int flags) {
-        mInner.writeToParcel(out, flags);
+        toParcel().writeToParcel(out, flags);
+    }
+
+    private StatsDimensionsValueParcel toParcel() {
+        StatsDimensionsValueParcel parcel = new StatsDimensionsValueParcel();
+        parcel.field = mField;
+        parcel.valueType = mValueType;
+        switch (mValueType) {
+            case STRING_VALUE_TYPE:
+                parcel.stringValue = mStringValue;
+                break;
+            case INT_VALUE_TYPE:
+                parcel.intValue = getIntValue();
+                break;
+            case LONG_VALUE_TYPE:
+                parcel.longValue = getLongValue();
+                break;
+            case BOOLEAN_VALUE_TYPE:
+                parcel.boolValue = getBooleanValue();
+                break;
+            case FLOAT_VALUE_TYPE:
+                parcel.floatValue = getFloatValue();
+                break;
+            case TUPLE_VALUE_TYPE:
+                parcel.tupleValue = new StatsDimensionsValueParcel[mTupleValues.size()];
+                for (int i = 0; i < mTupleValues.size(); i++) {
+                    parcel.tupleValue[i] = mTupleValues.get(i).toParcel();
+                }
+                break;
+            default:
+                break;
+        }
+        return parcel;
     }
 
     /**
      * Returns a string representation of the type of value stored.
      */
     private String getValueTypeAsString() {
-        switch (mInner.valueType) {
+        switch (mValueType) {
             case STRING_VALUE_TYPE:
                 return "string";
             case INT_VALUE_TYPE:
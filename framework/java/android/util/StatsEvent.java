@@ -16,18 +16,21 @@
 
 package android.util;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.annotation.SystemApi;
 import android.os.SystemClock;
 
-import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * StatsEvent builds and stores the buffer sent over the statsd socket.
@@ -237,9 +240,12 @@ public final class StatsEvent {
     private static final int MAX_PULL_PAYLOAD_SIZE = 50 * 1024; // 50 KB
 
     private final int mAtomId;
-    private final byte[] mPayload;
+    private byte[] mPayload;
     private Buffer mBuffer;
     private final int mNumBytes;
+    @Nullable
+    private final Arena mArena;
+    private final int mArenaOffset;
 
     private StatsEvent(final int atomId, @Nullable final Buffer buffer,
             @NonNull final byte[] payload, final int numBytes) {
@@ -247,6 +253,18 @@ public final class StatsEvent {
         mBuffer = buffer;
         mPayload = payload;
         mNumBytes = numBytes;
+        mArena = null;
+        mArenaOffset = 0;
+    }
+
+    private StatsEvent(final int atomId, @NonNull final Arena arena, final int arenaOffset,
+            final int numBytes) {
+        mAtomId = atomId;
+        mBuffer = null;
+        mPayload = null;
+        mNumBytes = numBytes;
+        mArena = arena;
+        mArenaOffset = arenaOffset;
     }
 
     /**
@@ -273,9 +291,25 @@ public final class StatsEvent {
      **/
     @NonNull
     public byte[] getBytes() {
+        if (null == mPayload && null != mArena) {
+            // Events stored in an Arena are only copied out when their bytes are requested.
+            mPayload = mArena.copyOut(mArenaOffset, mNumBytes);
+        }
         return mPayload;
     }
 
+    /**
+     * Get the direct ByteBuffer that shares its memory with the array returned by
+     * {@link #getBytes()}, or null if there is no such buffer. The encoded payload can then be
+     * written to the statsd socket without copying it out of the Java heap.
+     *
+     * @hide
+     **/
+    @Nullable
+    public ByteBuffer getDirectBuffer() {
+        return null == mBuffer ? null : mBuffer.getDirectBuffer();
+    }
+
     /**
      * Get the number of bytes used to encode the StatsEvent payload.
      *
@@ -298,6 +332,48 @@ public final class StatsEvent {
         }
     }
 
+    /**
+     * Sets the maximum number of released Buffers kept in the shared pool, in addition to the one
+     * Buffer cached per thread. Setting this to 0 disables the shared pool.
+     *
+     * @hide
+     **/
+    public static void setBufferPoolSize(final int poolSize) {
+        Buffer.setPoolSize(poolSize);
+    }
+
+    /**
+     * Returns the number of Buffer requests that were served from the per-thread cache or the
+     * shared pool.
+     *
+     * @hide
+     **/
+    @VisibleForTesting
+    public static long getBufferPoolHitCount() {
+        return Buffer.sPoolHits.sum();
+    }
+
+    /**
+     * Returns the number of Buffer requests that could not be served from the per-thread cache or
+     * the shared pool.
+     *
+     * @hide
+     **/
+    @VisibleForTesting
+    public static long getBufferPoolMissCount() {
+        return Buffer.sPoolMisses.sum();
+    }
+
+    /**
+     * Returns the number of byte arrays allocated for Buffers, including regrowth.
+     *
+     * @hide
+     **/
+    @VisibleForTesting
+    public static long getBufferAllocationCount() {
+        return Buffer.sAllocations.sum();
+    }
+
     /**
      * Builder for constructing a StatsEvent object.
      *
@@ -347,8 +423,9 @@ public final class StatsEvent {
         private static final int POS_NUM_ELEMENTS = 1;
         private static final int POS_TIMESTAMP_NS = POS_NUM_ELEMENTS + Byte.BYTES;
         private static final int POS_ATOM_ID = POS_TIMESTAMP_NS + Byte.BYTES + Long.BYTES;
+        private static final int POS_FIRST_FIELD = POS_ATOM_ID + Byte.BYTES + Integer.BYTES;
 
-        private final Buffer mBuffer;
+        private Buffer mBuffer;
         private long mTimestampNs;
         private int mAtomId;
         private byte mCurrentAnnotationCount;
@@ -358,13 +435,23 @@ public final class StatsEvent {
         private int mNumElements;
         private int mErrorMask;
         private boolean mUsePooledBuffer = false;
+        // Set once build() has handed mBuffer to a StatsEvent or returned it to the pool.
+        private boolean mBuilt = false;
+        // Set when the atom id was carried over from the previous event by reset().
+        private boolean mAtomIdRetained = false;
 
         private Builder(final Buffer buffer) {
             mBuffer = buffer;
+            startEvent(SystemClock.elapsedRealtimeNanos());
+        }
+
+        private void startEvent(final long timestampNs) {
             mCurrentAnnotationCount = 0;
             mAtomId = 0;
-            mTimestampNs = SystemClock.elapsedRealtimeNanos();
+            mTimestampNs = timestampNs;
             mNumElements = 0;
+            mErrorMask = 0;
+            mAtomIdRetained = false;
 
             // Set mPos to 0 for writing TYPE_OBJECT at 0th position.
             mPos = 0;
@@ -375,21 +462,80 @@ public final class StatsEvent {
             writeLong(mTimestampNs);
         }
 
+        /**
+         * Resets this Builder so that it can be reused to build another StatsEvent, timestamped
+         * with the current time.
+         *
+         * @see #reset(long)
+         **/
+        @NonNull
+        public Builder reset() {
+            return reset(SystemClock.elapsedRealtimeNanos());
+        }
+
+        /**
+         * Resets this Builder so that it can be reused to build another StatsEvent with the given
+         * timestamp, without allocating a new Builder.
+         *
+         * <p>All fields, annotations and errors are cleared, and {@link #usePooledBuffer()} must
+         * be called again if needed. The atom id of the previous event is kept, so logging the
+         * same atom repeatedly only needs the fields to be written again. Calling
+         * {@link #setAtomId(int)} right after reset replaces the kept atom id.</p>
+         *
+         * @param timestampNs timestamp of the new event, in nanoseconds since boot as returned
+         *        by {@link SystemClock#elapsedRealtimeNanos()}.
+         **/
+        @NonNull
+        public Builder reset(final long timestampNs) {
+            if (mBuilt) {
+                // The previous Buffer now belongs to a StatsEvent or to the pool.
+                mBuffer = Buffer.obtain();
+                mBuilt = false;
+            } else {
+                mBuffer.reset();
+            }
+            mUsePooledBuffer = false;
+
+            final int atomId = mAtomId;
+            startEvent(timestampNs);
+            if (0 != atomId) {
+                mAtomId = atomId;
+                writeInt(atomId);
+                mAtomIdRetained = true;
+                // Like setAtomId, start large atoms with a buffer sized from their previous
+                // builds.
+                ensureCapacity(AtomSizeEstimator.getEstimate(atomId));
+            }
+            return this;
+        }
+
         /**
          * Sets the atom id for this StatsEvent.
          *
-         * This should be called immediately after StatsEvent.newBuilder()
-         * and should only be called once.
+         * This should be called immediately after StatsEvent.newBuilder() or
+         * {@link #reset()} and should only be called once.
          * Not calling setAtomId will result in ERROR_NO_ATOM_ID.
          * Calling setAtomId out of order will result in ERROR_ATOM_ID_INVALID_POSITION.
          **/
         @NonNull
         public Builder setAtomId(final int atomId) {
+            if (mAtomIdRetained && POS_FIRST_FIELD == mPos) {
+                // Nothing has been written after the atom id kept by reset(), so rewrite it.
+                mAtomIdRetained = false;
+                mAtomId = 0;
+                mNumElements = 1;
+                mPos = POS_ATOM_ID;
+            }
+
             if (0 == mAtomId) {
                 mAtomId = atomId;
 
                 if (1 == mNumElements) { // Only timestamp is written so far.
                     writeInt(atomId);
+                    if (!mUsePooledBuffer) {
+                        // Start large atoms with a buffer sized from their previous builds.
+                        ensureCapacity(AtomSizeEstimator.getEstimate(atomId));
+                    }
                 } else {
                     // setAtomId called out of order.
                     mErrorMask |= ERROR_ATOM_ID_INVALID_POSITION;
@@ -454,8 +600,9 @@ public final class StatsEvent {
         public Builder writeString(@NonNull final String value) {
             // Write String typeId byte, followed by 4-byte representation of number of bytes
             // in the UTF-8 encoding, followed by the actual UTF-8 byte encoding of value.
-            final byte[] valueBytes = stringToBytes(value);
-            writeByteArray(valueBytes, TYPE_STRING);
+            writeTypeId(TYPE_STRING);
+            mPos += mBuffer.putString(mPos, value);
+            mNumElements++;
             return this;
         }
 
@@ -508,9 +655,8 @@ public final class StatsEvent {
 
                     // Each tag is encoded as 4-byte representation of number of bytes in its
                     // UTF-8 encoding, followed by the actual UTF-8 bytes.
-                    final byte[] tagBytes = stringToBytes(tags[i]);
-                    mPos += mBuffer.putInt(mPos, tagBytes.length);
-                    mPos += mBuffer.putByteArray(mPos, tagBytes);
+                    // Tags repeat often, so their encodings are cached.
+                    mPos += mBuffer.putCachedString(mPos, tags[i]);
                 }
                 mNumElements++;
             }
@@ -564,9 +710,7 @@ public final class StatsEvent {
                     final String value = stringMap.valueAt(i);
                     mPos += mBuffer.putInt(mPos, key);
                     writeTypeId(TYPE_STRING);
-                    final byte[] valueBytes = stringToBytes(value);
-                    mPos += mBuffer.putInt(mPos, valueBytes.length);
-                    mPos += mBuffer.putByteArray(mPos, valueBytes);
+                    mPos += mBuffer.putString(mPos, value);
                 }
 
                 for (int i = 0; i < floatMapSize; i++) {
@@ -691,9 +835,7 @@ public final class StatsEvent {
             if (writeArrayInfo(numElements, TYPE_STRING)) {
                 // Write encoding of each element.
                 for (int i = 0; i < numElements; i++) {
-                    final byte[] elementBytes = stringToBytes(elements[i]);
-                    mPos += mBuffer.putInt(mPos, elementBytes.length);
-                    mPos += mBuffer.putByteArray(mPos, elementBytes);
+                    mPos += mBuffer.putString(mPos, elements[i]);
                 }
                 mNumElements++;
             }
@@ -742,6 +884,21 @@ public final class StatsEvent {
             return this;
         }
 
+        /**
+         * Hints the number of bytes this StatsEvent is expected to take, so that a buffer of the
+         * right size is set up once instead of being grown as fields are written. This is only
+         * useful for pulled events larger than what a pushed event can hold.
+         *
+         * @hide
+         **/
+        @NonNull
+        public Builder setExpectedSize(final int numBytes) {
+            if (!mUsePooledBuffer) {
+                ensureCapacity(numBytes);
+            }
+            return this;
+        }
+
         /**
          * Indicates to reuse Buffer's byte array as the underlying payload in StatsEvent.
          * This should be called for pushed events to reduce memory allocations and garbage
@@ -785,9 +942,23 @@ public final class StatsEvent {
             }
 
             final int size = mPos;
+            mBuilt = true;
+
+            if (!mUsePooledBuffer && 0 == mErrorMask) {
+                AtomSizeEstimator.record(mAtomId, size);
+            }
 
             if (mUsePooledBuffer) {
                 return new StatsEvent(mAtomId, mBuffer, mBuffer.getBytes(), size);
+            }
+
+            final Arena arena = Arena.sCurrentArena.get();
+            if (null != arena) {
+                // Append the payload to the Arena attached to this thread instead of allocating
+                // a byte array for this event.
+                final int offset = arena.append(mBuffer.getBytes(), size);
+                mBuffer.release();
+                return new StatsEvent(mAtomId, arena, offset, size);
             } else {
                 // Create a copy of the buffer with the required number of bytes.
                 final byte[] payload = new byte[size];
@@ -800,6 +971,17 @@ public final class StatsEvent {
             }
         }
 
+        private void ensureCapacity(final int numBytes) {
+            if (numBytes <= mBuffer.getBytes().length || mBuffer.hasOverflowed()) {
+                return;
+            }
+            // Move what has been written so far to a Buffer that is large enough.
+            final Buffer buffer = Buffer.obtain(numBytes);
+            System.arraycopy(mBuffer.getBytes(), 0, buffer.getBytes(), 0, mPos);
+            mBuffer.release();
+            mBuffer = buffer;
+        }
+
         private void writeTypeId(final byte typeId) {
             mPosLastField = mPos;
             mLastType = typeId;
@@ -814,11 +996,6 @@ public final class StatsEvent {
             mBuffer.putByte(mPosLastField, encodedId);
         }
 
-        @NonNull
-        private static byte[] stringToBytes(@Nullable final String value) {
-            return (null == value ? "" : value).getBytes(UTF_8);
-        }
-
         private boolean writeArrayInfo(final byte numElements,
                                        final byte elementTypeId) {
             if (numElements > MAX_NUM_ELEMENTS) {
@@ -837,30 +1014,314 @@ public final class StatsEvent {
         }
     }
 
+    /**
+     * Shared backing storage for pulled StatsEvents.
+     *
+     * <p>While an Arena is attached to a thread, StatsEvents built on that thread without
+     * {@link Builder#usePooledBuffer()} are appended back to back to the Arena's byte array
+     * instead of being copied into a byte array of their own. Each such StatsEvent is a slice of
+     * the Arena, so a whole pull result can be sent to statsd from a single byte array.</p>
+     *
+     * <p>An Arena is not thread-safe and should only be attached to one thread at a time.</p>
+     *
+     * @hide
+     **/
+    public static final class Arena {
+        private static final int DEFAULT_CAPACITY = 4 * 1024;
+
+        private static final ThreadLocal<Arena> sCurrentArena = new ThreadLocal<>();
+
+        private byte[] mBytes;
+        private int mSize;
+
+        /**
+         * Creates an Arena whose backing array can hold expectedSize bytes without growing.
+         **/
+        public Arena(final int expectedSize) {
+            mBytes = new byte[expectedSize > 0 ? expectedSize : DEFAULT_CAPACITY];
+            mSize = 0;
+        }
+
+        /**
+         * Stores StatsEvents built on the calling thread in this Arena until {@link #detach()}
+         * is called.
+         **/
+        public void attach() {
+            sCurrentArena.set(this);
+        }
+
+        /**
+         * Stops storing StatsEvents built on the calling thread in this Arena.
+         **/
+        public void detach() {
+            if (sCurrentArena.get() == this) {
+                sCurrentArena.remove();
+            }
+        }
+
+        /**
+         * Returns the number of bytes used by StatsEvents stored in this Arena.
+         **/
+        public int getSize() {
+            return mSize;
+        }
+
+        /**
+         * Returns the encoded payloads of all StatsEvents stored in this Arena, back to back.
+         * The backing array is returned as is if it is fully used.
+         **/
+        @NonNull
+        public byte[] getPayload() {
+            return mBytes.length == mSize ? mBytes : Arrays.copyOf(mBytes, mSize);
+        }
+
+        /**
+         * Writes the encoded payloads of all StatsEvents stored in this Arena, back to back, to
+         * out without copying them.
+         **/
+        public void writePayload(@NonNull final OutputStream out) throws IOException {
+            out.write(mBytes, 0, mSize);
+        }
+
+        /**
+         * Returns the size of each of the given StatsEvents if they are exactly the contents of
+         * this Arena, in order. Returns null otherwise, e.g. if some of the events were built
+         * outside of this Arena or if events stored in this Arena are missing from the list.
+         **/
+        @Nullable
+        public int[] getEventSizes(@NonNull final List<StatsEvent> events) {
+            final int numEvents = events.size();
+            final int[] eventSizes = new int[numEvents];
+            int expectedOffset = 0;
+            for (int i = 0; i < numEvents; i++) {
+                final StatsEvent event = events.get(i);
+                if (event.mArena != this || event.mArenaOffset != expectedOffset) {
+                    return null;
+                }
+                eventSizes[i] = event.mNumBytes;
+                expectedOffset += event.mNumBytes;
+            }
+            return expectedOffset == mSize ? eventSizes : null;
+        }
+
+        private int append(@NonNull final byte[] bytes, final int numBytes) {
+            final int offset = mSize;
+            final int totalBytesNeeded = offset + numBytes;
+            if (totalBytesNeeded > mBytes.length) {
+                int newSize = mBytes.length;
+                do {
+                    newSize *= 2;
+                } while (newSize < totalBytesNeeded);
+                mBytes = Arrays.copyOf(mBytes, newSize);
+            }
+            System.arraycopy(bytes, 0, mBytes, offset, numBytes);
+            mSize = totalBytesNeeded;
+            return offset;
+        }
+
+        @NonNull
+        private byte[] copyOut(final int offset, final int numBytes) {
+            return Arrays.copyOfRange(mBytes, offset, offset + numBytes);
+        }
+    }
+
     private static final class Buffer {
-        private static Object sLock = new Object();
+        // Upper bound for the shared pool size.
+        private static final int MAX_POOL_CAPACITY = 16;
+
+        private static final int DEFAULT_POOL_SIZE = 4;
+
+        // Each thread caches the last Buffer it released, so that a thread logging repeatedly
+        // reuses its own Buffer without touching any shared state.
+        private static final ThreadLocal<Buffer> sThreadBuffer = new ThreadLocal<>();
+
+        // Shared pool for Buffers released on threads that already have one cached. Slots are
+        // claimed and filled with atomic operations, starting at a slot derived from the thread
+        // id so that concurrent threads tend to use different slots.
+        private static final AtomicReferenceArray<Buffer> sPool =
+                new AtomicReferenceArray<>(MAX_POOL_CAPACITY);
+
+        private static volatile int sPoolSize = DEFAULT_POOL_SIZE;
+
+        // Buffers larger than MAX_PUSH_PAYLOAD_SIZE are pooled separately, in tiers of doubling
+        // capacity from 2 * MAX_PUSH_PAYLOAD_SIZE up to MAX_PULL_PAYLOAD_SIZE. These are the
+        // sizes hasEnoughSpace grows a Buffer to, so a released large Buffer fits a tier exactly.
+        private static final int NUM_LARGE_TIERS = 4;
+
+        private static final int LARGE_BUFFERS_PER_TIER = 2;
+
+        private static final AtomicReferenceArray<Buffer> sLargePool =
+                new AtomicReferenceArray<>(NUM_LARGE_TIERS * LARGE_BUFFERS_PER_TIER);
+
+        // Strings longer than this are not added to the string cache.
+        private static final int MAX_CACHED_STRING_LENGTH = 64;
 
-        @GuardedBy("sLock")
-        private static Buffer sPool;
+        private static final int STRING_CACHE_SIZE = 64;
+
+        // Direct-mapped cache of UTF-8 encodings of frequently written strings, such as
+        // attribution tags. Entries are immutable, so racing threads at worst replace each
+        // other's entries.
+        private static final CachedString[] sStringCache = new CachedString[STRING_CACHE_SIZE];
+
+        private static final LongAdder sPoolHits = new LongAdder();
+        private static final LongAdder sPoolMisses = new LongAdder();
+        private static final LongAdder sAllocations = new LongAdder();
 
         private byte[] mBytes;
+        // Direct buffer backed by mBytes, or null if mBytes is not shared with a direct buffer.
+        private ByteBuffer mDirectBuffer;
         private boolean mOverflow = false;
         private int mMaxSize = MAX_PULL_PAYLOAD_SIZE;
 
         @NonNull
         private static Buffer obtain() {
-            final Buffer buffer;
-            synchronized (sLock) {
-                buffer = null == sPool ? new Buffer() : sPool;
-                sPool = null;
+            Buffer buffer = sThreadBuffer.get();
+            if (null != buffer) {
+                sThreadBuffer.set(null);
+            } else {
+                buffer = takeFromPool();
+            }
+
+            if (null == buffer) {
+                sPoolMisses.increment();
+                buffer = new Buffer();
+            } else {
+                sPoolHits.increment();
             }
             buffer.reset();
             return buffer;
         }
 
+        /**
+         * Returns a Buffer that can hold expectedSize bytes without growing, up to
+         * MAX_PULL_PAYLOAD_SIZE.
+         **/
+        @NonNull
+        private static Buffer obtain(final int expectedSize) {
+            if (expectedSize <= MAX_PUSH_PAYLOAD_SIZE) {
+                return obtain();
+            }
+
+            final int tier = getLargeTier(Math.min(expectedSize, MAX_PULL_PAYLOAD_SIZE));
+            Buffer buffer = takeFromLargePool(tier);
+            if (null == buffer) {
+                sPoolMisses.increment();
+                buffer = new Buffer(getLargeTierCapacity(tier));
+            } else {
+                sPoolHits.increment();
+            }
+            buffer.reset();
+            return buffer;
+        }
+
+        @Nullable
+        private static Buffer takeFromPool() {
+            final int poolSize = sPoolSize;
+            if (0 == poolSize) {
+                return null;
+            }
+            final int start = getStartSlot(poolSize);
+            for (int i = 0; i < poolSize; i++) {
+                final int slot = (start + i) % poolSize;
+                if (null != sPool.get(slot)) {
+                    final Buffer buffer = sPool.getAndSet(slot, null);
+                    if (null != buffer) {
+                        return buffer;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private static boolean returnToPool(@NonNull final Buffer buffer) {
+            final int poolSize = sPoolSize;
+            if (0 == poolSize) {
+                return false;
+            }
+            final int start = getStartSlot(poolSize);
+            for (int i = 0; i < poolSize; i++) {
+                final int slot = (start + i) % poolSize;
+                if (null == sPool.get(slot) && sPool.compareAndSet(slot, null, buffer)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Nullable
+        private static Buffer takeFromLargePool(final int minTier) {
+            // Any Buffer of at least the requested tier will do.
+            for (int tier = minTier; tier < NUM_LARGE_TIERS; tier++) {
+                for (int i = 0; i < LARGE_BUFFERS_PER_TIER; i++) {
+                    final int slot = tier * LARGE_BUFFERS_PER_TIER + i;
+                    if (null != sLargePool.get(slot)) {
+                        final Buffer buffer = sLargePool.getAndSet(slot, null);
+                        if (null != buffer) {
+                            return buffer;
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+
+        private static void returnToLargePool(@NonNull final Buffer buffer) {
+            // Use the largest tier whose capacity the Buffer can provide.
+            int tier = NUM_LARGE_TIERS - 1;
+            while (tier > 0 && getLargeTierCapacity(tier) > buffer.mBytes.length) {
+                tier--;
+            }
+            for (int i = 0; i < LARGE_BUFFERS_PER_TIER; i++) {
+                final int slot = tier * LARGE_BUFFERS_PER_TIER + i;
+                if (null == sLargePool.get(slot) && sLargePool.compareAndSet(slot, null, buffer)) {
+                    return;
+                }
+            }
+        }
+
+        private static int getLargeTier(final int numBytes) {
+            int tier = 0;
+            while (tier < NUM_LARGE_TIERS - 1 && getLargeTierCapacity(tier) < numBytes) {
+                tier++;
+            }
+            return tier;
+        }
+
+        private static int getLargeTierCapacity(final int tier) {
+            return Math.min(MAX_PUSH_PAYLOAD_SIZE << (tier + 1), MAX_PULL_PAYLOAD_SIZE);
+        }
+
+        private static int getStartSlot(final int poolSize) {
+            return (int) (Thread.currentThread().getId() % poolSize);
+        }
+
+        private static void setPoolSize(final int poolSize) {
+            final int newSize = Math.max(0, Math.min(poolSize, MAX_POOL_CAPACITY));
+            sPoolSize = newSize;
+            // Drop Buffers held in slots that are no longer part of the pool.
+            for (int i = newSize; i < MAX_POOL_CAPACITY; i++) {
+                sPool.set(i, null);
+            }
+        }
+
         private Buffer() {
+            // On runtimes where direct buffers are backed by a non-movable Java array, keep the
+            // direct buffer so that native code can read mBytes without copying it.
             final ByteBuffer tempBuffer = ByteBuffer.allocateDirect(MAX_PUSH_PAYLOAD_SIZE);
-            mBytes = tempBuffer.hasArray() ? tempBuffer.array() : new byte [MAX_PUSH_PAYLOAD_SIZE];
+            if (tempBuffer.hasArray() && 0 == tempBuffer.arrayOffset()) {
+                mBytes = tempBuffer.array();
+                mDirectBuffer = tempBuffer;
+            } else {
+                mBytes = new byte[MAX_PUSH_PAYLOAD_SIZE];
+                mDirectBuffer = null;
+            }
+            sAllocations.increment();
+        }
+
+        private Buffer(final int capacity) {
+            mBytes = new byte[capacity];
+            mDirectBuffer = null;
+            sAllocations.increment();
         }
 
         @NonNull
@@ -868,14 +1329,22 @@ public final class StatsEvent {
             return mBytes;
         }
 
+        @Nullable
+        private ByteBuffer getDirectBuffer() {
+            return mDirectBuffer;
+        }
+
         private void release() {
-            // Recycle this Buffer if its size is MAX_PUSH_PAYLOAD_SIZE or under.
+            // Buffers of MAX_PUSH_PAYLOAD_SIZE or under are recycled for any event, larger ones
+            // only for events expected to need them.
             if (mBytes.length <= MAX_PUSH_PAYLOAD_SIZE) {
-                synchronized (sLock) {
-                    if (null == sPool) {
-                        sPool = this;
-                    }
+                if (null == sThreadBuffer.get()) {
+                    sThreadBuffer.set(this);
+                } else {
+                    returnToPool(this);
                 }
+            } else {
+                returnToLargePool(this);
             }
         }
 
@@ -922,6 +1391,8 @@ public final class StatsEvent {
                 }
 
                 mBytes = Arrays.copyOf(mBytes, newSize);
+                mDirectBuffer = null;
+                sAllocations.increment();
             }
 
             return true;
@@ -1006,6 +1477,127 @@ public final class StatsEvent {
             return putInt(index, Float.floatToIntBits(value));
         }
 
+        /**
+         * Writes a String into the buffer as the 4-byte number of bytes of its UTF-8 encoding,
+         * followed by the UTF-8 encoding. A null String is written as an empty String.
+         *
+         * @param index position in the buffer where the String is written.
+         * @param value the String to write.
+         * @return number of bytes written to buffer from this write operation.
+         **/
+        private int putString(final int index, @Nullable final String value) {
+            final String str = null == value ? "" : value;
+            final int start = index + Integer.BYTES;
+            final int numBytes;
+            if (start + str.length() * 3 <= mBytes.length) {
+                // Each char takes at most 3 bytes, so the encoding fits in the current array.
+                // Encode after a placeholder length, then backpatch the length.
+                numBytes = encodeUtf8(str, start);
+                if (!hasEnoughSpace(index, Integer.BYTES + numBytes)) {
+                    return 0;
+                }
+            } else {
+                // Only grow the array by what the encoding actually needs.
+                numBytes = getUtf8Length(str);
+                if (!hasEnoughSpace(index, Integer.BYTES + numBytes)) {
+                    return 0;
+                }
+                encodeUtf8(str, start);
+            }
+            putInt(index, numBytes);
+            return Integer.BYTES + numBytes;
+        }
+
+        /**
+         * Same as {@link #putString(int, String)}, but reuses the cached UTF-8 encoding of value
+         * if there is one, and caches it otherwise.
+         **/
+        private int putCachedString(final int index, @Nullable final String value) {
+            final String str = null == value ? "" : value;
+            if (str.length() > MAX_CACHED_STRING_LENGTH) {
+                return putString(index, str);
+            }
+
+            final int slot = str.hashCode() & (STRING_CACHE_SIZE - 1);
+            final CachedString cached = sStringCache[slot];
+            if (null != cached && cached.mValue.equals(str)) {
+                final int numBytes = putInt(index, cached.mBytes.length);
+                return 0 == numBytes ? 0 : numBytes + putByteArray(index + numBytes, cached.mBytes);
+            }
+
+            final int numBytes = putString(index, str);
+            if (numBytes > 0) {
+                sStringCache[slot] = new CachedString(str, Arrays.copyOfRange(
+                        mBytes, index + Integer.BYTES, index + numBytes));
+            }
+            return numBytes;
+        }
+
+        /**
+         * Encodes value as UTF-8 into mBytes, starting at index. The caller must ensure that
+         * mBytes has room for the encoding. Unpaired surrogates are encoded as '?', like
+         * {@link String#getBytes(java.nio.charset.Charset)} does.
+         *
+         * @return number of bytes written.
+         **/
+        private int encodeUtf8(@NonNull final String value, final int index) {
+            final byte[] bytes = mBytes;
+            final int numChars = value.length();
+            int pos = index;
+            for (int i = 0; i < numChars; i++) {
+                final char c = value.charAt(i);
+                if (c < 0x80) {
+                    bytes[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[pos++] = (byte) (0xC0 | (c >> 6));
+                    bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    final char next = i + 1 < numChars ? value.charAt(i + 1) : 0;
+                    if (Character.isHighSurrogate(c) && Character.isLowSurrogate(next)) {
+                        final int codePoint = Character.toCodePoint(c, next);
+                        bytes[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                        bytes[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                        bytes[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                        bytes[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+                        i++;
+                    } else {
+                        bytes[pos++] = (byte) '?';
+                    }
+                } else {
+                    bytes[pos++] = (byte) (0xE0 | (c >> 12));
+                    bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            return pos - index;
+        }
+
+        /**
+         * Returns the number of bytes in the UTF-8 encoding of value, as written by
+         * {@link #encodeUtf8(String, int)}.
+         **/
+        private static int getUtf8Length(@NonNull final String value) {
+            final int numChars = value.length();
+            int numBytes = 0;
+            for (int i = 0; i < numChars; i++) {
+                final char c = value.charAt(i);
+                if (c < 0x80) {
+                    numBytes += 1;
+                } else if (c < 0x800) {
+                    numBytes += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < numChars
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    numBytes += 4;
+                    i++;
+                } else if (Character.isSurrogate(c)) {
+                    numBytes += 1;
+                } else {
+                    numBytes += 3;
+                }
+            }
+            return numBytes;
+        }
+
         /**
          * Copies a byte array into the buffer.
          *
@@ -1022,4 +1614,56 @@ public final class StatsEvent {
             return 0;
         }
     }
+
+    /**
+     * Remembers the size of recently built large atoms, so that Builders for these atoms can
+     * start with a buffer that is large enough instead of growing it field by field.
+     **/
+    private static final class AtomSizeEstimator {
+        private static final int NUM_SLOTS = 128;
+
+        // Direct-mapped by atom id. Each slot packs an atom id in the upper 32 bits and its
+        // estimated size in the lower 32 bits, so that both are read and written atomically.
+        private static final AtomicLongArray sSlots = new AtomicLongArray(NUM_SLOTS);
+
+        /**
+         * Returns the estimated size of atomId in bytes, or 0 if there is no estimate.
+         **/
+        static int getEstimate(final int atomId) {
+            final long entry = sSlots.get(atomId & (NUM_SLOTS - 1));
+            return (int) (entry >>> 32) == atomId ? (int) entry : 0;
+        }
+
+        static void record(final int atomId, final int size) {
+            final int slot = atomId & (NUM_SLOTS - 1);
+            final long entry = sSlots.get(slot);
+            final int previous = (int) (entry >>> 32) == atomId ? (int) entry : 0;
+
+            // Grow the estimate right away, but only shrink it by a quarter of the difference
+            // per build so that occasional small builds do not undo it.
+            int estimate = size;
+            if (previous > size) {
+                estimate = previous - (previous - size) / 4;
+            }
+
+            if (estimate > MAX_PUSH_PAYLOAD_SIZE) {
+                if (estimate != previous) {
+                    sSlots.set(slot, ((long) atomId << 32) | estimate);
+                }
+            } else if (0 != previous) {
+                // Small enough for a regular Buffer.
+                sSlots.set(slot, 0L);
+            }
+        }
+    }
+
+    private static final class CachedString {
+        private final String mValue;
+        private final byte[] mBytes;
+
+        CachedString(@NonNull final String value, @NonNull final byte[] bytes) {
+            mValue = value;
+            mBytes = bytes;
+        }
+    }
 }
@@ -29,8 +29,11 @@ import android.os.IStatsd;
 import android.os.Process;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.statsd.StatsdStatsLog;
 
+import java.nio.ByteBuffer;
+
 /**
  * StatsLog provides an API for developers to send events to statsd. The events can be used to
  * define custom metrics inside statsd.
@@ -45,6 +48,14 @@ public final class StatsLog {
     private static final boolean DEBUG = false;
     private static final int EXPERIMENT_IDS_FIELD_ID = 1;
 
+    private static final Object sAsyncWriterLock = new Object();
+
+    // Created on first use of the asynchronous mode.
+    @GuardedBy("sAsyncWriterLock")
+    private static StatsLogAsyncWriter sAsyncWriter;
+
+    private static volatile StatsLogAsyncWriter sActiveAsyncWriter;
+
     /**
     * Annotation ID constant for logging UID field.
     *
@@ -237,6 +248,15 @@ public final class StatsLog {
      */
     private static native void writeImpl(@NonNull byte[] buffer, int size, int atomId);
 
+    /**
+     * Write an event to stats log using the raw format stored in a direct buffer.
+     *
+     * @param buffer    The direct buffer containing the encoded data to write.
+     * @param size      The number of bytes from the buffer to write.
+     * @param atomId    The id of the atom to which the event belongs.
+     */
+    private static native void writeDirectImpl(@NonNull ByteBuffer buffer, int size, int atomId);
+
     /**
      * Write an event to stats log using the raw format encapsulated in StatsEvent.
      * After writing to stats log, release() is called on the StatsEvent object.
@@ -247,7 +267,115 @@ public final class StatsLog {
      */
     @SystemApi
     public static void write(@NonNull final StatsEvent statsEvent) {
-        writeImpl(statsEvent.getBytes(), statsEvent.getNumBytes(), statsEvent.getAtomId());
+        final StatsLogAsyncWriter asyncWriter = sActiveAsyncWriter;
+        if (asyncWriter != null) {
+            // The event is copied, or dropped if the writer is backed up.
+            asyncWriter.offer(
+                    statsEvent.getBytes(), statsEvent.getNumBytes(), statsEvent.getAtomId());
+            statsEvent.release();
+            return;
+        }
+
+        final ByteBuffer directBuffer = statsEvent.getDirectBuffer();
+        if (directBuffer != null) {
+            writeDirectImpl(directBuffer, statsEvent.getNumBytes(), statsEvent.getAtomId());
+        } else {
+            writeImpl(statsEvent.getBytes(), statsEvent.getNumBytes(), statsEvent.getAtomId());
+        }
         statsEvent.release();
     }
+
+    /**
+     * Write several events to stats log using the raw format encapsulated in StatsEvent, with a
+     * single transition into native code. The events are sent to statsd with as few socket writes
+     * as possible.
+     * After writing to stats log, release() is called on each written StatsEvent object.
+     * No further action should be taken on these StatsEvent objects following this call.
+     *
+     * @param statsEvents   The StatsEvent objects containing the encoded buffers of data to write.
+     * @param count         The number of StatsEvent objects from the start of statsEvents to write.
+     * @hide
+     */
+    @SystemApi
+    public static void writeBatch(@NonNull final StatsEvent[] statsEvents, final int count) {
+        if (count < 0 || count > statsEvents.length) {
+            throw new IllegalArgumentException(
+                    "count " + count + " is out of range for " + statsEvents.length + " events");
+        }
+        final byte[][] buffers = new byte[count][];
+        final int[] sizes = new int[count];
+        final int[] atomIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            buffers[i] = statsEvents[i].getBytes();
+            sizes[i] = statsEvents[i].getNumBytes();
+            atomIds[i] = statsEvents[i].getAtomId();
+        }
+        writeBatchImpl(buffers, sizes, atomIds, count);
+        for (int i = 0; i < count; i++) {
+            statsEvents[i].release();
+        }
+    }
+
+    /**
+     * Enables or disables asynchronous writes for this process.
+     *
+     * <p>While enabled, {@link #write(StatsEvent)} copies the event into a bounded ring buffer
+     * and returns without making any socket call. A single background thread sends the buffered
+     * events to statsd in batches. If the ring buffer stays full, events are dropped; see
+     * {@link #getAsyncWriteDropCount()}. Events buffered when this is disabled are still
+     * sent.</p>
+     *
+     * @param enabled    Whether to write events asynchronously.
+     * @hide
+     */
+    public static void setAsyncWriteEnabled(final boolean enabled) {
+        synchronized (sAsyncWriterLock) {
+            if (enabled && sAsyncWriter == null) {
+                sAsyncWriter = new StatsLogAsyncWriter();
+            }
+            sActiveAsyncWriter = enabled ? sAsyncWriter : null;
+        }
+    }
+
+    /**
+     * Returns the number of events dropped because the asynchronous writer was backed up.
+     *
+     * @hide
+     */
+    public static long getAsyncWriteDropCount() {
+        synchronized (sAsyncWriterLock) {
+            return sAsyncWriter == null ? 0 : sAsyncWriter.getDropCount();
+        }
+    }
+
+    /**
+     * Returns the number of asynchronous writes that found the ring buffer full and had to wait
+     * for the background thread, whether or not the event was eventually dropped.
+     *
+     * @hide
+     */
+    public static long getAsyncWriteBackpressureCount() {
+        synchronized (sAsyncWriterLock) {
+            return sAsyncWriter == null ? 0 : sAsyncWriter.getBackpressureCount();
+        }
+    }
+
+    /**
+     * Write several events to stats log using the raw format.
+     *
+     * @param buffers   The encoded buffers of data to write.
+     * @param sizes     The number of bytes from each buffer to write.
+     * @param atomIds   The id of the atom to which each event belongs.
+     * @param count     The number of events to write.
+     */
+    static native void writeBatchImpl(@NonNull byte[][] buffers, @NonNull int[] sizes,
+            @NonNull int[] atomIds, int count);
+
+    /**
+     * Records an event dropped before reaching the socket, so that statsd is told about it with
+     * the next event written, like the events the socket fails to send.
+     *
+     * @param atomId    The id of the atom to which the dropped event belongs.
+     */
+    static native void noteDropImpl(int atomId);
 }
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import android.annotation.NonNull;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Takes StatsLog writes off the calling thread.
+ *
+ * <p>Callers copy encoded events into a bounded ring buffer, and a single drain thread sends
+ * them to statsd in batches. The ring supports any number of producers without locking: a
+ * producer claims a slot by advancing the tail with a compare-and-set, and publishes it by
+ * advancing the slot's sequence number, which the drain thread waits for.</p>
+ *
+ * <p>Dropped events are reported to statsd like the events the socket fails to send.</p>
+ *
+ * @hide
+ */
+final class StatsLogAsyncWriter {
+    private static final String TAG = "StatsLogAsyncWriter";
+
+    // Must be a power of 2.
+    @VisibleForTesting
+    static final int CAPACITY = 256;
+
+    // Maximum number of events sent to statsd in one batch.
+    private static final int MAX_BATCH_SIZE = 64;
+
+    // Slots keep their payload array for the next lap only up to this size, so that a few large
+    // events do not leave every slot holding a large array.
+    @VisibleForTesting
+    static final int MAX_RETAINED_PAYLOAD_BYTES = 256;
+
+    /**
+     * Where the drained events go.
+     */
+    @VisibleForTesting
+    interface Sink {
+        void writeBatch(byte[][] payloads, int[] sizes, int[] atomIds, int count);
+
+        void noteDrop(int atomId);
+    }
+
+    private static final Sink STATSD_SINK = new Sink() {
+        @Override
+        public void writeBatch(byte[][] payloads, int[] sizes, int[] atomIds, int count) {
+            StatsLog.writeBatchImpl(payloads, sizes, atomIds, count);
+        }
+
+        @Override
+        public void noteDrop(int atomId) {
+            StatsLog.noteDropImpl(atomId);
+        }
+    };
+
+    private final Sink mSink;
+
+    private final AtomicLong mTail = new AtomicLong();
+    // Sequence number of each slot: equal to the position a producer may claim, or to that
+    // position + 1 once the event at that position is published.
+    private final AtomicLongArray mSequences = new AtomicLongArray(CAPACITY);
+    // Slot payloads, only accessed by the thread that owns the slot as per mSequences.
+    private final byte[][] mPayloads = new byte[CAPACITY][];
+    private final int[] mSizes = new int[CAPACITY];
+    private final int[] mAtomIds = new int[CAPACITY];
+
+    // Only accessed by the drain thread.
+    private long mHead = 0;
+    private final byte[][] mBatchPayloads = new byte[MAX_BATCH_SIZE][];
+    private final int[] mBatchSizes = new int[MAX_BATCH_SIZE];
+    private final int[] mBatchAtomIds = new int[MAX_BATCH_SIZE];
+
+    private final Thread mDrainThread;
+    private volatile boolean mDrainThreadParked = false;
+
+    private final LongAdder mDropCount = new LongAdder();
+    private final LongAdder mBackpressureCount = new LongAdder();
+
+    StatsLogAsyncWriter() {
+        this(STATSD_SINK);
+    }
+
+    @VisibleForTesting
+    StatsLogAsyncWriter(@NonNull Sink sink) {
+        mSink = sink;
+        for (int i = 0; i < CAPACITY; i++) {
+            mSequences.set(i, i);
+        }
+        mDrainThread = new Thread(this::drainLoop, "StatsLogWriter");
+        mDrainThread.setDaemon(true);
+        mDrainThread.start();
+    }
+
+    /**
+     * Copies the encoded event into the ring buffer.
+     *
+     * @return false if the event was dropped because the ring buffer stayed full.
+     */
+    boolean offer(@NonNull final byte[] payload, final int size, final int atomId) {
+        long pos = claimSlot();
+        if (pos < 0) {
+            // Let the drain thread catch up once before giving up on the event.
+            mBackpressureCount.increment();
+            wakeDrainThread();
+            Thread.yield();
+            pos = claimSlot();
+            if (pos < 0) {
+                mDropCount.increment();
+                mSink.noteDrop(atomId);
+                return false;
+            }
+        }
+
+        final int index = (int) (pos & (CAPACITY - 1));
+        byte[] slotPayload = mPayloads[index];
+        if (null == slotPayload || slotPayload.length < size) {
+            slotPayload = new byte[size];
+            mPayloads[index] = slotPayload;
+        }
+        System.arraycopy(payload, 0, slotPayload, 0, size);
+        mSizes[index] = size;
+        mAtomIds[index] = atomId;
+        mSequences.set(index, pos + 1);
+
+        if (mDrainThreadParked) {
+            wakeDrainThread();
+        }
+        return true;
+    }
+
+    long getDropCount() {
+        return mDropCount.sum();
+    }
+
+    long getBackpressureCount() {
+        return mBackpressureCount.sum();
+    }
+
+    /**
+     * Claims the next free slot.
+     *
+     * @return the claimed position, or -1 if the ring buffer is full.
+     */
+    private long claimSlot() {
+        while (true) {
+            final long pos = mTail.get();
+            final long sequence = mSequences.get((int) (pos & (CAPACITY - 1)));
+            if (sequence == pos) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+            } else if (sequence < pos) {
+                // The slot still holds an event from the previous lap.
+                return -1;
+            }
+            // Another producer claimed pos, retry with the new tail.
+        }
+    }
+
+    private void wakeDrainThread() {
+        LockSupport.unpark(mDrainThread);
+    }
+
+    private void drainLoop() {
+        while (true) {
+            final int count = collectBatch();
+            if (0 == count) {
+                mDrainThreadParked = true;
+                // Check again, in case an event was published before the flag was set.
+                if (!isNextSlotPublished()) {
+                    LockSupport.park(this);
+                }
+                mDrainThreadParked = false;
+                continue;
+            }
+
+            try {
+                mSink.writeBatch(mBatchPayloads, mBatchSizes, mBatchAtomIds, count);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to write " + count + " events", e);
+            }
+
+            // Hand the slots back to the producers for the next lap.
+            for (int i = 0; i < count; i++) {
+                final int index = (int) (mHead & (CAPACITY - 1));
+                if (mBatchPayloads[i].length > MAX_RETAINED_PAYLOAD_BYTES) {
+                    mPayloads[index] = null;
+                }
+                mBatchPayloads[i] = null;
+                mSequences.set(index, mHead + CAPACITY);
+                mHead++;
+            }
+        }
+    }
+
+    private boolean isNextSlotPublished() {
+        return mSequences.get((int) (mHead & (CAPACITY - 1))) == mHead + 1;
+    }
+
+    /**
+     * Collects up to MAX_BATCH_SIZE consecutive published events, starting at the head.
+     *
+     * @return number of events collected.
+     */
+    private int collectBatch() {
+        int count = 0;
+        while (count < MAX_BATCH_SIZE) {
+            final long pos = mHead + count;
+            final int index = (int) (pos & (CAPACITY - 1));
+            if (mSequences.get(index) != pos + 1) {
+                break;
+            }
+            mBatchPayloads[count] = mPayloads[index];
+            mBatchSizes[count] = mSizes[index];
+            mBatchAtomIds[count] = mAtomIds[index];
+            count++;
+        }
+        return count;
+    }
+}
@@ -17,6 +17,7 @@
 #define LOG_NAMESPACE "StatsLog.tag."
 #define LOG_TAG "StatsLog_println"
 
+#include <errno.h>
 #include <jni.h>
 #include <log/log.h>
 #include <nativehelper/scoped_local_ref.h>
@@ -24,6 +25,21 @@
 
 namespace android {
 
+// Writes the first size bytes of buf to statsd. buf must be at least size bytes long.
+static void writeArray(JNIEnv* env, jbyteArray buf, jint size, jint atomId) {
+    // Avoids copying the array on runtimes where GetByteArrayElements would. The critical
+    // section covers a single event write, which makes no JNI calls. It only waits on another
+    // thread while the socket is opened after being closed, as reconnects use a trylock.
+    void* bufferArray = env->GetPrimitiveArrayCritical(buf, NULL);
+    if (bufferArray == NULL) {
+        return;
+    }
+
+    write_buffer_to_statsd(bufferArray, size, atomId);
+
+    env->ReleasePrimitiveArrayCritical(buf, bufferArray, JNI_ABORT);
+}
+
 static void android_util_StatsLog_write(JNIEnv* env, jobject clazz, jbyteArray buf, jint size,
         jint atomId) {
     if (buf == NULL) {
@@ -34,14 +50,105 @@ static void android_util_StatsLog_write(JNIEnv* env, jobject clazz, jbyteArray b
         return;
     }
 
-    jbyte* bufferArray = env->GetByteArrayElements(buf, NULL);
-    if (bufferArray == NULL) {
+    writeArray(env, buf, size, atomId);
+}
+
+static void android_util_StatsLog_writeDirect(JNIEnv* env, jobject clazz, jobject buf, jint size,
+        jint atomId) {
+    if (buf == NULL) {
+        return;
+    }
+    jlong capacity = env->GetDirectBufferCapacity(buf);
+    if (capacity < size) {
+        return;
+    }
+
+    void* bufferAddress = env->GetDirectBufferAddress(buf);
+    if (bufferAddress == NULL) {
+        return;
+    }
+
+    write_buffer_to_statsd(bufferAddress, size, atomId);
+}
+
+// Maximum number of events whose buffers are held at once while writing a batch.
+static const jint kMaxBatchSize = 64;
+
+static void android_util_StatsLog_writeBatch(JNIEnv* env, jobject clazz, jobjectArray bufs,
+        jintArray sizes, jintArray atomIds, jint count) {
+    if (bufs == NULL || sizes == NULL || atomIds == NULL || count <= 0) {
+        return;
+    }
+    if (env->GetArrayLength(bufs) < count || env->GetArrayLength(sizes) < count
+            || env->GetArrayLength(atomIds) < count) {
         return;
     }
 
-    write_buffer_to_statsd((void*) bufferArray, size, atomId);
+    jint sizesArray[kMaxBatchSize];
+    jint atomIdsArray[kMaxBatchSize];
+    jbyteArray bufRefs[kMaxBatchSize];
+    void* buffers[kMaxBatchSize];
+    size_t bufferSizes[kMaxBatchSize];
+    uint32_t bufferAtomIds[kMaxBatchSize];
+
+    for (jint start = 0; start < count; start += kMaxBatchSize) {
+        const jint batchSize = count - start < kMaxBatchSize ? count - start : kMaxBatchSize;
+        env->GetIntArrayRegion(sizes, start, batchSize, sizesArray);
+        env->GetIntArrayRegion(atomIds, start, batchSize, atomIdsArray);
+
+        // Collect the arrays first, since no other JNI calls can be made while the arrays are
+        // held in critical sections.
+        jint numBuffers = 0;
+        for (jint i = 0; i < batchSize; i++) {
+            jbyteArray buf = (jbyteArray) env->GetObjectArrayElement(bufs, start + i);
+            if (buf == NULL) {
+                continue;
+            }
+            if (env->GetArrayLength(buf) < sizesArray[i]) {
+                env->DeleteLocalRef(buf);
+                continue;
+            }
+            bufRefs[numBuffers] = buf;
+            bufferSizes[numBuffers] = sizesArray[i];
+            bufferAtomIds[numBuffers] = atomIdsArray[i];
+            numBuffers++;
+        }
+
+        jint numCritical = 0;
+        for (; numCritical < numBuffers; numCritical++) {
+            buffers[numCritical] = env->GetPrimitiveArrayCritical(bufRefs[numCritical], NULL);
+            if (buffers[numCritical] == NULL) {
+                break;
+            }
+        }
+
+        // Only the batch send, which never waits on other threads, runs with all the arrays
+        // held. The events it did not send are written one by one once they are released, as
+        // that may reopen the socket.
+        const jint numSent = write_batch_to_statsd(buffers, bufferSizes, numCritical);
+
+        for (jint i = numCritical - 1; i >= 0; i--) {
+            env->ReleasePrimitiveArrayCritical(bufRefs[i], buffers[i], JNI_ABORT);
+        }
+        if (numCritical < numBuffers) {
+            // An exception is pending, so only the local refs can be released. The events that
+            // were not sent by the batch, and the rest of the batch, are dropped.
+            for (jint i = 0; i < numBuffers; i++) {
+                env->DeleteLocalRef(bufRefs[i]);
+            }
+            return;
+        }
+        for (jint i = numSent; i < numCritical; i++) {
+            writeArray(env, bufRefs[i], bufferSizes[i], bufferAtomIds[i]);
+        }
+        for (jint i = 0; i < numBuffers; i++) {
+            env->DeleteLocalRef(bufRefs[i]);
+        }
+    }
+}
 
-    env->ReleaseByteArrayElements(buf, bufferArray, 0);
+static void android_util_StatsLog_noteDrop(JNIEnv* env, jobject clazz, jint atomId) {
+    note_log_drop(-EAGAIN, atomId);
 }
 
 /*
@@ -50,6 +157,9 @@ static void android_util_StatsLog_write(JNIEnv* env, jobject clazz, jbyteArray b
 static const JNINativeMethod gMethods[] = {
     /* name, signature, funcPtr */
     { "writeImpl", "([BII)V", (void*) android_util_StatsLog_write },
+    { "writeDirectImpl", "(Ljava/nio/ByteBuffer;II)V", (void*) android_util_StatsLog_writeDirect },
+    { "writeBatchImpl", "([[B[I[II)V", (void*) android_util_StatsLog_writeBatch },
+    { "noteDropImpl", "(I)V", (void*) android_util_StatsLog_noteDrop },
 };
 
 int register_android_util_StatsLog(JNIEnv* env)
@@ -18,6 +18,8 @@ package android.app;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.junit.Assert.assertThrows;
+
 import android.app.StatsManager.PullAtomMetadata;
 
 import androidx.test.filters.SmallTest;
@@ -36,6 +38,9 @@ public final class PullAtomMetadataTest {
         assertThat(metadata.getTimeoutMillis()).isEqualTo(StatsManager.DEFAULT_TIMEOUT_MILLIS);
         assertThat(metadata.getCoolDownMillis()).isEqualTo(StatsManager.DEFAULT_COOL_DOWN_MILLIS);
         assertThat(metadata.getAdditiveFields()).isNull();
+        assertThat(metadata.isResultCacheEnabled()).isFalse();
+        assertThat(metadata.getMaxConcurrentPulls())
+                .isEqualTo(StatsManager.DEFAULT_MAX_CONCURRENT_PULLS);
     }
 
     @Test
@@ -68,6 +73,30 @@ public final class PullAtomMetadataTest {
         assertThat(metadata.getAdditiveFields()).isEqualTo(fields);
     }
 
+    @Test
+    public void testSetResultCacheEnabled() {
+        PullAtomMetadata metadata =
+                new PullAtomMetadata.Builder().setResultCacheEnabled(true).build();
+        assertThat(metadata.getTimeoutMillis()).isEqualTo(StatsManager.DEFAULT_TIMEOUT_MILLIS);
+        assertThat(metadata.getCoolDownMillis()).isEqualTo(StatsManager.DEFAULT_COOL_DOWN_MILLIS);
+        assertThat(metadata.getAdditiveFields()).isNull();
+        assertThat(metadata.isResultCacheEnabled()).isTrue();
+    }
+
+    @Test
+    public void testSetMaxConcurrentPulls() {
+        PullAtomMetadata metadata =
+                new PullAtomMetadata.Builder().setMaxConcurrentPulls(3).build();
+        assertThat(metadata.getTimeoutMillis()).isEqualTo(StatsManager.DEFAULT_TIMEOUT_MILLIS);
+        assertThat(metadata.getMaxConcurrentPulls()).isEqualTo(3);
+    }
+
+    @Test
+    public void testSetMaxConcurrentPullsRejectsNonPositive() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new PullAtomMetadata.Builder().setMaxConcurrentPulls(0));
+    }
+
     @Test
     public void testSetAllElements() {
         long timeoutMillis = 300L;
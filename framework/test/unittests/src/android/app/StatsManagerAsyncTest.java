@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.StatsManager.SerialExecutor;
+import android.app.StatsManager.StatsOperationCallback;
+import android.app.StatsManager.StatsUnavailableException;
+import android.os.SystemClock;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public final class StatsManagerAsyncTest {
+    private static final long WAIT_SECONDS = 5;
+    private static final int NUM_OPERATIONS = 20;
+
+    @Test
+    public void testOperationsRunInRequestOrder() throws Exception {
+        final List<Integer> runOrder = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> resultOrder = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(NUM_OPERATIONS);
+        final SerialExecutor operationExecutor = new SerialExecutor();
+        for (int i = 0; i < NUM_OPERATIONS; i++) {
+            final int index = i;
+            // Earlier operations take longer, so that running them concurrently would reorder
+            // them.
+            final StatsOperationCallback<Integer> callback = new StatsOperationCallback<>() {
+                @Override
+                public void onResult(Integer result) {
+                    resultOrder.add(result);
+                    done.countDown();
+                }
+
+                @Override
+                public void onError(Exception error) {
+                    done.countDown();
+                }
+            };
+            StatsManager.runAsync(operationExecutor, Runnable::run, callback, () -> {
+                SystemClock.sleep(NUM_OPERATIONS - index);
+                runOrder.add(index);
+                return index;
+            });
+        }
+        assertThat(done.await(WAIT_SECONDS, TimeUnit.SECONDS)).isTrue();
+
+        List<Integer> expectedOrder = new ArrayList<>();
+        for (int i = 0; i < NUM_OPERATIONS; i++) {
+            expectedOrder.add(i);
+        }
+        assertThat(runOrder).containsExactlyElementsIn(expectedOrder).inOrder();
+        assertThat(resultOrder).containsExactlyElementsIn(expectedOrder).inOrder();
+    }
+
+    @Test
+    public void testFailureIsReportedToOnError() throws Exception {
+        final StatsUnavailableException exception = new StatsUnavailableException("test");
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final StatsOperationCallback<Void> callback = new StatsOperationCallback<>() {
+            @Override
+            public void onResult(Void result) {
+                done.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                error.set(e);
+                done.countDown();
+            }
+        };
+        StatsManager.runAsync(new SerialExecutor(), Runnable::run, callback, () -> {
+            throw exception;
+        });
+        assertThat(done.await(WAIT_SECONDS, TimeUnit.SECONDS)).isTrue();
+        assertThat(error.get()).isSameInstanceAs(exception);
+    }
+
+    @Test
+    public void testSlowOperationDoesNotBlockOtherInstances() throws Exception {
+        final CountDownLatch unblock = new CountDownLatch(1);
+        final CountDownLatch slowDone = new CountDownLatch(1);
+        final CountDownLatch fastDone = new CountDownLatch(1);
+        try {
+            StatsManager.runAsync(new SerialExecutor(), Runnable::run,
+                    countingCallback(slowDone), () -> {
+                        try {
+                            unblock.await(WAIT_SECONDS, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return null;
+                    });
+            StatsManager.runAsync(new SerialExecutor(), Runnable::run,
+                    countingCallback(fastDone), () -> null);
+
+            assertThat(fastDone.await(WAIT_SECONDS, TimeUnit.SECONDS)).isTrue();
+            assertThat(slowDone.getCount()).isEqualTo(1);
+        } finally {
+            unblock.countDown();
+        }
+        assertThat(slowDone.await(WAIT_SECONDS, TimeUnit.SECONDS)).isTrue();
+    }
+
+    private static StatsOperationCallback<Void> countingCallback(CountDownLatch done) {
+        return new StatsOperationCallback<Void>() {
+            @Override
+            public void onResult(Void result) {
+                done.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                done.countDown();
+            }
+        };
+    }
+}
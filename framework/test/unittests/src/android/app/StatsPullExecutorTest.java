@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public final class StatsPullExecutorTest {
+    private static final long WAIT_SECONDS = 5;
+    private static final long MAX_QUEUE_MILLIS = 10_000;
+    private static final int MAX_THREADS = 4;
+
+    @Test
+    public void testThrowingPullFailsAndReleasesAtom() throws Exception {
+        final int atomTag = 100001;
+        final StatsPullExecutor executor = StatsPullExecutor.getInstance();
+        final CountDownLatch failed = new CountDownLatch(1);
+        executor.execute(atomTag, /*maxConcurrentPulls=*/ 1, MAX_QUEUE_MILLIS,
+                () -> {
+                    throw new IllegalStateException("pull threw");
+                },
+                failed::countDown);
+        assertThat(failed.await(WAIT_SECONDS, TimeUnit.SECONDS)).isTrue();
+
+        // The next pull of the atom still runs.
+        final CountDownLatch pulled = new CountDownLatch(1);
+        executor.execute(atomTag, /*maxConcurrentPulls=*/ 1, MAX_QUEUE_MILLIS, pulled::countDown,
+                () -> {});
+        assertThat(pulled.await(WAIT_SECONDS, TimeUnit.SECONDS)).isTrue();
+        assertThat(executor.getSkippedPullCount(atomTag)).isEqualTo(0);
+    }
+
+    @Test
+    public void testThrowingFailDoesNotStopNextPull() throws Exception {
+        final int atomTag = 100002;
+        final StatsPullExecutor executor = StatsPullExecutor.getInstance();
+        executor.execute(atomTag, /*maxConcurrentPulls=*/ 1, MAX_QUEUE_MILLIS,
+                () -> {
+                    throw new IllegalStateException("pull threw");
+                },
+                () -> {
+                    throw new IllegalStateException("fail threw");
+                });
+
+        final CountDownLatch pulled = new CountDownLatch(1);
+        executor.execute(atomTag, /*maxConcurrentPulls=*/ 1, MAX_QUEUE_MILLIS, pulled::countDown,
+                () -> {});
+        assertThat(pulled.await(WAIT_SECONDS, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void testPullQueuedBehindItsAtomIsSkippedAtDeadline() throws Exception {
+        final int atomTag = 100003;
+        final StatsPullExecutor executor = StatsPullExecutor.getInstance();
+        final CountDownLatch unblock = new CountDownLatch(1);
+        try {
+            final CountDownLatch blockedPullStarted = new CountDownLatch(1);
+            executor.execute(atomTag, /*maxConcurrentPulls=*/ 1, MAX_QUEUE_MILLIS,
+                    blockingPull(blockedPullStarted, unblock), () -> {});
+            assertThat(blockedPullStarted.await(WAIT_SECONDS, TimeUnit.SECONDS)).isTrue();
+
+            // Queued behind the blocked pull of the same atom, and failed once its 10ms queue
+            // time runs out, while the blocked pull still runs.
+            final AtomicBoolean queuedPullRan = new AtomicBoolean(false);
+            final CountDownLatch queuedPullFailed = new CountDownLatch(1);
+            executor.execute(atomTag, /*maxConcurrentPulls=*/ 1, /*maxQueueMillis=*/ 10,
+                    () -> queuedPullRan.set(true), queuedPullFailed::countDown);
+
+            assertThat(queuedPullFailed.await(WAIT_SECONDS, TimeUnit.SECONDS)).isTrue();
+            assertThat(executor.getSkippedPullCount(atomTag)).isEqualTo(1);
+            unblock.countDown();
+
+            // The slot of the atom is released once the blocked pull completes.
+            final CountDownLatch pulled = new CountDownLatch(1);
+            executor.execute(atomTag, /*maxConcurrentPulls=*/ 1, MAX_QUEUE_MILLIS,
+                    pulled::countDown, () -> {});
+            assertThat(pulled.await(WAIT_SECONDS, TimeUnit.SECONDS)).isTrue();
+            assertThat(queuedPullRan.get()).isFalse();
+        } finally {
+            unblock.countDown();
+        }
+    }
+
+    @Test
+    public void testPullQueuedBehindBusyPoolIsSkippedAtDeadline() throws Exception {
+        final int firstBlockedAtomTag = 100010;
+        final int atomTag = 100004;
+        final StatsPullExecutor executor = StatsPullExecutor.getInstance();
+        final CountDownLatch unblock = new CountDownLatch(1);
+        try {
+            // Every thread of the pool runs a slow pull of another atom.
+            final CountDownLatch blockedPullsStarted = new CountDownLatch(MAX_THREADS);
+            for (int i = 0; i < MAX_THREADS; i++) {
+                executor.execute(firstBlockedAtomTag + i, /*maxConcurrentPulls=*/ 1,
+                        MAX_QUEUE_MILLIS, blockingPull(blockedPullsStarted, unblock), () -> {});
+            }
+            assertThat(blockedPullsStarted.await(WAIT_SECONDS, TimeUnit.SECONDS)).isTrue();
+
+            final AtomicBoolean queuedPullRan = new AtomicBoolean(false);
+            final CountDownLatch queuedPullFailed = new CountDownLatch(1);
+            executor.execute(atomTag, /*maxConcurrentPulls=*/ 1, /*maxQueueMillis=*/ 10,
+                    () -> queuedPullRan.set(true), queuedPullFailed::countDown);
+
+            assertThat(queuedPullFailed.await(WAIT_SECONDS, TimeUnit.SECONDS)).isTrue();
+            assertThat(executor.getSkippedPullCount(atomTag)).isEqualTo(1);
+            unblock.countDown();
+
+            // The failed pull gives back the slot of its atom once a thread takes it.
+            final CountDownLatch pulled = new CountDownLatch(1);
+            executor.execute(atomTag, /*maxConcurrentPulls=*/ 1, MAX_QUEUE_MILLIS,
+                    pulled::countDown, () -> {});
+            assertThat(pulled.await(WAIT_SECONDS, TimeUnit.SECONDS)).isTrue();
+            assertThat(queuedPullRan.get()).isFalse();
+            assertThat(executor.getSkippedPullCount(atomTag)).isEqualTo(1);
+        } finally {
+            unblock.countDown();
+        }
+    }
+
+    @Test
+    public void testPullsOfAtomRunUpToMaxConcurrentPulls() throws Exception {
+        final int atomTag = 100005;
+        final StatsPullExecutor executor = StatsPullExecutor.getInstance();
+        final CountDownLatch unblock = new CountDownLatch(1);
+        try {
+            final CountDownLatch blockedPullsStarted = new CountDownLatch(2);
+            for (int i = 0; i < 2; i++) {
+                executor.execute(atomTag, /*maxConcurrentPulls=*/ 2, MAX_QUEUE_MILLIS,
+                        blockingPull(blockedPullsStarted, unblock), () -> {});
+            }
+            // Both pulls run at the same time.
+            assertThat(blockedPullsStarted.await(WAIT_SECONDS, TimeUnit.SECONDS)).isTrue();
+
+            // A third one waits for a slot.
+            final CountDownLatch pulled = new CountDownLatch(1);
+            executor.execute(atomTag, /*maxConcurrentPulls=*/ 2, MAX_QUEUE_MILLIS,
+                    pulled::countDown, () -> {});
+            assertThat(pulled.await(100, TimeUnit.MILLISECONDS)).isFalse();
+            unblock.countDown();
+            assertThat(pulled.await(WAIT_SECONDS, TimeUnit.SECONDS)).isTrue();
+            assertThat(executor.getSkippedPullCount(atomTag)).isEqualTo(0);
+        } finally {
+            unblock.countDown();
+        }
+    }
+
+    private static Runnable blockingPull(CountDownLatch started, CountDownLatch unblock) {
+        return () -> {
+            started.countDown();
+            try {
+                unblock.await(WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+    }
+}
@@ -18,6 +18,8 @@ package android.os;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.junit.Assert.assertThrows;
+
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -120,4 +122,58 @@ public final class StatsDimensionsValueTest {
         List<StatsDimensionsValue> sdvChildren = sdv.getTupleValueList();
         assertThat(sdvChildren.size()).isEqualTo(0);
     }
+
+    @Test
+    public void testEqualsAndHashCode() {
+        StatsDimensionsValue sdv1 = new StatsDimensionsValue(createTupleParcel(100, 1, "Hello"));
+        StatsDimensionsValue sdv2 = new StatsDimensionsValue(createTupleParcel(100, 1, "Hello"));
+        StatsDimensionsValue sdv3 = new StatsDimensionsValue(createTupleParcel(100, 1, "World"));
+
+        assertThat(sdv1).isEqualTo(sdv2);
+        assertThat(sdv1.hashCode()).isEqualTo(sdv2.hashCode());
+        assertThat(sdv1).isNotEqualTo(sdv3);
+        assertThat(sdv1.toString()).isEqualTo("100:{1:Hello|}");
+        assertThat(sdv1.toString()).isSameInstanceAs(sdv1.toString());
+
+        // Parceling preserves the value.
+        Parcel parcel = Parcel.obtain();
+        sdv1.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        assertThat(StatsDimensionsValue.CREATOR.createFromParcel(parcel)).isEqualTo(sdv1);
+        parcel.recycle();
+    }
+
+    @Test
+    public void testTupleValueListIsACopy() {
+        StatsDimensionsValue sdv = new StatsDimensionsValue(createTupleParcel(100, 1, "Hello"));
+
+        List<StatsDimensionsValue> sdvChildren = sdv.getTupleValueList();
+        assertThat(sdv.getTupleValueList()).isNotSameInstanceAs(sdvChildren);
+        sdvChildren.clear();
+        assertThat(sdv.getTupleValueList()).hasSize(1);
+    }
+
+    @Test
+    public void testUnmodifiableTupleValueListIsCached() {
+        StatsDimensionsValue sdv = new StatsDimensionsValue(createTupleParcel(100, 1, "Hello"));
+
+        List<StatsDimensionsValue> sdvChildren = sdv.getUnmodifiableTupleValueList();
+        assertThat(sdv.getUnmodifiableTupleValueList()).isSameInstanceAs(sdvChildren);
+        assertThat(sdvChildren).isEqualTo(sdv.getTupleValueList());
+        assertThrows(UnsupportedOperationException.class, () -> sdvChildren.clear());
+    }
+
+    private static StatsDimensionsValueParcel createTupleParcel(int tupleField, int field,
+            String stringValue) {
+        StatsDimensionsValueParcel child = new StatsDimensionsValueParcel();
+        child.field = field;
+        child.valueType = StatsDimensionsValue.STRING_VALUE_TYPE;
+        child.stringValue = stringValue;
+
+        StatsDimensionsValueParcel parcel = new StatsDimensionsValueParcel();
+        parcel.field = tupleField;
+        parcel.valueType = StatsDimensionsValue.TUPLE_VALUE_TYPE;
+        parcel.tupleValue = new StatsDimensionsValueParcel[] {child};
+        return parcel;
+    }
 }
@@ -27,6 +27,9 @@ import com.android.modules.utils.build.SdkLevel;
 import com.google.common.collect.Range;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -1097,6 +1100,217 @@ public class StatsEventTest {
         statsEvent.release();
     }
 
+    @Test
+    public void testBufferPoolReusesReleasedBuffer() {
+        // Warm up the buffer cached for this thread.
+        StatsEvent.newBuilder().setAtomId(10_020).usePooledBuffer().build().release();
+
+        final long hitsBefore = StatsEvent.getBufferPoolHitCount();
+        final long allocationsBefore = StatsEvent.getBufferAllocationCount();
+
+        for (int i = 0; i < 10; i++) {
+            final StatsEvent statsEvent = StatsEvent.newBuilder()
+                                                  .setAtomId(10_020)
+                                                  .writeInt(i)
+                                                  .usePooledBuffer()
+                                                  .build();
+            statsEvent.release();
+        }
+
+        assertThat(StatsEvent.getBufferPoolHitCount() - hitsBefore).isEqualTo(10);
+        assertThat(StatsEvent.getBufferAllocationCount()).isEqualTo(allocationsBefore);
+    }
+
+    @Test
+    public void testBufferPoolWithNestedBuilders() {
+        final StatsEvent.Builder outer = StatsEvent.newBuilder().setAtomId(10_020);
+        final StatsEvent inner =
+                StatsEvent.newBuilder().setAtomId(10_021).writeInt(2).usePooledBuffer().build();
+        final StatsEvent outerEvent = outer.writeInt(1).usePooledBuffer().build();
+
+        assertWithMessage("Concurrently built events must not share a buffer")
+                .that(inner.getBytes()).isNotSameInstanceAs(outerEvent.getBytes());
+
+        inner.release();
+        outerEvent.release();
+    }
+
+    @Test
+    public void testPooledEventDirectBuffer() {
+        final StatsEvent statsEvent = StatsEvent.newBuilder()
+                                              .setAtomId(10_020)
+                                              .writeString("foo")
+                                              .usePooledBuffer()
+                                              .build();
+
+        final ByteBuffer directBuffer = statsEvent.getDirectBuffer();
+        if (directBuffer != null) {
+            assertThat(directBuffer.isDirect()).isTrue();
+            assertThat(directBuffer.array()).isSameInstanceAs(statsEvent.getBytes());
+        }
+
+        statsEvent.release();
+    }
+
+    @Test
+    public void testReusedBuilder() {
+        final int expectedAtomId = 10_020;
+        final StatsEvent.Builder builder = StatsEvent.newBuilder().setAtomId(expectedAtomId);
+        builder.writeInt(0).usePooledBuffer().build().release();
+
+        final long allocationsBefore = StatsEvent.getBufferAllocationCount();
+        for (int i = 1; i <= 10; i++) {
+            final StatsEvent statsEvent =
+                    builder.reset(/* timestampNs= */ i).writeInt(i).usePooledBuffer().build();
+
+            assertThat(statsEvent.getAtomId()).isEqualTo(expectedAtomId);
+
+            final ByteBuffer buffer =
+                    ByteBuffer.wrap(statsEvent.getBytes()).order(ByteOrder.LITTLE_ENDIAN);
+
+            assertWithMessage("Root element in buffer is not TYPE_OBJECT")
+                    .that(buffer.get()).isEqualTo(StatsEvent.TYPE_OBJECT);
+
+            assertWithMessage("Incorrect number of elements in root object")
+                    .that(buffer.get()).isEqualTo(3);
+
+            assertWithMessage("First element is not timestamp")
+                    .that(buffer.get()).isEqualTo(StatsEvent.TYPE_LONG);
+
+            assertWithMessage("Incorrect timestamp")
+                    .that(buffer.getLong()).isEqualTo(i);
+
+            assertWithMessage("Second element is not atom id")
+                    .that(buffer.get()).isEqualTo(StatsEvent.TYPE_INT);
+
+            assertWithMessage("Incorrect atom id")
+                    .that(buffer.getInt()).isEqualTo(expectedAtomId);
+
+            assertWithMessage("First field is not Int")
+                    .that(buffer.get()).isEqualTo(StatsEvent.TYPE_INT);
+
+            assertWithMessage("Incorrect field 1")
+                    .that(buffer.getInt()).isEqualTo(i);
+
+            assertThat(statsEvent.getNumBytes()).isEqualTo(buffer.position());
+
+            statsEvent.release();
+        }
+        assertThat(StatsEvent.getBufferAllocationCount()).isEqualTo(allocationsBefore);
+
+        // setAtomId right after reset replaces the retained atom id.
+        final StatsEvent statsEvent = builder.reset().setAtomId(10_021).writeInt(1).build();
+        final StatsEvent expected = StatsEvent.newBuilder().setAtomId(10_021).writeInt(1).build();
+        assertThat(statsEvent.getAtomId()).isEqualTo(10_021);
+        assertThat(statsEvent.getNumBytes()).isEqualTo(expected.getNumBytes());
+    }
+
+    @Test
+    public void testLargePulledEventReusesBuffer() {
+        final int expectedAtomId = 10_022;
+        final byte[] field1 = new byte[15 * 1024];
+        new Random().nextBytes(field1);
+
+        // The first build grows a Buffer and teaches the size estimator about this atom.
+        final StatsEvent first = StatsEvent.newBuilder()
+                                         .setAtomId(expectedAtomId)
+                                         .setExpectedSize(field1.length + 64)
+                                         .writeByteArray(field1)
+                                         .build();
+
+        final long allocationsBefore = StatsEvent.getBufferAllocationCount();
+        final StatsEvent second = StatsEvent.newBuilder()
+                                          .setAtomId(expectedAtomId)
+                                          .writeByteArray(field1)
+                                          .build();
+
+        assertWithMessage("Large Buffer was not reused")
+                .that(StatsEvent.getBufferAllocationCount()).isEqualTo(allocationsBefore);
+        assertThat(second.getBytes()).hasLength(first.getNumBytes());
+        assertThat(second.getNumBytes()).isEqualTo(first.getNumBytes());
+    }
+
+    @Test
+    public void testArenaStoresPulledEvents() {
+        final StatsEvent.Arena arena = new StatsEvent.Arena(/* expectedSize= */ 16);
+        final List<StatsEvent> events = new ArrayList<>();
+        arena.attach();
+        try {
+            for (int i = 0; i < 20; i++) {
+                events.add(StatsEvent.newBuilder().setAtomId(10_020).writeInt(i).build());
+            }
+        } finally {
+            arena.detach();
+        }
+
+        final int[] eventSizes = arena.getEventSizes(events);
+        assertThat(eventSizes).isNotNull();
+        assertThat(eventSizes).hasLength(events.size());
+
+        final byte[] payload = arena.getPayload();
+        assertThat(payload).hasLength(arena.getSize());
+
+        int offset = 0;
+        for (int i = 0; i < events.size(); i++) {
+            final StatsEvent statsEvent = events.get(i);
+            assertThat(eventSizes[i]).isEqualTo(statsEvent.getNumBytes());
+            assertThat(statsEvent.getBytes()).isEqualTo(
+                    Arrays.copyOfRange(payload, offset, offset + eventSizes[i]));
+            offset += eventSizes[i];
+        }
+
+        // Events built after detaching are not part of the arena.
+        events.add(StatsEvent.newBuilder().setAtomId(10_020).writeInt(20).build());
+        assertThat(arena.getEventSizes(events)).isNull();
+    }
+
+    @Test
+    public void testStringEncoding() {
+        final String[] strings = new String[] {
+                "", "ascii", "caf\u00e9", "\u4e2d\u6587", "\ud83d\ude00 emoji",
+                "unpaired \ud83d", "\ude00 unpaired", null};
+        final String[] tags = new String[] {"tag", "tag", "t\u00e4g", null};
+        final int[] uids = new int[] {1, 2, 3, 4};
+
+        final StatsEvent.Builder builder = StatsEvent.newBuilder().setAtomId(10_020);
+        for (final String str : strings) {
+            builder.writeString(str);
+        }
+        // Write the chain twice so the second one is served from the tag cache.
+        builder.writeAttributionChain(uids, tags);
+        builder.writeAttributionChain(uids, tags);
+        final StatsEvent statsEvent = builder.usePooledBuffer().build();
+
+        final ByteBuffer buffer =
+                ByteBuffer.wrap(statsEvent.getBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        // Skip the header: object type, element count, timestamp and atom id.
+        buffer.position(2 + 1 + Long.BYTES + 1 + Integer.BYTES);
+
+        for (final String str : strings) {
+            assertWithMessage("Field is not String")
+                    .that(buffer.get()).isEqualTo(StatsEvent.TYPE_STRING);
+            assertWithMessage("Incorrect UTF-8 encoding of " + str)
+                    .that(getByteArrayFromByteBuffer(buffer))
+                    .isEqualTo((str == null ? "" : str).getBytes(UTF_8));
+        }
+
+        for (int chain = 0; chain < 2; chain++) {
+            assertWithMessage("Field is not Attribution Chain")
+                    .that(buffer.get()).isEqualTo(StatsEvent.TYPE_ATTRIBUTION_CHAIN);
+            assertThat(buffer.get()).isEqualTo((byte) uids.length);
+            for (int i = 0; i < tags.length; i++) {
+                assertThat(buffer.getInt()).isEqualTo(uids[i]);
+                assertWithMessage("Incorrect UTF-8 encoding of tag " + tags[i])
+                        .that(getByteArrayFromByteBuffer(buffer))
+                        .isEqualTo((tags[i] == null ? "" : tags[i]).getBytes(UTF_8));
+            }
+        }
+
+        assertThat(statsEvent.getNumBytes()).isEqualTo(buffer.position());
+
+        statsEvent.release();
+    }
+
     private static byte[] getByteArrayFromByteBuffer(final ByteBuffer buffer) {
         final int numBytes = buffer.getInt();
         byte[] bytes = new byte[numBytes];
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SystemClock;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Internal tests for {@link StatsLogAsyncWriter}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class StatsLogAsyncWriterTest {
+    private static final long WAIT_SECONDS = 5;
+
+    /**
+     * Records the events written, and can hold the drain thread in its first batch.
+     */
+    private static final class RecordingSink implements StatsLogAsyncWriter.Sink {
+        final List<byte[]> mPayloads = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> mAtomIds = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> mDroppedAtomIds = Collections.synchronizedList(new ArrayList<>());
+        final Semaphore mWritten = new Semaphore(0);
+        final CountDownLatch mUnblock;
+
+        RecordingSink(boolean blocked) {
+            mUnblock = new CountDownLatch(blocked ? 1 : 0);
+        }
+
+        @Override
+        public void writeBatch(byte[][] payloads, int[] sizes, int[] atomIds, int count) {
+            try {
+                mUnblock.await(WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (int i = 0; i < count; i++) {
+                mPayloads.add(Arrays.copyOf(payloads[i], sizes[i]));
+                mAtomIds.add(atomIds[i]);
+            }
+            mWritten.release(count);
+        }
+
+        @Override
+        public void noteDrop(int atomId) {
+            mDroppedAtomIds.add(atomId);
+        }
+
+        void awaitWritten(int count) throws InterruptedException {
+            assertThat(mWritten.tryAcquire(count, WAIT_SECONDS, TimeUnit.SECONDS)).isTrue();
+        }
+    }
+
+    private static byte[] payloadOf(int value) {
+        return new byte[] {(byte) value, (byte) (value >> 8), 0, 0};
+    }
+
+    private static void offerEvents(StatsLogAsyncWriter writer, int first, int count) {
+        for (int i = first; i < first + count; i++) {
+            // Only the first 2 bytes are written.
+            assertThat(writer.offer(payloadOf(i), 2, i)).isTrue();
+        }
+    }
+
+    private static void assertEventsWritten(RecordingSink sink, int count) {
+        assertThat(sink.mAtomIds).hasSize(count);
+        for (int i = 0; i < count; i++) {
+            assertThat(sink.mAtomIds.get(i)).isEqualTo(i);
+            assertThat(sink.mPayloads.get(i)).isEqualTo(Arrays.copyOf(payloadOf(i), 2));
+        }
+    }
+
+    @Test
+    public void testEventsAreWrittenInOrder() throws Exception {
+        final RecordingSink sink = new RecordingSink(/*blocked=*/ false);
+        final StatsLogAsyncWriter writer = new StatsLogAsyncWriter(sink);
+
+        offerEvents(writer, 0, 10);
+        sink.awaitWritten(10);
+
+        assertEventsWritten(sink, 10);
+        assertThat(writer.getDropCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testWrapAround() throws Exception {
+        final RecordingSink sink = new RecordingSink(/*blocked=*/ false);
+        final StatsLogAsyncWriter writer = new StatsLogAsyncWriter(sink);
+
+        // Half of the ring at a time, so that no event is dropped.
+        final int chunkSize = StatsLogAsyncWriter.CAPACITY / 2;
+        final int numEvents = 3 * StatsLogAsyncWriter.CAPACITY + chunkSize;
+        for (int i = 0; i < numEvents; i += chunkSize) {
+            offerEvents(writer, i, chunkSize);
+            sink.awaitWritten(chunkSize);
+        }
+
+        assertEventsWritten(sink, numEvents);
+        assertThat(writer.getDropCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testParkedDrainThreadIsWoken() throws Exception {
+        final RecordingSink sink = new RecordingSink(/*blocked=*/ false);
+        final StatsLogAsyncWriter writer = new StatsLogAsyncWriter(sink);
+
+        for (int i = 0; i < 20; i++) {
+            // Let the drain thread park before each event.
+            SystemClock.sleep(5);
+            offerEvents(writer, i, 1);
+            sink.awaitWritten(1);
+        }
+
+        assertEventsWritten(sink, 20);
+    }
+
+    @Test
+    public void testDropsWhenFull() throws Exception {
+        final RecordingSink sink = new RecordingSink(/*blocked=*/ true);
+        final StatsLogAsyncWriter writer = new StatsLogAsyncWriter(sink);
+
+        // No slot is handed back while the drain thread is held in its first batch.
+        offerEvents(writer, 0, StatsLogAsyncWriter.CAPACITY);
+        final int droppedAtomId = 100000;
+        assertThat(writer.offer(payloadOf(0), 2, droppedAtomId)).isFalse();
+
+        assertThat(writer.getDropCount()).isEqualTo(1);
+        assertThat(writer.getBackpressureCount()).isAtLeast(1);
+        assertThat(sink.mDroppedAtomIds).containsExactly(droppedAtomId);
+
+        sink.mUnblock.countDown();
+        sink.awaitWritten(StatsLogAsyncWriter.CAPACITY);
+        assertEventsWritten(sink, StatsLogAsyncWriter.CAPACITY);
+
+        // Slots are available again once drained.
+        assertThat(writer.offer(payloadOf(0), 2, droppedAtomId)).isTrue();
+    }
+
+    @Test
+    public void testLargePayloads() throws Exception {
+        final RecordingSink sink = new RecordingSink(/*blocked=*/ false);
+        final StatsLogAsyncWriter writer = new StatsLogAsyncWriter(sink);
+
+        // Slots are reused with events larger, then smaller than the retained size.
+        final byte[] large = new byte[StatsLogAsyncWriter.MAX_RETAINED_PAYLOAD_BYTES + 1];
+        Arrays.fill(large, (byte) 7);
+        for (int i = 0; i < StatsLogAsyncWriter.CAPACITY; i++) {
+            assertThat(writer.offer(large, large.length, 1)).isTrue();
+            sink.awaitWritten(1);
+        }
+        assertThat(writer.offer(payloadOf(3), 2, 2)).isTrue();
+        sink.awaitWritten(1);
+
+        assertThat(sink.mPayloads.get(0)).isEqualTo(large);
+        assertThat(sink.mPayloads.get(StatsLogAsyncWriter.CAPACITY))
+                .isEqualTo(Arrays.copyOf(payloadOf(3), 2));
+    }
+}
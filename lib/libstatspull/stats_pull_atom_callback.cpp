@@ -146,6 +146,14 @@ class StatsPullAtomCallbackInternal : public BnPullAtomCallback {
         return Status::ok();
     }
 
+    Status onPullAtomIncremental(
+            int32_t atomTag, int64_t /*cursor*/,
+            const std::shared_ptr<IPullAtomResultReceiver>& resultReceiver) override {
+        // Native pullers always return every dimension, so statsd never asks them for an
+        // incremental pull. Answer with every dimension anyway.
+        return onPullAtom(atomTag, resultReceiver);
+    }
+
     int64_t getCoolDownMillis() const { return mCoolDownMillis; }
     int64_t getTimeoutMillis() const { return mTimeoutMillis; }
     const std::vector<int32_t>& getAdditiveFields() const { return mAdditiveFields; }
@@ -25,6 +25,27 @@ extern "C" {
 void stats_log_close();
 int stats_log_is_closed();
 int write_buffer_to_statsd(void* buffer, size_t size, uint32_t atomId);
+/**
+ * Records an event dropped before it reached the socket. statsd is told about the drops with the
+ * next event written.
+ */
+void note_log_drop(int error, int atomId);
+/**
+ * Sends count encoded events to statsd in as few syscalls as possible. Unlike
+ * write_buffers_to_statsd, never reopens the socket nor reports dropped events, so it does not
+ * wait on other threads.
+ *
+ * Returns the number of events sent, which are the first ones.
+ */
+int write_batch_to_statsd(void** buffers, const size_t* sizes, size_t count);
+/**
+ * Writes count encoded events to statsd, sending as many of them as possible in a single
+ * syscall. Events that cannot be sent together are written one by one.
+ *
+ * Returns the number of events written to statsd.
+ */
+int write_buffers_to_statsd(void** buffers, const size_t* sizes, const uint32_t* atomIds,
+                            size_t count);
 #ifdef __cplusplus
 }
 #endif  // __CPLUSPLUS
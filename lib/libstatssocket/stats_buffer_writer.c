@@ -24,8 +24,12 @@ static const uint32_t kStatsEventTag = 1937006964;
 
 extern struct android_log_transport_write statsdLoggerWrite;
 
+// Maximum number of events sent to the transport in one batch.
+#define MAX_BATCH_SIZE 64
+
 static int __write_to_statsd_init(struct iovec* vec, size_t nr);
 static int (*__write_to_statsd)(struct iovec* vec, size_t nr) = __write_to_statsd_init;
+static int __write_to_stats_daemon(struct iovec* vec, size_t nr);
 
 void note_log_drop(int error, int atomId) {
     statsdLoggerWrite.noteDrop(error, atomId);
@@ -62,6 +66,73 @@ int write_buffer_to_statsd(void* buffer, size_t size, uint32_t atomId) {
     return ret;
 }
 
+static int __write_batch_to_stats_daemon(struct iovec* vecs, size_t nr, size_t count) {
+    struct timespec ts;
+    int ret, save_errno;
+
+    // Only batch once the transport has been opened by a regular write.
+    if (__write_to_statsd != __write_to_stats_daemon || !statsdLoggerWrite.writeBatch) {
+        return 0;
+    }
+
+    save_errno = errno;
+#if defined(__ANDROID__)
+    clock_gettime(CLOCK_REALTIME, &ts);
+#else
+    struct timeval tv;
+    gettimeofday(&tv, NULL);
+    ts.tv_sec = tv.tv_sec;
+    ts.tv_nsec = tv.tv_usec * 1000;
+#endif
+
+    ret = (*statsdLoggerWrite.writeBatch)(&ts, vecs, nr, count);
+    errno = save_errno;
+    return ret;
+}
+
+int write_batch_to_statsd(void** buffers, const size_t* sizes, size_t count) {
+    struct iovec vecs[2 * MAX_BATCH_SIZE];
+    size_t start, batchSize, i;
+    int numSent = 0;
+    int sent;
+
+    for (start = 0; start < count; start += batchSize) {
+        batchSize = count - start < MAX_BATCH_SIZE ? count - start : MAX_BATCH_SIZE;
+        for (i = 0; i < batchSize; i++) {
+            vecs[2 * i].iov_base = (void*)&kStatsEventTag;
+            vecs[2 * i].iov_len = sizeof(kStatsEventTag);
+            vecs[2 * i + 1].iov_base = buffers[start + i];
+            vecs[2 * i + 1].iov_len = sizes[start + i];
+        }
+
+        sent = __write_batch_to_stats_daemon(vecs, 2, batchSize);
+        if (sent > 0) {
+            numSent += sent;
+        }
+        if (sent < (int)batchSize) {
+            break;
+        }
+    }
+
+    return numSent;
+}
+
+int write_buffers_to_statsd(void** buffers, const size_t* sizes, const uint32_t* atomIds,
+                            size_t count) {
+    int numWritten = write_batch_to_statsd(buffers, sizes, count);
+    size_t i;
+
+    // Write the events that were not sent as a batch one by one. This also reconnects to statsd
+    // and reports dropped events if needed.
+    for (i = numWritten; i < count; i++) {
+        if (write_buffer_to_statsd(buffers[i], sizes[i], atomIds[i]) >= 0) {
+            numWritten++;
+        }
+    }
+
+    return numWritten;
+}
+
 static int __write_to_stats_daemon(struct iovec* vec, size_t nr) {
     int save_errno;
     struct timespec ts;
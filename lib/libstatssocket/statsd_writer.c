@@ -76,6 +76,7 @@ static int statsdAvailable();
 static int statsdOpen();
 static void statsdClose();
 static int statsdWrite(struct timespec* ts, struct iovec* vec, size_t nr);
+static int statsdWriteBatch(struct timespec* ts, struct iovec* vecs, size_t nr, size_t count);
 static void statsdNoteDrop();
 static int statsdIsClosed();
 
@@ -86,6 +87,7 @@ struct android_log_transport_write statsdLoggerWrite = {
         .open = statsdOpen,
         .close = statsdClose,
         .write = statsdWrite,
+        .writeBatch = statsdWriteBatch,
         .noteDrop = statsdNoteDrop,
         .isClosed = statsdIsClosed,
 };
@@ -307,3 +309,68 @@ static int statsdWrite(struct timespec* ts, struct iovec* vec, size_t nr) {
 
     return ret;
 }
+
+static int statsdWriteBatch(struct timespec* ts, struct iovec* vecs, size_t nr, size_t count) {
+#if defined(__BIONIC__)
+    static const unsigned headerLength = 1;
+    struct mmsghdr msgs[count];
+    struct iovec msgVecs[count][nr + headerLength];
+    android_log_header_t header;
+    size_t event, i, payloadSize;
+    int sent;
+
+    int sock = atomic_load(&statsdLoggerWrite.sock);
+    /*
+     * Leave reconnecting and reporting previously dropped events to statsdWrite. The caller
+     * writes the events that were not sent here one by one.
+     */
+    if (sock < 0 || atomic_load_explicit(&dropped, memory_order_relaxed)) {
+        return 0;
+    }
+
+    header.id = LOG_ID_STATS;
+    header.tid = gettid();
+    header.realtime.tv_sec = ts->tv_sec;
+    header.realtime.tv_nsec = ts->tv_nsec;
+
+    memset(msgs, 0, sizeof(msgs));
+    for (event = 0; event < count; event++) {
+        struct iovec* eventVecs = vecs + event * nr;
+        msgVecs[event][0].iov_base = (unsigned char*)&header;
+        msgVecs[event][0].iov_len = sizeof(header);
+
+        // Truncate each event to LOGGER_ENTRY_MAX_PAYLOAD, same as statsdWrite.
+        for (payloadSize = 0, i = headerLength; i < nr + headerLength; i++) {
+            msgVecs[event][i].iov_base = eventVecs[i - headerLength].iov_base;
+            payloadSize += msgVecs[event][i].iov_len = eventVecs[i - headerLength].iov_len;
+
+            if (payloadSize > LOGGER_ENTRY_MAX_PAYLOAD) {
+                msgVecs[event][i].iov_len -= payloadSize - LOGGER_ENTRY_MAX_PAYLOAD;
+                if (msgVecs[event][i].iov_len) {
+                    ++i;
+                }
+                break;
+            }
+        }
+        msgs[event].msg_hdr.msg_iov = msgVecs[event];
+        msgs[event].msg_hdr.msg_iovlen = i;
+    }
+
+    /*
+     * Like the write in statsdWrite, this could lose events but will never block. sendmmsg
+     * returns the number of datagrams sent before the first failure.
+     */
+    sent = TEMP_FAILURE_RETRY(sendmmsg(sock, msgs, count, 0));
+    if (sent < 0) {
+        return -errno;
+    }
+    return sent;
+#else
+    // sendmmsg is not available in the glibc shims. Let the caller write events one by one.
+    (void)ts;
+    (void)vecs;
+    (void)nr;
+    (void)count;
+    return 0;
+#endif  // __BIONIC__
+}
@@ -38,6 +38,11 @@ struct android_log_transport_write {
     void (*close)();    /* free up resources */
     /* write log to transport, returns number of bytes propagated, or -errno */
     int (*write)(struct timespec* ts, struct iovec* vec, size_t nr);
+    /*
+     * write count logs of nr iovecs each to transport in as few syscalls as possible,
+     * returns number of logs propagated, or -errno
+     */
+    int (*writeBatch)(struct timespec* ts, struct iovec* vecs, size_t nr, size_t count);
     /* note one log drop */
     void (*noteDrop)(int error, int tag);
     /* checks if the socket is closed */
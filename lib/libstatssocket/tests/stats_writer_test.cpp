@@ -34,3 +34,53 @@ TEST(StatsWriterTest, TestSocketClose) {
 
     EXPECT_TRUE(stats_log_is_closed());
 }
+
+TEST(StatsWriterTest, TestBatchWrite) {
+    const size_t numEvents = 100;
+    AStatsEvent* events[numEvents];
+    void* buffers[numEvents];
+    size_t sizes[numEvents];
+    uint32_t atomIds[numEvents];
+    for (size_t i = 0; i < numEvents; i++) {
+        events[i] = AStatsEvent_obtain();
+        AStatsEvent_setAtomId(events[i], 100);
+        AStatsEvent_writeInt32(events[i], i);
+        AStatsEvent_build(events[i]);
+        buffers[i] = AStatsEvent_getBuffer(events[i], &sizes[i]);
+        atomIds[i] = 100;
+    }
+
+    EXPECT_EQ((int)numEvents, write_buffers_to_statsd(buffers, sizes, atomIds, numEvents));
+
+    for (size_t i = 0; i < numEvents; i++) {
+        AStatsEvent_release(events[i]);
+    }
+}
+
+TEST(StatsWriterTest, TestBatchSendWithoutFallback) {
+    const size_t numEvents = 100;
+    AStatsEvent* events[numEvents];
+    void* buffers[numEvents];
+    size_t sizes[numEvents];
+    for (size_t i = 0; i < numEvents; i++) {
+        events[i] = AStatsEvent_obtain();
+        AStatsEvent_setAtomId(events[i], 100);
+        AStatsEvent_writeInt32(events[i], i);
+        AStatsEvent_build(events[i]);
+        buffers[i] = AStatsEvent_getBuffer(events[i], &sizes[i]);
+    }
+
+    // Nothing is sent until a regular write opened the socket.
+    AStatsSocket_close();
+    EXPECT_EQ(0, write_batch_to_statsd(buffers, sizes, numEvents));
+    EXPECT_TRUE(stats_log_is_closed());
+
+    EXPECT_GT(write_buffer_to_statsd(buffers[0], sizes[0], 100), 0);
+    const int sent = write_batch_to_statsd(buffers, sizes, numEvents);
+    EXPECT_GE(sent, 0);
+    EXPECT_LE(sent, (int)numEvents);
+
+    for (size_t i = 0; i < numEvents; i++) {
+        AStatsEvent_release(events[i]);
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.server.stats;
+
+import android.annotation.Nullable;
+import android.content.pm.PackageInfo;
+import android.content.pm.Signature;
+import android.content.pm.SigningInfo;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Caches the SHA-256 certificate hashes sent in the uid map, so that a full uid map sync does not
+ * recompute the digest of every package.
+ *
+ * <p>Entries are keyed by package name, and are only used while the package's last update time
+ * and signing certificates match the ones the hash was computed for. The cache is persisted, so
+ * that the hashes survive a system server restart.</p>
+ */
+final class CertificateHashCache {
+    private static final String TAG = "CertificateHashCache";
+
+    // Bump when the file format changes. Files with another version are ignored.
+    @VisibleForTesting
+    static final int FILE_VERSION = 1;
+
+    // SHA-256 digests are 32 bytes, anything much longer means the file is corrupt.
+    private static final int MAX_CERTIFICATE_HASH_SIZE = 64;
+
+    private static final class Entry {
+        final long mLastUpdateTime;
+        final int mSignaturesHash;
+        final byte[] mCertificateHash;
+
+        Entry(long lastUpdateTime, int signaturesHash, byte[] certificateHash) {
+            mLastUpdateTime = lastUpdateTime;
+            mSignaturesHash = signaturesHash;
+            mCertificateHash = certificateHash;
+        }
+    }
+
+    @Nullable
+    private final AtomicFile mFile;
+
+    @GuardedBy("this")
+    private final ArrayMap<String, Entry> mEntries = new ArrayMap<>();
+    // Packages looked up since the last prune(), to drop the entries of uninstalled packages.
+    @GuardedBy("this")
+    private final ArraySet<String> mUsedPackages = new ArraySet<>();
+    @GuardedBy("this")
+    private boolean mLoaded = false;
+    @GuardedBy("this")
+    private boolean mDirty = false;
+
+    /**
+     * @param file where to persist the cache, or null to only keep it in memory.
+     */
+    CertificateHashCache(@Nullable File file) {
+        mFile = file == null ? null : new AtomicFile(file);
+    }
+
+    /**
+     * Returns the certificate hash of the package, computing it if it is not cached.
+     */
+    byte[] get(PackageInfo pi) {
+        final int signaturesHash = getSignaturesHash(pi.signingInfo);
+        synchronized (this) {
+            loadLocked();
+            mUsedPackages.add(pi.packageName);
+            Entry entry = mEntries.get(pi.packageName);
+            if (entry != null && entry.mLastUpdateTime == pi.lastUpdateTime
+                    && entry.mSignaturesHash == signaturesHash) {
+                return entry.mCertificateHash;
+            }
+        }
+
+        // Digest outside of the lock, as packages are enumerated by several threads.
+        final byte[] certificateHash =
+                StatsCompanionService.getPackageCertificateHash(pi.signingInfo);
+        synchronized (this) {
+            mEntries.put(pi.packageName,
+                    new Entry(pi.lastUpdateTime, signaturesHash, certificateHash));
+            mDirty = true;
+        }
+        return certificateHash;
+    }
+
+    /**
+     * Drops the entry of a removed package.
+     */
+    synchronized void remove(String packageName) {
+        loadLocked();
+        if (mEntries.remove(packageName) != null) {
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Drops the entries of the packages not looked up since the last call, once every package
+     * has been looked up.
+     */
+    synchronized void prune() {
+        if (mEntries.retainAll(mUsedPackages)) {
+            mDirty = true;
+        }
+        mUsedPackages.clear();
+    }
+
+    @VisibleForTesting
+    synchronized int size() {
+        loadLocked();
+        return mEntries.size();
+    }
+
+    /**
+     * Writes the cache to its file if it changed since it was last written.
+     */
+    synchronized void persist() {
+        if (mFile == null || !mDirty) {
+            return;
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(mEntries.size());
+            for (int i = 0; i < mEntries.size(); i++) {
+                final Entry entry = mEntries.valueAt(i);
+                out.writeUTF(mEntries.keyAt(i));
+                out.writeLong(entry.mLastUpdateTime);
+                out.writeInt(entry.mSignaturesHash);
+                out.writeInt(entry.mCertificateHash.length);
+                out.write(entry.mCertificateHash);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            mDirty = false;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write certificate hash cache", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private void loadLocked() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (mFile == null) {
+            return;
+        }
+        try (FileInputStream fis = mFile.openRead()) {
+            DataInputStream in = new DataInputStream(fis);
+            if (in.readInt() != FILE_VERSION) {
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String packageName = in.readUTF();
+                final long lastUpdateTime = in.readLong();
+                final int signaturesHash = in.readInt();
+                final int size = in.readInt();
+                if (size < 0 || size > MAX_CERTIFICATE_HASH_SIZE) {
+                    throw new IOException("Invalid certificate hash size " + size);
+                }
+                final byte[] certificateHash = new byte[size];
+                in.readFully(certificateHash);
+                mEntries.put(packageName,
+                        new Entry(lastUpdateTime, signaturesHash, certificateHash));
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing persisted yet.
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Ignoring unreadable certificate hash cache", e);
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * Cheap, order independent hash of the signing certificates, to detect that they changed.
+     */
+    private static int getSignaturesHash(@Nullable SigningInfo si) {
+        if (si == null) {
+            return 0;
+        }
+        final Signature[] signatures = si.getApkContentsSigners();
+        if (signatures == null) {
+            return 0;
+        }
+        int hash = signatures.length;
+        for (final Signature signature : signatures) {
+            hash += signature.hashCode();
+        }
+        return hash;
+    }
+}
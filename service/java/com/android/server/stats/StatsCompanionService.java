@@ -19,9 +19,11 @@ import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 import static android.provider.DeviceConfig.NAMESPACE_STATSD_JAVA;
 import static android.provider.DeviceConfig.Properties;
 
+import android.annotation.Nullable;
 import android.app.AlarmManager;
 import android.app.AlarmManager.OnAlarmListener;
 import android.app.StatsManager;
+import android.content.ApexEnvironment;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -43,13 +45,14 @@ import android.os.IStatsCompanionService;
 import android.os.IStatsd;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
-import android.os.PowerManager;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.StatsFrameworkInitializer;
 import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.DeviceConfig;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.PropertyParcel;
 import android.util.proto.ProtoOutputStream;
@@ -70,9 +73,17 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Helper service for statsd (the native stats management service in cmds/statsd/).
@@ -94,6 +105,9 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
      * to be used in ProtoOutputStream.
      */
     private static final int APPLICATION_INFO_FIELD_ID = 1;
+    private static final int GENERATION_FIELD_ID = 2;
+    private static final int BASE_GENERATION_FIELD_ID = 3;
+    private static final int REMOVED_APP_FIELD_ID = 4;
     private static final int UID_FIELD_ID = 1;
     private static final int VERSION_FIELD_ID = 2;
     private static final int VERSION_STRING_FIELD_ID = 3;
@@ -101,16 +115,30 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
     private static final int INSTALLER_FIELD_ID = 5;
     private static final int CERTIFICATE_HASH_FIELD_ID = 6;
 
+    // Above this many changes, the whole uid map is sent instead of a delta.
+    private static final int MAX_UID_MAP_DELTA_SIZE = 1000;
+
     public static final int DEATH_THRESHOLD = 10;
 
     private static final String INCLUDE_CERTIFICATE_HASH = "include_certificate_hash";
 
+    private static final String STATSD_APEX_NAME = "com.android.os.statsd";
+
     private final Context mContext;
     private final AlarmManager mAlarmManager;
     @GuardedBy("sStatsdLock")
     private static IStatsd sStatsd;
     private static final Object sStatsdLock = new Object();
 
+    // Uid map last sent to statsd, so that only its changes need to be sent next time.
+    private static final Object sUidMapLock = new Object();
+    @GuardedBy("sUidMapLock")
+    private static HashMap<AppInfoKey, AppInfo> sSentUidMap = null;
+    @GuardedBy("sUidMapLock")
+    private static boolean sSentUidMapIncludesCertificateHash = false;
+    @GuardedBy("sUidMapLock")
+    private static long sUidMapGeneration = 0;
+
     private final OnAlarmListener mPullingAlarmListener;
     private final OnAlarmListener mPeriodicAlarmListener;
 
@@ -121,6 +149,11 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
     @GuardedBy("sStatsdLock")
     private final HashMap<Long, String> mDeletedFiles = new HashMap<>();
     private final Handler mHandler;
+    // Informs statsd of alarms.
+    private final WakelockExecutor mBackgroundExecutor;
+    // Syncs the uid map, on its own thread so that a long sync does not delay alarm work. Runs
+    // one task at a time.
+    private final WakelockExecutor mUidMapExecutor;
 
     // Flag that is set when PHASE_BOOT_COMPLETED is triggered in the StatsCompanion lifecycle.
     private AtomicBoolean mBootCompleted = new AtomicBoolean(false);
@@ -134,8 +167,13 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
         handlerThread.start();
         mHandler = new Handler(handlerThread.getLooper());
 
-        mPullingAlarmListener = new PullingAlarmListener(context);
-        mPeriodicAlarmListener = new PeriodicAlarmListener(context);
+        mBackgroundExecutor = new WakelockExecutor(context, "statsCompanionService.bg",
+                /*numThreads=*/ 2);
+        mUidMapExecutor = new WakelockExecutor(context, "statsCompanionService.uidMap",
+                /*numThreads=*/ 1);
+
+        mPullingAlarmListener = new PullingAlarmListener(mBackgroundExecutor);
+        mPeriodicAlarmListener = new PeriodicAlarmListener(mBackgroundExecutor);
     }
 
     /**
@@ -168,7 +206,7 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
         return installerPackageName == null ? "" : installerPackageName;
     }
 
-    private static byte[] getPackageCertificateHash(final SigningInfo si) {
+    static byte[] getPackageCertificateHash(final SigningInfo si) {
         if (si == null) {
             return new byte[0];
         }
@@ -194,104 +232,332 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
         return messageDigest.digest();
     }
 
-    private static void informAllUids(Context context) {
+    private static void informAllUids(Context context, WakelockExecutor executor) {
+        executor.execute(/*wakelockName=*/ null, () -> {
+            final int priority = Process.getThreadPriority(Process.myTid());
+            Process.setThreadPriority(THREAD_PRIORITY_BACKGROUND);
+            try {
+                syncUidMap(context);
+            } finally {
+                Process.setThreadPriority(priority);
+            }
+        });
+    }
+
+    /**
+     * Sends the uid map to statsd: only the apps added, changed or removed since the uid map
+     * last sent if statsd still has it, the whole uid map otherwise.
+     */
+    private static void syncUidMap(Context context) {
+        IStatsd statsd = getStatsdNonblocking();
+        if (statsd == null) {
+            return;
+        }
+        final boolean includeCertificateHash = DeviceConfig.getBoolean(
+                NAMESPACE_STATSD_JAVA, INCLUDE_CERTIFICATE_HASH, false);
+
+        // Syncs and app update batches run one at a time on the uid map executor, so the uid map
+        // sent cannot change between the diff and the update of sSentUidMap below. The lock is
+        // only held to read and update the uid map sent, not while apps are enumerated or sent.
+        final List<Future<List<AppInfo>>> userApps =
+                enumerateAppsAsync(context, includeCertificateHash);
+        final long generation;
+        final boolean canSendDelta;
+        synchronized (sUidMapLock) {
+            generation = sUidMapGeneration + 1;
+            canSendDelta = sSentUidMap != null
+                    && sSentUidMapIncludesCertificateHash == includeCertificateHash;
+        }
+        HashMap<AppInfoKey, AppInfo> uidMap = new HashMap<>();
+        if (canSendDelta) {
+            try {
+                for (Future<List<AppInfo>> apps : userApps) {
+                    addApps(uidMap, getUserApps(apps));
+                }
+                if (includeCertificateHash) {
+                    updateCertificateHashCache();
+                }
+                final byte[] delta;
+                synchronized (sUidMapLock) {
+                    delta = getUidMapDeltaLocked(uidMap, generation, includeCertificateHash);
+                }
+                // Sent even without changes, to check that statsd still has the uid map, e.g.
+                // after it restarted.
+                if (delta != null && statsd.informUidDataDelta(delta)) {
+                    synchronized (sUidMapLock) {
+                        sUidMapGeneration = generation;
+                        sSentUidMap = uidMap;
+                    }
+                    return;
+                }
+            } catch (RemoteException | ExecutionException e) {
+                Log.e(TAG, "Failed to send uid map changes to statsd", e);
+                return;
+            }
+        }
+
+        // Without a uid map to diff against, the apps of each user are streamed to statsd as
+        // soon as they are enumerated.
+        final boolean sent =
+                sendFullUidMap(statsd, userApps, uidMap, generation, includeCertificateHash);
+        synchronized (sUidMapLock) {
+            if (sent) {
+                sUidMapGeneration = generation;
+                sSentUidMap = uidMap;
+                sSentUidMapIncludesCertificateHash = includeCertificateHash;
+            } else {
+                sSentUidMap = null;
+            }
+        }
+        if (sent && includeCertificateHash) {
+            updateCertificateHashCache();
+        }
+    }
+
+    /**
+     * Called once every package was enumerated, to drop the certificate hashes of uninstalled
+     * packages and persist the ones computed.
+     */
+    private static void updateCertificateHashCache() {
+        CertificateHashCacheHolder.sCache.prune();
+        CertificateHashCacheHolder.sCache.persist();
+    }
+
+    /**
+     * Starts enumerating the apps of every user/profile in parallel.
+     *
+     * @return the apps of each user, in the order of UserManager#getUserHandles.
+     */
+    private static List<Future<List<AppInfo>>> enumerateAppsAsync(Context context,
+            boolean includeCertificateHash) {
+        UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
+        PackageManager pm = context.getPackageManager();
+        final List<UserHandle> users = um.getUserHandles(true);
+        if (DEBUG) {
+            Log.d(TAG, "Iterating over " + users.size() + " userHandles.");
+        }
+
+        // The active apexes and the installers do not depend on the user, so they are only
+        // fetched once for all users.
+        final List<PackageInfo> apexPackages = getActiveApexPackages(pm);
+        final ConcurrentHashMap<String, String> installers = new ConcurrentHashMap<>();
+
+        List<Future<List<AppInfo>>> userApps = new ArrayList<>(users.size());
+        for (UserHandle userHandle : users) {
+            userApps.add(PackageEnumerationExecutorHolder.sExecutor.submit(() -> getUserApps(pm,
+                    userHandle, apexPackages, installers, includeCertificateHash)));
+        }
+        return userApps;
+    }
+
+    private static List<AppInfo> getUserApps(PackageManager pm, UserHandle userHandle,
+            List<PackageInfo> apexPackages, ConcurrentHashMap<String, String> installers,
+            boolean includeCertificateHash) {
+        List<PackageInfo> packagesPlusApex =
+                getAllPackagesWithApex(pm, userHandle, apexPackages);
+        List<AppInfo> apps = new ArrayList<>(packagesPlusApex.size());
+        for (int j = 0; j < packagesPlusApex.size(); j++) {
+            final PackageInfo pi = packagesPlusApex.get(j);
+            if (pi.applicationInfo != null) {
+                final String installer = installers.computeIfAbsent(
+                        pi.packageName, name -> getInstallerPackageName(pm, name));
+                final byte[] certHash = includeCertificateHash
+                        ? CertificateHashCacheHolder.sCache.get(pi) : new byte[0];
+                apps.add(new AppInfo(pi.applicationInfo.uid, pi.getLongVersionCode(),
+                        pi.versionName, pi.packageName, installer, certHash));
+            }
+        }
+        return apps;
+    }
+
+    private static List<AppInfo> getUserApps(Future<List<AppInfo>> apps)
+            throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return apps.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void addApps(HashMap<AppInfoKey, AppInfo> uidMap, List<AppInfo> apps) {
+        for (int i = 0; i < apps.size(); i++) {
+            AppInfo app = apps.get(i);
+            uidMap.put(new AppInfoKey(app.mUid, app.mPackageName), app);
+        }
+    }
+
+    /**
+     * Streams the whole uid map to statsd through a pipe, one user at a time, and adds the apps
+     * sent to uidMap.
+     *
+     * @return false if statsd could not be reached or the apps could not be enumerated.
+     */
+    private static boolean sendFullUidMap(IStatsd statsd, List<Future<List<AppInfo>>> userApps,
+            HashMap<AppInfoKey, AppInfo> uidMap, long generation,
+            boolean includeCertificateHash) {
         ParcelFileDescriptor[] fds;
         try {
             fds = ParcelFileDescriptor.createPipe();
         } catch (IOException e) {
             Log.e(TAG, "Failed to create a pipe to send uid map data.", e);
-            return;
+            return false;
         }
-        HandlerThread backgroundThread = new HandlerThread(
-                "statsCompanionService.bg", THREAD_PRIORITY_BACKGROUND);
-        backgroundThread.start();
-        Handler handler = new Handler(backgroundThread.getLooper());
-        handler.post(() -> {
-            UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
-            PackageManager pm = context.getPackageManager();
-            final List<UserHandle> users = um.getUserHandles(true);
-            if (DEBUG) {
-                Log.d(TAG, "Iterating over " + users.size() + " userHandles.");
-            }
-            IStatsd statsd = getStatsdNonblocking();
-            if (statsd == null) {
-                return;
+        boolean sent = true;
+        try {
+            statsd.informAllUidData(fds[0]);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to send uid map to statsd");
+            sent = false;
+        }
+        try {
+            fds[0].close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close the read side of the pipe.", e);
+        }
+        final ParcelFileDescriptor writeFd = fds[1];
+        FileOutputStream fout = new ParcelFileDescriptor.AutoCloseOutputStream(writeFd);
+        try {
+            if (!sent) {
+                return false;
             }
-            try {
-                statsd.informAllUidData(fds[0]);
-            } catch (RemoteException e) {
-                Log.e(TAG, "Failed to send uid map to statsd");
+            int numRecords = 0;
+            for (Future<List<AppInfo>> userAppsFuture : userApps) {
+                final List<AppInfo> apps = getUserApps(userAppsFuture);
+                // Concatenated protos are merged when parsed, so each user's apps are encoded
+                // separately and pushed down the pipe while the next users are enumerated.
+                ProtoOutputStream output = new ProtoOutputStream();
+                for (int i = 0; i < apps.size(); i++) {
+                    writeAppInfo(output, APPLICATION_INFO_FIELD_ID, apps.get(i),
+                            includeCertificateHash);
+                }
+                fout.write(output.getBytes());
+                addApps(uidMap, apps);
+                numRecords += apps.size();
             }
-            try {
-                fds[0].close();
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to close the read side of the pipe.", e);
+            // Written last: statsd rejects a uid map without a generation as incomplete.
+            ProtoOutputStream output = new ProtoOutputStream();
+            output.write(ProtoOutputStream.FIELD_TYPE_INT64
+                    | ProtoOutputStream.FIELD_COUNT_SINGLE | GENERATION_FIELD_ID, generation);
+            fout.write(output.getBytes());
+            fout.flush();
+            if (DEBUG) {
+                Log.d(TAG, "Sent data for " + numRecords + " apps");
             }
-            final ParcelFileDescriptor writeFd = fds[1];
-            FileOutputStream fout = new ParcelFileDescriptor.AutoCloseOutputStream(writeFd);
-            try {
-                ProtoOutputStream output = new ProtoOutputStream(fout);
-                int numRecords = 0;
-
-                // Add in all the apps for every user/profile.
-                for (UserHandle userHandle : users) {
-                    List<PackageInfo> packagesPlusApex = getAllPackagesWithApex(pm, userHandle);
-                    for (int j = 0; j < packagesPlusApex.size(); j++) {
-                        if (packagesPlusApex.get(j).applicationInfo != null) {
-                            final String installer = getInstallerPackageName(
-                                    pm, packagesPlusApex.get(j).packageName);
-
-                            long applicationInfoToken =
-                                    output.start(ProtoOutputStream.FIELD_TYPE_MESSAGE
-                                            | ProtoOutputStream.FIELD_COUNT_REPEATED
-                                            | APPLICATION_INFO_FIELD_ID);
-                            output.write(ProtoOutputStream.FIELD_TYPE_INT32
-                                            | ProtoOutputStream.FIELD_COUNT_SINGLE | UID_FIELD_ID,
-                                    packagesPlusApex.get(j).applicationInfo.uid);
-                            output.write(ProtoOutputStream.FIELD_TYPE_INT64
-                                            | ProtoOutputStream.FIELD_COUNT_SINGLE
-                                            | VERSION_FIELD_ID,
-                                    packagesPlusApex.get(j).getLongVersionCode());
-                            output.write(ProtoOutputStream.FIELD_TYPE_STRING
-                                            | ProtoOutputStream.FIELD_COUNT_SINGLE
-                                            | VERSION_STRING_FIELD_ID,
-                                    packagesPlusApex.get(j).versionName);
-                            output.write(ProtoOutputStream.FIELD_TYPE_STRING
-                                    | ProtoOutputStream.FIELD_COUNT_SINGLE
-                                    | PACKAGE_NAME_FIELD_ID, packagesPlusApex.get(j).packageName);
-                            output.write(ProtoOutputStream.FIELD_TYPE_STRING
-                                            | ProtoOutputStream.FIELD_COUNT_SINGLE
-                                            | INSTALLER_FIELD_ID,
-                                    installer);
-                            if (DeviceConfig.getBoolean(
-                                        NAMESPACE_STATSD_JAVA, INCLUDE_CERTIFICATE_HASH, false)) {
-                                final byte[] certHash = getPackageCertificateHash(
-                                        packagesPlusApex.get(j).signingInfo);
-                                output.write(ProtoOutputStream.FIELD_TYPE_BYTES
-                                                | ProtoOutputStream.FIELD_COUNT_SINGLE
-                                                | CERTIFICATE_HASH_FIELD_ID,
-                                        certHash);
-                            }
-
-                            numRecords++;
-                            output.end(applicationInfoToken);
-                        }
-                    }
+            return true;
+        } catch (ExecutionException | IOException e) {
+            // Closing the pipe before the generation is written makes statsd drop the
+            // incomplete uid map.
+            Log.e(TAG, "Failed to send the uid map to statsd", e);
+            return false;
+        } finally {
+            FileUtils.closeQuietly(fout);
+        }
+    }
+
+    /**
+     * Encodes the apps added, changed or removed since sSentUidMap.
+     *
+     * @return null if there are too many changes, in which case the whole uid map has to be sent.
+     */
+    @GuardedBy("sUidMapLock")
+    @Nullable
+    private static byte[] getUidMapDeltaLocked(HashMap<AppInfoKey, AppInfo> uidMap,
+            long generation, boolean includeCertificateHash) {
+        ProtoOutputStream output = new ProtoOutputStream();
+        int numChanges = 0;
+        for (Map.Entry<AppInfoKey, AppInfo> entry : uidMap.entrySet()) {
+            if (!entry.getValue().equals(sSentUidMap.get(entry.getKey()))) {
+                if (++numChanges > MAX_UID_MAP_DELTA_SIZE) {
+                    return null;
                 }
-                output.flush();
-                if (DEBUG) {
-                    Log.d(TAG, "Sent data for " + numRecords + " apps");
+                writeAppInfo(output, APPLICATION_INFO_FIELD_ID, entry.getValue(),
+                        includeCertificateHash);
+            }
+        }
+        for (Map.Entry<AppInfoKey, AppInfo> entry : sSentUidMap.entrySet()) {
+            if (!uidMap.containsKey(entry.getKey())) {
+                if (++numChanges > MAX_UID_MAP_DELTA_SIZE) {
+                    return null;
                 }
-            } finally {
-                FileUtils.closeQuietly(fout);
-                backgroundThread.quit();
-                backgroundThread.interrupt();
+                writeRemovedApp(output, entry.getKey());
             }
-        });
+        }
+        output.write(ProtoOutputStream.FIELD_TYPE_INT64
+                | ProtoOutputStream.FIELD_COUNT_SINGLE | GENERATION_FIELD_ID, generation);
+        output.write(ProtoOutputStream.FIELD_TYPE_INT64
+                | ProtoOutputStream.FIELD_COUNT_SINGLE | BASE_GENERATION_FIELD_ID,
+                sUidMapGeneration);
+        if (DEBUG) {
+            Log.d(TAG, "Sending " + numChanges + " uid map changes");
+        }
+        return output.getBytes();
+    }
+
+    private static void writeAppInfo(ProtoOutputStream output, int fieldId, AppInfo app,
+            boolean includeCertificateHash) {
+        long applicationInfoToken = output.start(ProtoOutputStream.FIELD_TYPE_MESSAGE
+                | ProtoOutputStream.FIELD_COUNT_REPEATED | fieldId);
+        output.write(ProtoOutputStream.FIELD_TYPE_INT32
+                | ProtoOutputStream.FIELD_COUNT_SINGLE | UID_FIELD_ID, app.mUid);
+        output.write(ProtoOutputStream.FIELD_TYPE_INT64
+                | ProtoOutputStream.FIELD_COUNT_SINGLE | VERSION_FIELD_ID, app.mVersion);
+        output.write(ProtoOutputStream.FIELD_TYPE_STRING
+                | ProtoOutputStream.FIELD_COUNT_SINGLE | VERSION_STRING_FIELD_ID,
+                app.mVersionString);
+        output.write(ProtoOutputStream.FIELD_TYPE_STRING
+                | ProtoOutputStream.FIELD_COUNT_SINGLE | PACKAGE_NAME_FIELD_ID,
+                app.mPackageName);
+        output.write(ProtoOutputStream.FIELD_TYPE_STRING
+                | ProtoOutputStream.FIELD_COUNT_SINGLE | INSTALLER_FIELD_ID, app.mInstaller);
+        if (includeCertificateHash) {
+            output.write(ProtoOutputStream.FIELD_TYPE_BYTES
+                    | ProtoOutputStream.FIELD_COUNT_SINGLE | CERTIFICATE_HASH_FIELD_ID,
+                    app.mCertificateHash);
+        }
+        output.end(applicationInfoToken);
+    }
+
+    private static void writeRemovedApp(ProtoOutputStream output, AppInfoKey key) {
+        long removedAppToken = output.start(ProtoOutputStream.FIELD_TYPE_MESSAGE
+                | ProtoOutputStream.FIELD_COUNT_REPEATED | REMOVED_APP_FIELD_ID);
+        output.write(ProtoOutputStream.FIELD_TYPE_INT32
+                | ProtoOutputStream.FIELD_COUNT_SINGLE | UID_FIELD_ID, key.getUid());
+        output.write(ProtoOutputStream.FIELD_TYPE_STRING
+                | ProtoOutputStream.FIELD_COUNT_SINGLE | PACKAGE_NAME_FIELD_ID,
+                key.getPackageName());
+        output.end(removedAppToken);
+    }
+
+    /**
+     * Keeps sSentUidMap in sync with an app update sent to statsd outside of syncUidMap().
+     *
+     * <p>Must be called in the same sUidMapLock section as the update is sent, so that a uid map
+     * delta sent in between does not miss it.</p>
+     */
+    @GuardedBy("sUidMapLock")
+    private static void onAppUpdateSentLocked(@Nullable AppInfo updatedApp, int uid, String app) {
+        if (sSentUidMap == null) {
+            return;
+        }
+        AppInfoKey key = new AppInfoKey(uid, app);
+        if (updatedApp == null) {
+            sSentUidMap.remove(key);
+        } else {
+            sSentUidMap.put(key, updatedApp);
+        }
     }
 
     private static List<PackageInfo> getAllPackagesWithApex(PackageManager pm,
-            UserHandle userHandle) {
+            UserHandle userHandle, List<PackageInfo> apexPackages) {
         // We want all the uninstalled packages because uninstalled package uids can still be logged
         // to statsd.
         List<PackageInfo> allPackages = new ArrayList<>(
@@ -299,44 +565,155 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
                                 | PackageManager.MATCH_UNINSTALLED_PACKAGES
                                 | PackageManager.MATCH_ANY_USER,
                         userHandle.getIdentifier()));
+        allPackages.addAll(apexPackages);
+        return allPackages;
+    }
+
+    private static List<PackageInfo> getActiveApexPackages(PackageManager pm) {
         // We make a second query to package manager for the apex modules because package manager
         // returns both installed and uninstalled apexes with
         // PackageManager.MATCH_UNINSTALLED_PACKAGES flag. We only want active apexes because
         // inactive apexes can conflict with active ones.
+        List<PackageInfo> apexPackages = new ArrayList<>();
         for (PackageInfo packageInfo : pm.getInstalledPackages(PackageManager.MATCH_APEX)) {
             if (packageInfo.isApex) {
-                allPackages.add(packageInfo);
+                apexPackages.add(packageInfo);
             }
         }
-        return allPackages;
+        return apexPackages;
+    }
+
+    private static class CertificateHashCacheHolder {
+        private static final String CACHE_FILE_NAME = "certificate_hash_cache";
+
+        static final CertificateHashCache sCache = new CertificateHashCache(getCacheFile());
+
+        @Nullable
+        private static File getCacheFile() {
+            try {
+                return new File(ApexEnvironment.getApexEnvironment(STATSD_APEX_NAME)
+                        .getDeviceProtectedDataDir(), CACHE_FILE_NAME);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Certificate hash cache will not be persisted", e);
+                return null;
+            }
+        }
+    }
+
+    private static class PackageEnumerationExecutorHolder {
+        private static final int MAX_THREADS = 4;
+        private static final long KEEP_ALIVE_SECONDS = 10;
+
+        static final ThreadPoolExecutor sExecutor;
+
+        static {
+            final AtomicInteger threadCount = new AtomicInteger();
+            sExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    r -> new Thread(() -> {
+                        Process.setThreadPriority(THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }, "statsCompanionService.packages-" + threadCount.incrementAndGet()));
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
     }
 
-    private static class WakelockThread extends Thread {
-        private final PowerManager.WakeLock mWl;
-        private final Runnable mRunnable;
+    private static class AppInfoKey {
+        private final int mUid;
+        private final String mPackageName;
 
-        WakelockThread(Context context, String wakelockName, Runnable runnable) {
-            PowerManager powerManager = (PowerManager)
-                    context.getSystemService(Context.POWER_SERVICE);
-            mWl = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, wakelockName);
-            mRunnable = runnable;
+        AppInfoKey(int uid, String packageName) {
+            mUid = uid;
+            mPackageName = packageName;
         }
+
+        public int getUid() {
+            return mUid;
+        }
+
+        public String getPackageName() {
+            return mPackageName;
+        }
+
         @Override
-        public void run() {
-            try {
-                mRunnable.run();
-            } finally {
-                mWl.release();
+        public int hashCode() {
+            return 31 * mUid + Objects.hashCode(mPackageName);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof AppInfoKey) {
+                AppInfoKey other = (AppInfoKey) obj;
+                return this.mUid == other.getUid()
+                        && Objects.equals(this.mPackageName, other.getPackageName());
             }
+            return false;
+        }
+    }
+
+    /**
+     * An app of the uid map, as sent to statsd.
+     */
+    private static final class AppInfo {
+        final int mUid;
+        final long mVersion;
+        final String mVersionString;
+        final String mPackageName;
+        final String mInstaller;
+        final byte[] mCertificateHash;
+
+        AppInfo(int uid, long version, @Nullable String versionString, String packageName,
+                String installer, byte[] certificateHash) {
+            mUid = uid;
+            mVersion = version;
+            mVersionString = versionString == null ? "" : versionString;
+            mPackageName = packageName;
+            mInstaller = installer;
+            mCertificateHash = certificateHash;
         }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mUid, mVersion, mVersionString, mPackageName, mInstaller)
+                    + Arrays.hashCode(mCertificateHash);
+        }
+
         @Override
-        public void start() {
-            mWl.acquire();
-            super.start();
+        public boolean equals(Object obj) {
+            if (obj instanceof AppInfo) {
+                AppInfo other = (AppInfo) obj;
+                return mUid == other.mUid && mVersion == other.mVersion
+                        && mVersionString.equals(other.mVersionString)
+                        && Objects.equals(mPackageName, other.mPackageName)
+                        && mInstaller.equals(other.mInstaller)
+                        && Arrays.equals(mCertificateHash, other.mCertificateHash);
+            }
+            return false;
         }
     }
 
     private final static class AppUpdateReceiver extends BroadcastReceiver {
+        // How long package changes are collected before being sent to statsd.
+        private static final long BATCH_DELAY_MILLIS = 500;
+
+        private final Handler mHandler;
+        private final WakelockExecutor mExecutor;
+
+        private final Object mLock = new Object();
+        // Latest change of each app since the last batch was sent: true if the app was removed,
+        // false if it was added or updated.
+        @GuardedBy("mLock")
+        private ArrayMap<AppInfoKey, Boolean> mPendingChanges = new ArrayMap<>();
+        // Set from the time a batch is scheduled until it is sent, so that batches are sent one
+        // at a time, in order.
+        @GuardedBy("mLock")
+        private boolean mBatchScheduled = false;
+
+        AppUpdateReceiver(Handler handler, WakelockExecutor executor) {
+            mHandler = handler;
+            mExecutor = executor;
+        }
+
         @Override
         public void onReceive(Context context, Intent intent) {
             /**
@@ -349,68 +726,167 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
                 return; // Keep only replacing or normal add and remove.
             }
             if (DEBUG) Log.d(TAG, "StatsCompanionService noticed an app was updated.");
-            synchronized (sStatsdLock) {
-                if (sStatsd == null) {
-                    Log.w(TAG, "Could not access statsd to inform it of an app update");
+            Bundle b = intent.getExtras();
+            int uid = b.getInt(Intent.EXTRA_UID);
+            String app = intent.getData().getSchemeSpecificPart();
+            boolean removed = intent.getAction().equals(Intent.ACTION_PACKAGE_REMOVED);
+
+            synchronized (mLock) {
+                mPendingChanges.put(new AppInfoKey(uid, app), removed);
+                if (mBatchScheduled) {
                     return;
                 }
-                try {
-                    if (intent.getAction().equals(Intent.ACTION_PACKAGE_REMOVED)) {
-                        Bundle b = intent.getExtras();
-                        int uid = b.getInt(Intent.EXTRA_UID);
-                        boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
-                        if (!replacing) {
-                            // Don't bother sending an update if we're right about to get another
-                            // intent for the new version that's added.
-                            String app = intent.getData().getSchemeSpecificPart();
-                            sStatsd.informOnePackageRemoved(app, uid);
-                        }
-                    } else {
-                        PackageManager pm = context.getPackageManager();
-                        Bundle b = intent.getExtras();
-                        int uid = b.getInt(Intent.EXTRA_UID);
-                        String app = intent.getData().getSchemeSpecificPart();
-                        PackageInfo pi = pm.getPackageInfo(app,
-                                    PackageManager.GET_SIGNING_CERTIFICATES
-                                    | PackageManager.MATCH_ANY_USER);
-                        final String installer = getInstallerPackageName(pm, app);
-
-                        // Get Package certificate hash.
-                        byte[] certHash = new byte[0];
-                        if (DeviceConfig.getBoolean(
-                                    NAMESPACE_STATSD_JAVA, INCLUDE_CERTIFICATE_HASH, false)) {
-                            certHash = getPackageCertificateHash(pi.signingInfo);
-                        }
+                mBatchScheduled = true;
+            }
+            scheduleBatch(context);
+        }
 
-                        sStatsd.informOnePackage(
-                                app,
-                                uid,
-                                pi.getLongVersionCode(),
-                                pi.versionName == null ? "" : pi.versionName,
-                                installer,
-                                certHash);
+        private void scheduleBatch(Context context) {
+            // Wait for the other broadcasts of an install or update storm, then send all their
+            // changes at once.
+            mHandler.postDelayed(() -> mExecutor.execute(
+                    AppUpdateReceiver.class.getCanonicalName(), () -> sendBatch(context)),
+                    BATCH_DELAY_MILLIS);
+        }
+
+        private void sendBatch(Context context) {
+            ArrayMap<AppInfoKey, Boolean> changes;
+            synchronized (mLock) {
+                changes = mPendingChanges;
+                mPendingChanges = new ArrayMap<>();
+            }
+            try {
+                sendPendingChanges(context, changes);
+            } finally {
+                // Changes received while the batch was sent go in the next batch.
+                boolean scheduleNext;
+                synchronized (mLock) {
+                    scheduleNext = !mPendingChanges.isEmpty();
+                    mBatchScheduled = scheduleNext;
+                }
+                if (scheduleNext) {
+                    scheduleBatch(context);
+                }
+            }
+        }
+
+        private void sendPendingChanges(Context context, ArrayMap<AppInfoKey, Boolean> changes) {
+            IStatsd statsd = getStatsdNonblocking();
+            if (statsd == null) {
+                Log.w(TAG, "Could not access statsd to inform it of " + changes.size()
+                        + " app updates");
+                return;
+            }
+
+            final PackageManager pm = context.getPackageManager();
+            final boolean includeCertificateHash = DeviceConfig.getBoolean(
+                    NAMESPACE_STATSD_JAVA, INCLUDE_CERTIFICATE_HASH, false);
+            ProtoOutputStream output = new ProtoOutputStream();
+            ArrayList<AppInfo> updatedApps = new ArrayList<>();
+            ArrayList<AppInfoKey> removedApps = new ArrayList<>();
+            int numChanges = 0;
+            for (int i = 0; i < changes.size(); i++) {
+                final AppInfoKey key = changes.keyAt(i);
+                if (changes.valueAt(i)) {
+                    writeRemovedApp(output, key);
+                    removedApps.add(key);
+                } else {
+                    final AppInfo app = getAppInfo(pm, key, includeCertificateHash);
+                    if (app == null) {
+                        continue;
                     }
-                } catch (Exception e) {
-                    Log.w(TAG, "Failed to inform statsd of an app update", e);
+                    writeAppInfo(output, APPLICATION_INFO_FIELD_ID, app, includeCertificateHash);
+                    updatedApps.add(app);
                 }
+                // Keep each transaction well below the binder buffer size.
+                if (++numChanges == MAX_UID_MAP_DELTA_SIZE) {
+                    if (!informPackageChanges(statsd, output, updatedApps, removedApps)) {
+                        return;
+                    }
+                    output = new ProtoOutputStream();
+                    numChanges = 0;
+                }
+            }
+            if (numChanges > 0) {
+                informPackageChanges(statsd, output, updatedApps, removedApps);
             }
         }
+
+        @Nullable
+        private static AppInfo getAppInfo(PackageManager pm, AppInfoKey key,
+                boolean includeCertificateHash) {
+            final String app = key.getPackageName();
+            final PackageInfo pi;
+            try {
+                pi = pm.getPackageInfo(app,
+                        PackageManager.GET_SIGNING_CERTIFICATES | PackageManager.MATCH_ANY_USER);
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.w(TAG, "Could not find updated app " + app, e);
+                return null;
+            }
+            final String installer = getInstallerPackageName(pm, app);
+            // Get Package certificate hash.
+            final byte[] certHash = includeCertificateHash
+                    ? CertificateHashCacheHolder.sCache.get(pi) : new byte[0];
+            return new AppInfo(key.getUid(), pi.getLongVersionCode(), pi.versionName, app,
+                    installer, certHash);
+        }
+
+        /**
+         * Sends a batch of changes, then clears updatedApps and removedApps.
+         *
+         * @return false if statsd could not be reached.
+         */
+        private static boolean informPackageChanges(IStatsd statsd, ProtoOutputStream output,
+                List<AppInfo> updatedApps, List<AppInfoKey> removedApps) {
+            // Held across the call, so that syncUidMap() does not diff against a sSentUidMap that
+            // misses changes statsd already applied.
+            synchronized (sUidMapLock) {
+                try {
+                    statsd.informPackageChanges(output.getBytes());
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Failed to inform statsd of app updates", e);
+                    return false;
+                }
+                for (int i = 0; i < removedApps.size(); i++) {
+                    final AppInfoKey key = removedApps.get(i);
+                    onAppUpdateSentLocked(/*updatedApp=*/ null, key.getUid(),
+                            key.getPackageName());
+                }
+                for (int i = 0; i < updatedApps.size(); i++) {
+                    final AppInfo app = updatedApps.get(i);
+                    onAppUpdateSentLocked(app, app.mUid, app.mPackageName);
+                }
+            }
+            for (int i = 0; i < removedApps.size(); i++) {
+                CertificateHashCacheHolder.sCache.remove(removedApps.get(i).getPackageName());
+            }
+            updatedApps.clear();
+            removedApps.clear();
+            return true;
+        }
     }
 
     private static final class UserUpdateReceiver extends BroadcastReceiver {
+        private final WakelockExecutor mExecutor;
+
+        UserUpdateReceiver(WakelockExecutor executor) {
+            mExecutor = executor;
+        }
+
         @Override
         public void onReceive(Context context, Intent intent) {
             // Pull the latest state of UID->app name, version mapping.
             // Needed since the new user basically has a version of every app.
-            informAllUids(context);
+            informAllUids(context, mExecutor);
         }
     }
 
     public final static class PullingAlarmListener implements OnAlarmListener {
-        private final Context mContext;
+        private final WakelockExecutor mExecutor;
 
-        PullingAlarmListener(Context context) {
-            mContext = context;
+        PullingAlarmListener(WakelockExecutor executor) {
+            mExecutor = executor;
         }
 
         @Override
@@ -425,26 +901,21 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
             }
 
             // Wakelock needs to be retained while calling statsd.
-            Thread thread = new WakelockThread(mContext,
-                    PullingAlarmListener.class.getCanonicalName(), new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                statsd.informPollAlarmFired();
-                            } catch (RemoteException e) {
-                                Log.w(TAG, "Failed to inform statsd of pulling alarm firing.", e);
-                            }
-                        }
-                    });
-            thread.start();
+            mExecutor.execute(PullingAlarmListener.class.getCanonicalName(), () -> {
+                try {
+                    statsd.informPollAlarmFired();
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Failed to inform statsd of pulling alarm firing.", e);
+                }
+            });
         }
     }
 
     public final static class PeriodicAlarmListener implements OnAlarmListener {
-        private final Context mContext;
+        private final WakelockExecutor mExecutor;
 
-        PeriodicAlarmListener(Context context) {
-            mContext = context;
+        PeriodicAlarmListener(WakelockExecutor executor) {
+            mExecutor = executor;
         }
 
         @Override
@@ -459,18 +930,13 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
             }
 
             // Wakelock needs to be retained while calling statsd.
-            Thread thread = new WakelockThread(mContext,
-                    PeriodicAlarmListener.class.getCanonicalName(), new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                statsd.informAlarmForSubscriberTriggeringFired();
-                            } catch (RemoteException e) {
-                                Log.w(TAG, "Failed to inform statsd of periodic alarm firing.", e);
-                            }
-                        }
-                    });
-            thread.start();
+            mExecutor.execute(PeriodicAlarmListener.class.getCanonicalName(), () -> {
+                try {
+                    statsd.informAlarmForSubscriberTriggeringFired();
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Failed to inform statsd of periodic alarm firing.", e);
+                }
+            });
         }
     }
 
@@ -678,7 +1144,7 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
         // property changed.
         final Set<String> propertyNames = properties.getKeyset();
         if (propertyNames.contains(INCLUDE_CERTIFICATE_HASH)) {
-            informAllUids(mContext);
+            informAllUids(mContext, mUidMapExecutor);
         }
     }
 
@@ -747,8 +1213,8 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
         try {
             statsd.statsCompanionReady();
 
-            BroadcastReceiver appUpdateReceiver = new AppUpdateReceiver();
-            BroadcastReceiver userUpdateReceiver = new UserUpdateReceiver();
+            BroadcastReceiver appUpdateReceiver = new AppUpdateReceiver(mHandler, mUidMapExecutor);
+            BroadcastReceiver userUpdateReceiver = new UserUpdateReceiver(mUidMapExecutor);
             BroadcastReceiver shutdownEventReceiver = new ShutdownEventReceiver();
 
             // Setup broadcast receiver for updates.
@@ -793,7 +1259,7 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
             }
 
             // Pull the latest state of UID->app name, version mapping when statsd starts.
-            informAllUids(mContext);
+            informAllUids(mContext, mUidMapExecutor);
 
             Log.i(TAG, "Told statsd that StatsCompanionService is alive.");
         } catch (RemoteException e) {
@@ -897,5 +1363,12 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
                 writer.println("  " + deletionMillis + ", " + mDeletedFiles.get(elapsedMillis));
             }
         }
+
+        mBackgroundExecutor.dump(writer);
+        mUidMapExecutor.dump(writer);
+
+        if (mStatsManagerService != null) {
+            mStatsManagerService.dump(writer);
+        }
     }
 }
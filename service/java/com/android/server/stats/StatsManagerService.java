@@ -27,15 +27,24 @@ import android.os.Binder;
 import android.os.IPullAtomCallback;
 import android.os.IStatsManagerService;
 import android.os.IStatsd;
+import android.os.ParcelFileDescriptor;
+import android.os.PendingIntentRegistrationParcel;
 import android.os.PowerManager;
 import android.os.Process;
+import android.os.PullAtomCallbackRegistrationParcel;
 import android.os.RemoteException;
-import android.util.ArrayMap;
+import android.os.StatsConfigDataParcel;
+import android.os.SystemClock;
+import android.util.ArraySet;
 import android.util.Log;
+import android.util.LongSparseArray;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.GuardedBy;
 
-import java.util.Map;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -52,6 +61,11 @@ public class StatsManagerService extends IStatsManagerService.Stub {
 
     private static final String USAGE_STATS_PERMISSION_OPS = "android:get_usage_stats";
 
+    private static final int MAX_PERMISSION_CACHE_SIZE = 64;
+
+    // Keeps each restoreRegistrations() transaction well below the binder buffer size.
+    private static final int MAX_REGISTRATIONS_PER_TRANSACTION = 256;
+
     @GuardedBy("mLock")
     private IStatsd mStatsd;
     private final Object mLock = new Object();
@@ -59,78 +73,75 @@ public class StatsManagerService extends IStatsManagerService.Stub {
     private StatsCompanionService mStatsCompanionService;
     private Context mContext;
 
+    // The registries below are keyed on primitives, so that lookups do not allocate key objects
+    // or box ids. Per-config registrations are nested by uid, then by config id.
     @GuardedBy("mLock")
-    private ArrayMap<ConfigKey, PendingIntentRef> mDataFetchPirMap = new ArrayMap<>();
+    private final SparseArray<LongSparseArray<PendingIntentRef>> mDataFetchPirMap =
+            new SparseArray<>();
     @GuardedBy("mLock")
-    private ArrayMap<Integer, PendingIntentRef> mActiveConfigsPirMap = new ArrayMap<>();
+    private final SparseArray<PendingIntentRef> mActiveConfigsPirMap = new SparseArray<>();
+    // uid -> config id -> subscriber id -> PendingIntentRef.
     @GuardedBy("mLock")
-    private ArrayMap<ConfigKey, ArrayMap<Long, PendingIntentRef>> mBroadcastSubscriberPirMap =
-            new ArrayMap<>();
+    private final SparseArray<LongSparseArray<LongSparseArray<PendingIntentRef>>>
+            mBroadcastSubscriberPirMap = new SparseArray<>();
+
+    // Callers that hold both DUMP and PACKAGE_USAGE_STATS, so that repeated calls skip the
+    // permission checks. Only positive decisions are cached, and entries are dropped when the
+    // permissions of their uid change. The usage stats app-op is not cached: it is noted on every
+    // call, so that each access is recorded.
+    private final Object mPermissionCacheLock = new Object();
+    @GuardedBy("mPermissionCacheLock")
+    private final ArraySet<PermissionCacheKey> mPermittedCallers = new ArraySet<>();
+    // Incremented on every invalidation, so that a decision made concurrently with a change is
+    // not cached.
+    @GuardedBy("mPermissionCacheLock")
+    private long mPermissionCacheGeneration = 0;
+    @GuardedBy("mPermissionCacheLock")
+    private long mPermissionCacheHits = 0;
+    @GuardedBy("mPermissionCacheLock")
+    private long mPermissionCacheMisses = 0;
+
+    // Size and duration of the last replay of the registrations to statsd.
+    private volatile int mLastRestoreRegistrationCount = 0;
+    private volatile long mLastRestoreDurationMillis = 0;
 
     public StatsManagerService(Context context) {
         super();
         mContext = context;
+        mContext.getPackageManager().addOnPermissionsChangeListener(
+                this::invalidatePermissionCache);
     }
 
-    private static class ConfigKey {
+    private static class PermissionCacheKey {
         private final int mUid;
-        private final long mConfigId;
+        @Nullable
+        private final String mPackageName;
 
-        ConfigKey(int uid, long configId) {
+        PermissionCacheKey(int uid, @Nullable String packageName) {
             mUid = uid;
-            mConfigId = configId;
+            mPackageName = packageName;
         }
 
         public int getUid() {
             return mUid;
         }
 
-        public long getConfigId() {
-            return mConfigId;
+        @Nullable
+        public String getPackageName() {
+            return mPackageName;
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(mUid, mConfigId);
+            return 31 * mUid + Objects.hashCode(mPackageName);
         }
 
         @Override
         public boolean equals(Object obj) {
-            if (obj instanceof ConfigKey) {
-                ConfigKey other = (ConfigKey) obj;
-                return this.mUid == other.getUid() && this.mConfigId == other.getConfigId();
-            }
-            return false;
-        }
-    }
-
-    private static class PullerKey {
-        private final int mUid;
-        private final int mAtomTag;
-
-        PullerKey(int uid, int atom) {
-            mUid = uid;
-            mAtomTag = atom;
-        }
-
-        public int getUid() {
-            return mUid;
-        }
-
-        public int getAtom() {
-            return mAtomTag;
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(mUid, mAtomTag);
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (obj instanceof PullerKey) {
-                PullerKey other = (PullerKey) obj;
-                return this.mUid == other.getUid() && this.mAtomTag == other.getAtom();
+            if (obj instanceof PermissionCacheKey) {
+                PermissionCacheKey other = (PermissionCacheKey) obj;
+                return this.mUid == other.getUid()
+                        && Objects.equals(this.mPackageName, other.getPackageName());
             }
             return false;
         }
@@ -167,7 +178,21 @@ public class StatsManagerService extends IStatsManagerService.Stub {
         }
     }
 
-    private final ArrayMap<PullerKey, PullerValue> mPullers = new ArrayMap<>();
+    // Keyed on packPullerKey(uid, atomTag).
+    @GuardedBy("mLock")
+    private final LongSparseArray<PullerValue> mPullers = new LongSparseArray<>();
+
+    private static long packPullerKey(int uid, int atomTag) {
+        return (((long) uid) << 32) | (atomTag & 0xffffffffL);
+    }
+
+    private static int unpackPullerUid(long key) {
+        return (int) (key >>> 32);
+    }
+
+    private static int unpackPullerAtomTag(long key) {
+        return (int) key;
+    }
 
     @Override
     public void registerPullAtomCallback(int atomTag, long coolDownMillis, long timeoutMillis,
@@ -178,14 +203,13 @@ public class StatsManagerService extends IStatsManagerService.Stub {
             return;
         }
         int callingUid = Binder.getCallingUid();
-        PullerKey key = new PullerKey(callingUid, atomTag);
         PullerValue val =
                 new PullerValue(coolDownMillis, timeoutMillis, additiveFields, pullerCallback);
 
         // Always cache the puller in StatsManagerService. If statsd is down, we will register the
         // puller when statsd comes back up.
         synchronized (mLock) {
-            mPullers.put(key, val);
+            mPullers.put(packPullerKey(callingUid, atomTag), val);
         }
 
         IStatsd statsd = getStatsdNonblocking();
@@ -208,12 +232,11 @@ public class StatsManagerService extends IStatsManagerService.Stub {
     public void unregisterPullAtomCallback(int atomTag) {
         enforceRegisterStatsPullAtomPermission();
         int callingUid = Binder.getCallingUid();
-        PullerKey key = new PullerKey(callingUid, atomTag);
 
         // Always remove the puller from StatsManagerService even if statsd is down. When statsd
         // comes back up, we will not re-register the removed puller.
         synchronized (mLock) {
-            mPullers.remove(key);
+            mPullers.remove(packPullerKey(callingUid, atomTag));
         }
 
         IStatsd statsd = getStatsdNonblocking();
@@ -238,10 +261,14 @@ public class StatsManagerService extends IStatsManagerService.Stub {
         int callingUid = Binder.getCallingUid();
         final long token = Binder.clearCallingIdentity();
         PendingIntentRef pir = new PendingIntentRef(pendingIntent, mContext);
-        ConfigKey key = new ConfigKey(callingUid, configId);
         // We add the PIR to a map so we can reregister if statsd is unavailable.
         synchronized (mLock) {
-            mDataFetchPirMap.put(key, pir);
+            LongSparseArray<PendingIntentRef> uidMap = mDataFetchPirMap.get(callingUid);
+            if (uidMap == null) {
+                uidMap = new LongSparseArray<>();
+                mDataFetchPirMap.put(callingUid, uidMap);
+            }
+            uidMap.put(configId, pir);
         }
         try {
             IStatsd statsd = getStatsdNonblocking();
@@ -260,9 +287,14 @@ public class StatsManagerService extends IStatsManagerService.Stub {
         enforceDumpAndUsageStatsPermission(packageName);
         int callingUid = Binder.getCallingUid();
         final long token = Binder.clearCallingIdentity();
-        ConfigKey key = new ConfigKey(callingUid, configId);
         synchronized (mLock) {
-            mDataFetchPirMap.remove(key);
+            LongSparseArray<PendingIntentRef> uidMap = mDataFetchPirMap.get(callingUid);
+            if (uidMap != null) {
+                uidMap.remove(configId);
+                if (uidMap.size() == 0) {
+                    mDataFetchPirMap.remove(callingUid);
+                }
+            }
         }
         try {
             IStatsd statsd = getStatsdNonblocking();
@@ -327,13 +359,20 @@ public class StatsManagerService extends IStatsManagerService.Stub {
         int callingUid = Binder.getCallingUid();
         final long token = Binder.clearCallingIdentity();
         PendingIntentRef pir = new PendingIntentRef(pendingIntent, mContext);
-        ConfigKey key = new ConfigKey(callingUid, configId);
         // We add the PIR to a map so we can reregister if statsd is unavailable.
         synchronized (mLock) {
-            ArrayMap<Long, PendingIntentRef> innerMap = mBroadcastSubscriberPirMap
-                    .getOrDefault(key, new ArrayMap<>());
+            LongSparseArray<LongSparseArray<PendingIntentRef>> uidMap =
+                    mBroadcastSubscriberPirMap.get(callingUid);
+            if (uidMap == null) {
+                uidMap = new LongSparseArray<>();
+                mBroadcastSubscriberPirMap.put(callingUid, uidMap);
+            }
+            LongSparseArray<PendingIntentRef> innerMap = uidMap.get(configId);
+            if (innerMap == null) {
+                innerMap = new LongSparseArray<>();
+                uidMap.put(configId, innerMap);
+            }
             innerMap.put(subscriberId, pir);
-            mBroadcastSubscriberPirMap.put(key, innerMap);
         }
         try {
             IStatsd statsd = getStatsdNonblocking();
@@ -353,13 +392,19 @@ public class StatsManagerService extends IStatsManagerService.Stub {
         enforceDumpAndUsageStatsPermission(packageName);
         int callingUid = Binder.getCallingUid();
         final long token = Binder.clearCallingIdentity();
-        ConfigKey key = new ConfigKey(callingUid, configId);
         synchronized (mLock) {
-            ArrayMap<Long, PendingIntentRef> innerMap = mBroadcastSubscriberPirMap
-                    .getOrDefault(key, new ArrayMap<>());
-            innerMap.remove(subscriberId);
-            if (innerMap.isEmpty()) {
-                mBroadcastSubscriberPirMap.remove(key);
+            LongSparseArray<LongSparseArray<PendingIntentRef>> uidMap =
+                    mBroadcastSubscriberPirMap.get(callingUid);
+            LongSparseArray<PendingIntentRef> innerMap =
+                    uidMap == null ? null : uidMap.get(configId);
+            if (innerMap != null) {
+                innerMap.remove(subscriberId);
+                if (innerMap.size() == 0) {
+                    uidMap.remove(configId);
+                    if (uidMap.size() == 0) {
+                        mBroadcastSubscriberPirMap.remove(callingUid);
+                    }
+                }
             }
         }
         try {
@@ -435,6 +480,60 @@ public class StatsManagerService extends IStatsManagerService.Stub {
         throw new IllegalStateException("Failed to connect to statsd to getData");
     }
 
+    @Override
+    public void getDataFd(long key, ParcelFileDescriptor fd, String packageName)
+            throws IllegalStateException {
+        enforceDumpAndUsageStatsPermission(packageName);
+        PowerManager powerManager = (PowerManager)
+                mContext.getSystemService(Context.POWER_SERVICE);
+        PowerManager.WakeLock wl = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                /*tag=*/ StatsManagerService.class.getCanonicalName());
+        int callingUid = Binder.getCallingUid();
+        final long token = Binder.clearCallingIdentity();
+        wl.acquire();
+        try {
+            IStatsd statsd = waitForStatsd();
+            if (statsd != null) {
+                statsd.getDataFd(key, callingUid, fd);
+                return;
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to getDataFd with statsd");
+            throw new IllegalStateException(e.getMessage(), e);
+        } finally {
+            wl.release();
+            Binder.restoreCallingIdentity(token);
+        }
+        throw new IllegalStateException("Failed to connect to statsd to getDataFd");
+    }
+
+    @Override
+    public StatsConfigDataParcel[] getDataForConfigs(long[] keys, String packageName)
+            throws IllegalStateException {
+        // One permission check and one wakelock for the whole batch.
+        enforceDumpAndUsageStatsPermission(packageName);
+        PowerManager powerManager = (PowerManager)
+                mContext.getSystemService(Context.POWER_SERVICE);
+        PowerManager.WakeLock wl = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                /*tag=*/ StatsManagerService.class.getCanonicalName());
+        int callingUid = Binder.getCallingUid();
+        final long token = Binder.clearCallingIdentity();
+        wl.acquire();
+        try {
+            IStatsd statsd = waitForStatsd();
+            if (statsd != null) {
+                return statsd.getDataForConfigs(keys, callingUid);
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to getDataForConfigs with statsd");
+            throw new IllegalStateException(e.getMessage(), e);
+        } finally {
+            wl.release();
+            Binder.restoreCallingIdentity(token);
+        }
+        throw new IllegalStateException("Failed to connect to statsd to getDataForConfigs");
+    }
+
     @Override
     public void addConfiguration(long configId, byte[] config, String packageName)
             throws IllegalStateException {
@@ -456,6 +555,26 @@ public class StatsManagerService extends IStatsManagerService.Stub {
         throw new IllegalStateException("Failed to connect to statsd to addConfig");
     }
 
+    @Override
+    public long[] addConfigurations(StatsConfigDataParcel[] configs, String packageName)
+            throws IllegalStateException {
+        enforceDumpAndUsageStatsPermission(packageName);
+        int callingUid = Binder.getCallingUid();
+        final long token = Binder.clearCallingIdentity();
+        try {
+            IStatsd statsd = waitForStatsd();
+            if (statsd != null) {
+                return statsd.addConfigurations(configs, callingUid);
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to addConfigurations with statsd");
+            throw new IllegalStateException(e.getMessage(), e);
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+        throw new IllegalStateException("Failed to connect to statsd to addConfigs");
+    }
+
     @Override
     public void removeConfiguration(long configId, String packageName)
             throws IllegalStateException {
@@ -477,6 +596,27 @@ public class StatsManagerService extends IStatsManagerService.Stub {
         throw new IllegalStateException("Failed to connect to statsd to removeConfig");
     }
 
+    @Override
+    public void removeConfigurations(long[] configIds, String packageName)
+            throws IllegalStateException {
+        enforceDumpAndUsageStatsPermission(packageName);
+        int callingUid = Binder.getCallingUid();
+        final long token = Binder.clearCallingIdentity();
+        try {
+            IStatsd statsd = waitForStatsd();
+            if (statsd != null) {
+                statsd.removeConfigurations(configIds, callingUid);
+                return;
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to removeConfigurations with statsd");
+            throw new IllegalStateException(e.getMessage(), e);
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+        throw new IllegalStateException("Failed to connect to statsd to removeConfigs");
+    }
+
     void setStatsCompanionService(StatsCompanionService statsCompanionService) {
         mStatsCompanionService = statsCompanionService;
     }
@@ -495,8 +635,24 @@ public class StatsManagerService extends IStatsManagerService.Stub {
             return;
         }
 
-        mContext.enforceCallingPermission(Manifest.permission.DUMP, null);
-        mContext.enforceCallingPermission(Manifest.permission.PACKAGE_USAGE_STATS, null);
+        PermissionCacheKey key = new PermissionCacheKey(callingUid, packageName);
+        boolean permitted;
+        long generation;
+        synchronized (mPermissionCacheLock) {
+            permitted = mPermittedCallers.contains(key);
+            if (permitted) {
+                mPermissionCacheHits++;
+            } else {
+                mPermissionCacheMisses++;
+            }
+            generation = mPermissionCacheGeneration;
+        }
+
+        if (!permitted) {
+            mContext.enforceCallingPermission(Manifest.permission.DUMP, null);
+            mContext.enforceCallingPermission(Manifest.permission.PACKAGE_USAGE_STATS, null);
+            cachePermittedCaller(key, generation);
+        }
 
         if (packageName == null) {
             return;
@@ -516,6 +672,41 @@ public class StatsManagerService extends IStatsManagerService.Stub {
         }
     }
 
+    private void cachePermittedCaller(PermissionCacheKey key, long generation) {
+        synchronized (mPermissionCacheLock) {
+            if (generation != mPermissionCacheGeneration) {
+                return;
+            }
+            if (mPermittedCallers.size() >= MAX_PERMISSION_CACHE_SIZE) {
+                mPermittedCallers.clear();
+            }
+            mPermittedCallers.add(key);
+        }
+    }
+
+    /**
+     * Drops the cached permission decisions of the given uid.
+     */
+    private void invalidatePermissionCache(int uid) {
+        synchronized (mPermissionCacheLock) {
+            mPermissionCacheGeneration++;
+            for (int i = mPermittedCallers.size() - 1; i >= 0; i--) {
+                if (mPermittedCallers.valueAt(i).getUid() == uid) {
+                    mPermittedCallers.removeAt(i);
+                }
+            }
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mPermissionCacheLock) {
+            writer.println("Permission cache: " + mPermittedCallers.size() + " entries, "
+                    + mPermissionCacheHits + " hits, " + mPermissionCacheMisses + " misses");
+        }
+        writer.println("Last statsd restore: " + mLastRestoreRegistrationCount
+                + " registrations in " + mLastRestoreDurationMillis + "ms");
+    }
+
     private void enforceRegisterStatsPullAtomPermission() {
         mContext.enforceCallingOrSelfPermission(
                 android.Manifest.permission.REGISTER_STATS_PULL_ATOM,
@@ -561,7 +752,8 @@ public class StatsManagerService extends IStatsManagerService.Stub {
     void statsdReady(IStatsd statsd) {
         synchronized (mLock) {
             mStatsd = statsd;
-            mLock.notify();
+            // Wake up every request waiting for statsd, not just one.
+            mLock.notifyAll();
         }
         sayHiToStatsd(statsd);
     }
@@ -583,86 +775,162 @@ public class StatsManagerService extends IStatsManagerService.Stub {
             return;
         }
 
+        final long startMillis = SystemClock.elapsedRealtime();
+        // Since we do not want to make an IPC with the lock held, we first snapshot the
+        // registrations with the lock held, and then send them outside of the lock.
+        ArrayList<PullAtomCallbackRegistrationParcel> pullers;
+        ArrayList<PendingIntentRegistrationParcel> dataFetchOperations;
+        ArrayList<PendingIntentRegistrationParcel> activeConfigsChangedOperations;
+        ArrayList<PendingIntentRegistrationParcel> broadcastSubscribers;
+        synchronized (mLock) {
+            pullers = getPullerRegistrationsLocked();
+            dataFetchOperations = getDataFetchRegistrationsLocked();
+            activeConfigsChangedOperations = getActiveConfigsChangedRegistrationsLocked();
+            broadcastSubscribers = getBroadcastSubscriberRegistrationsLocked();
+        }
+
         final long token = Binder.clearCallingIdentity();
         try {
-            registerAllPullers(statsd);
-            registerAllDataFetchOperations(statsd);
-            registerAllActiveConfigsChangedOperations(statsd);
-            registerAllBroadcastSubscribers(statsd);
+            restoreRegistrations(statsd, pullers, dataFetchOperations,
+                    activeConfigsChangedOperations, broadcastSubscribers);
+            statsd.allPullersFromBootRegistered();
         } catch (RemoteException e) {
             Log.e(TAG, "StatsManager failed to (re-)register data with statsd");
+            return;
         } finally {
             Binder.restoreCallingIdentity(token);
         }
-    }
-
-    // Pre-condition: the Binder calling identity has already been cleared
-    private void registerAllPullers(IStatsd statsd) throws RemoteException {
-        // Since we do not want to make an IPC with the lock held, we first create a copy of the
-        // data with the lock held before iterating through the map.
-        ArrayMap<PullerKey, PullerValue> pullersCopy;
-        synchronized (mLock) {
-            pullersCopy = new ArrayMap<>(mPullers);
-        }
 
-        for (Map.Entry<PullerKey, PullerValue> entry : pullersCopy.entrySet()) {
-            PullerKey key = entry.getKey();
-            PullerValue value = entry.getValue();
-            statsd.registerPullAtomCallback(key.getUid(), key.getAtom(), value.getCoolDownMillis(),
-                    value.getTimeoutMillis(), value.getAdditiveFields(), value.getCallback());
-        }
-        statsd.allPullersFromBootRegistered();
+        final int count = pullers.size() + dataFetchOperations.size()
+                + activeConfigsChangedOperations.size() + broadcastSubscribers.size();
+        final long durationMillis = SystemClock.elapsedRealtime() - startMillis;
+        mLastRestoreRegistrationCount = count;
+        mLastRestoreDurationMillis = durationMillis;
+        Log.i(TAG, "Restored " + count + " registrations with statsd in " + durationMillis + "ms");
     }
 
-    // Pre-condition: the Binder calling identity has already been cleared
-    private void registerAllDataFetchOperations(IStatsd statsd) throws RemoteException {
-        // Since we do not want to make an IPC with the lock held, we first create a copy of the
-        // data with the lock held before iterating through the map.
-        ArrayMap<ConfigKey, PendingIntentRef> dataFetchCopy;
-        synchronized (mLock) {
-            dataFetchCopy = new ArrayMap<>(mDataFetchPirMap);
+    /**
+     * Sends the registrations to statsd, with at most MAX_REGISTRATIONS_PER_TRANSACTION of them
+     * in each binder transaction.
+     *
+     * Pre-condition: the Binder calling identity has already been cleared
+     */
+    private static void restoreRegistrations(IStatsd statsd,
+            List<PullAtomCallbackRegistrationParcel> pullers,
+            List<PendingIntentRegistrationParcel> dataFetchOperations,
+            List<PendingIntentRegistrationParcel> activeConfigsChangedOperations,
+            List<PendingIntentRegistrationParcel> broadcastSubscribers) throws RemoteException {
+        int pullerStart = 0;
+        int dataFetchStart = 0;
+        int activeConfigsChangedStart = 0;
+        int broadcastSubscriberStart = 0;
+        while (pullerStart < pullers.size()
+                || dataFetchStart < dataFetchOperations.size()
+                || activeConfigsChangedStart < activeConfigsChangedOperations.size()
+                || broadcastSubscriberStart < broadcastSubscribers.size()) {
+            int remaining = MAX_REGISTRATIONS_PER_TRANSACTION;
+            final int pullerEnd = Math.min(pullers.size(), pullerStart + remaining);
+            remaining -= pullerEnd - pullerStart;
+            final int dataFetchEnd =
+                    Math.min(dataFetchOperations.size(), dataFetchStart + remaining);
+            remaining -= dataFetchEnd - dataFetchStart;
+            final int activeConfigsChangedEnd = Math.min(
+                    activeConfigsChangedOperations.size(), activeConfigsChangedStart + remaining);
+            remaining -= activeConfigsChangedEnd - activeConfigsChangedStart;
+            final int broadcastSubscriberEnd =
+                    Math.min(broadcastSubscribers.size(), broadcastSubscriberStart + remaining);
+
+            statsd.restoreRegistrations(
+                    pullers.subList(pullerStart, pullerEnd)
+                            .toArray(new PullAtomCallbackRegistrationParcel[0]),
+                    dataFetchOperations.subList(dataFetchStart, dataFetchEnd)
+                            .toArray(new PendingIntentRegistrationParcel[0]),
+                    activeConfigsChangedOperations
+                            .subList(activeConfigsChangedStart, activeConfigsChangedEnd)
+                            .toArray(new PendingIntentRegistrationParcel[0]),
+                    broadcastSubscribers.subList(broadcastSubscriberStart, broadcastSubscriberEnd)
+                            .toArray(new PendingIntentRegistrationParcel[0]));
+
+            pullerStart = pullerEnd;
+            dataFetchStart = dataFetchEnd;
+            activeConfigsChangedStart = activeConfigsChangedEnd;
+            broadcastSubscriberStart = broadcastSubscriberEnd;
         }
+    }
 
-        for (Map.Entry<ConfigKey, PendingIntentRef> entry : dataFetchCopy.entrySet()) {
-            ConfigKey key = entry.getKey();
-            statsd.setDataFetchOperation(key.getConfigId(), entry.getValue(), key.getUid());
-        }
+    @GuardedBy("mLock")
+    private ArrayList<PullAtomCallbackRegistrationParcel> getPullerRegistrationsLocked() {
+        ArrayList<PullAtomCallbackRegistrationParcel> registrations =
+                new ArrayList<>(mPullers.size());
+        for (int i = 0; i < mPullers.size(); i++) {
+            long key = mPullers.keyAt(i);
+            PullerValue value = mPullers.valueAt(i);
+            PullAtomCallbackRegistrationParcel registration =
+                    new PullAtomCallbackRegistrationParcel();
+            registration.uid = unpackPullerUid(key);
+            registration.atomTag = unpackPullerAtomTag(key);
+            registration.coolDownMillis = value.getCoolDownMillis();
+            registration.timeoutMillis = value.getTimeoutMillis();
+            registration.additiveFields = value.getAdditiveFields();
+            registration.callback = value.getCallback();
+            registrations.add(registration);
+        }
+        return registrations;
     }
 
-    // Pre-condition: the Binder calling identity has already been cleared
-    private void registerAllActiveConfigsChangedOperations(IStatsd statsd) throws RemoteException {
-        // Since we do not want to make an IPC with the lock held, we first create a copy of the
-        // data with the lock held before iterating through the map.
-        ArrayMap<Integer, PendingIntentRef> activeConfigsChangedCopy;
-        synchronized (mLock) {
-            activeConfigsChangedCopy = new ArrayMap<>(mActiveConfigsPirMap);
+    @GuardedBy("mLock")
+    private ArrayList<PendingIntentRegistrationParcel> getDataFetchRegistrationsLocked() {
+        ArrayList<PendingIntentRegistrationParcel> registrations = new ArrayList<>();
+        for (int i = 0; i < mDataFetchPirMap.size(); i++) {
+            int uid = mDataFetchPirMap.keyAt(i);
+            LongSparseArray<PendingIntentRef> uidMap = mDataFetchPirMap.valueAt(i);
+            for (int j = 0; j < uidMap.size(); j++) {
+                registrations.add(newPendingIntentRegistration(uid, uidMap.keyAt(j),
+                        /*subscriberId=*/ 0, uidMap.valueAt(j)));
+            }
         }
+        return registrations;
+    }
 
-        for (Map.Entry<Integer, PendingIntentRef> entry : activeConfigsChangedCopy.entrySet()) {
-            statsd.setActiveConfigsChangedOperation(entry.getValue(), entry.getKey());
-        }
+    @GuardedBy("mLock")
+    private ArrayList<PendingIntentRegistrationParcel>
+            getActiveConfigsChangedRegistrationsLocked() {
+        ArrayList<PendingIntentRegistrationParcel> registrations =
+                new ArrayList<>(mActiveConfigsPirMap.size());
+        for (int i = 0; i < mActiveConfigsPirMap.size(); i++) {
+            registrations.add(newPendingIntentRegistration(mActiveConfigsPirMap.keyAt(i),
+                    /*configId=*/ 0, /*subscriberId=*/ 0, mActiveConfigsPirMap.valueAt(i)));
+        }
+        return registrations;
     }
 
-    // Pre-condition: the Binder calling identity has already been cleared
-    private void registerAllBroadcastSubscribers(IStatsd statsd) throws RemoteException {
-        // Since we do not want to make an IPC with the lock held, we first create a deep copy of
-        // the data with the lock held before iterating through the map.
-        ArrayMap<ConfigKey, ArrayMap<Long, PendingIntentRef>> broadcastSubscriberCopy =
-                new ArrayMap<>();
-        synchronized (mLock) {
-            for (Map.Entry<ConfigKey, ArrayMap<Long, PendingIntentRef>> entry :
-                    mBroadcastSubscriberPirMap.entrySet()) {
-                broadcastSubscriberCopy.put(entry.getKey(), new ArrayMap(entry.getValue()));
+    @GuardedBy("mLock")
+    private ArrayList<PendingIntentRegistrationParcel>
+            getBroadcastSubscriberRegistrationsLocked() {
+        ArrayList<PendingIntentRegistrationParcel> registrations = new ArrayList<>();
+        for (int i = 0; i < mBroadcastSubscriberPirMap.size(); i++) {
+            int uid = mBroadcastSubscriberPirMap.keyAt(i);
+            LongSparseArray<LongSparseArray<PendingIntentRef>> uidMap =
+                    mBroadcastSubscriberPirMap.valueAt(i);
+            for (int j = 0; j < uidMap.size(); j++) {
+                long configId = uidMap.keyAt(j);
+                LongSparseArray<PendingIntentRef> subscribers = uidMap.valueAt(j);
+                for (int k = 0; k < subscribers.size(); k++) {
+                    registrations.add(newPendingIntentRegistration(uid, configId,
+                            subscribers.keyAt(k), subscribers.valueAt(k)));
+                }
             }
         }
+        return registrations;
+    }
 
-        for (Map.Entry<ConfigKey, ArrayMap<Long, PendingIntentRef>> entry :
-                mBroadcastSubscriberPirMap.entrySet()) {
-            ConfigKey configKey = entry.getKey();
-            for (Map.Entry<Long, PendingIntentRef> subscriberEntry : entry.getValue().entrySet()) {
-                statsd.setBroadcastSubscriber(configKey.getConfigId(), subscriberEntry.getKey(),
-                        subscriberEntry.getValue(), configKey.getUid());
-            }
-        }
+    private static PendingIntentRegistrationParcel newPendingIntentRegistration(int uid,
+            long configId, long subscriberId, PendingIntentRef pir) {
+        PendingIntentRegistrationParcel registration = new PendingIntentRegistrationParcel();
+        registration.uid = uid;
+        registration.configId = configId;
+        registration.subscriberId = subscriberId;
+        registration.pendingIntentRef = pir;
+        return registration;
     }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.server.stats;
+
+import android.annotation.Nullable;
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs StatsCompanionService's background work, such as informing statsd of alarms and syncing
+ * the uid map, on a fixed set of long-lived threads.
+ *
+ * <p>A task can hold a partial wakelock from the time it is submitted until it completes, so that
+ * the device does not suspend while the task is queued or running.</p>
+ */
+final class WakelockExecutor {
+    private static final String TAG = "WakelockExecutor";
+
+    private static final int MAX_QUEUED_TASKS = 64;
+
+    private final Context mContext;
+    private final String mName;
+    private final ThreadPoolExecutor mExecutor;
+
+    @GuardedBy("mWakeLocks")
+    private final ArrayMap<String, PowerManager.WakeLock> mWakeLocks = new ArrayMap<>();
+
+    private final AtomicLong mTaskCount = new AtomicLong();
+    private final AtomicLong mRejectedTaskCount = new AtomicLong();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final AtomicLong mTotalQueueMillis = new AtomicLong();
+    private final AtomicLong mMaxQueueMillis = new AtomicLong();
+    private final AtomicLong mTotalRunMillis = new AtomicLong();
+    private final AtomicLong mMaxRunMillis = new AtomicLong();
+
+    /**
+     * @param name       name of the executor, used in its thread names and in the dump.
+     * @param numThreads number of threads. With a single thread, the tasks run in the order they
+     *                   were submitted.
+     */
+    WakelockExecutor(Context context, String name, int numThreads) {
+        mContext = context;
+        mName = name;
+        final AtomicInteger threadCount = new AtomicInteger();
+        // The threads are kept for the lifetime of the system server, as tasks arrive regularly.
+        mExecutor = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_TASKS),
+                r -> new Thread(r, name + "-" + threadCount.incrementAndGet()));
+        mExecutor.allowCoreThreadTimeOut(false);
+    }
+
+    /**
+     * Runs the task on a background thread.
+     *
+     * <p>If the queue is full, the task is run on the calling thread instead of being dropped.</p>
+     *
+     * @param wakelockName name of the wakelock to hold until the task completes, or null to not
+     *                     hold any.
+     */
+    void execute(@Nullable String wakelockName, Runnable runnable) {
+        final PowerManager.WakeLock wakeLock =
+                wakelockName == null ? null : getWakeLock(wakelockName);
+        if (wakeLock != null) {
+            wakeLock.acquire();
+        }
+        final long submitMillis = SystemClock.elapsedRealtime();
+        final Runnable task = () -> {
+            final long startMillis = SystemClock.elapsedRealtime();
+            try {
+                runnable.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Background task failed", e);
+            } finally {
+                if (wakeLock != null) {
+                    wakeLock.release();
+                }
+                recordTask(startMillis - submitMillis,
+                        SystemClock.elapsedRealtime() - startMillis);
+            }
+        };
+
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            mRejectedTaskCount.incrementAndGet();
+            Log.w(TAG, mName + " queue is full, running task on the calling thread");
+            task.run();
+            return;
+        }
+        mMaxQueueDepth.accumulateAndGet(mExecutor.getQueue().size(), Math::max);
+    }
+
+    void dump(PrintWriter writer) {
+        final long taskCount = mTaskCount.get();
+        writer.println(mName + " tasks: " + taskCount + " run, "
+                + mRejectedTaskCount.get() + " run on the caller, queue depth "
+                + mExecutor.getQueue().size() + " (max " + mMaxQueueDepth.get() + ")");
+        if (taskCount > 0) {
+            writer.println("  queue latency: avg " + mTotalQueueMillis.get() / taskCount
+                    + "ms, max " + mMaxQueueMillis.get() + "ms");
+            writer.println("  run time: avg " + mTotalRunMillis.get() / taskCount
+                    + "ms, max " + mMaxRunMillis.get() + "ms");
+        }
+    }
+
+    private PowerManager.WakeLock getWakeLock(String wakelockName) {
+        synchronized (mWakeLocks) {
+            PowerManager.WakeLock wakeLock = mWakeLocks.get(wakelockName);
+            if (wakeLock == null) {
+                PowerManager powerManager = (PowerManager)
+                        mContext.getSystemService(Context.POWER_SERVICE);
+                wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, wakelockName);
+                // Reference counted, as several tasks may hold the same wakelock.
+                wakeLock.setReferenceCounted(true);
+                mWakeLocks.put(wakelockName, wakeLock);
+            }
+            return wakeLock;
+        }
+    }
+
+    private void recordTask(long queueMillis, long runMillis) {
+        mTaskCount.incrementAndGet();
+        mTotalQueueMillis.addAndGet(queueMillis);
+        mMaxQueueMillis.accumulateAndGet(queueMillis, Math::max);
+        mTotalRunMillis.addAndGet(runMillis);
+        mMaxRunMillis.accumulateAndGet(runMillis, Math::max);
+    }
+}
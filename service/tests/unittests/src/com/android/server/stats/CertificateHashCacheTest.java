@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.server.stats;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.Signature;
+import android.content.pm.SigningDetails;
+import android.content.pm.SigningInfo;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public final class CertificateHashCacheTest {
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private static PackageInfo createPackageInfo(String packageName, long lastUpdateTime,
+            byte[]... signatures) {
+        Signature[] signers = new Signature[signatures.length];
+        for (int i = 0; i < signatures.length; i++) {
+            signers[i] = new Signature(signatures[i]);
+        }
+        PackageInfo pi = new PackageInfo();
+        pi.packageName = packageName;
+        pi.lastUpdateTime = lastUpdateTime;
+        pi.signingInfo = new SigningInfo(new SigningDetails(signers,
+                SigningDetails.SignatureSchemeVersion.SIGNING_BLOCK_V3, /*keys=*/ null,
+                /*pastSigningCertificates=*/ null));
+        return pi;
+    }
+
+    private File getCacheFile() {
+        return new File(mTemporaryFolder.getRoot(), "certificate_hash_cache");
+    }
+
+    @Test
+    public void testHashIsCachedWhilePackageIsUnchanged() {
+        CertificateHashCache cache = new CertificateHashCache(/*file=*/ null);
+        PackageInfo pi = createPackageInfo("app", 1, new byte[] {1, 2, 3});
+
+        byte[] hash = cache.get(pi);
+        assertThat(hash).isEqualTo(StatsCompanionService.getPackageCertificateHash(
+                pi.signingInfo));
+        assertThat(cache.get(pi)).isSameInstanceAs(hash);
+    }
+
+    @Test
+    public void testHashIsRecomputedWhenLastUpdateTimeChanges() {
+        CertificateHashCache cache = new CertificateHashCache(/*file=*/ null);
+        byte[] hash = cache.get(createPackageInfo("app", 1, new byte[] {1, 2, 3}));
+
+        byte[] updatedHash = cache.get(createPackageInfo("app", 2, new byte[] {1, 2, 3}));
+        assertThat(updatedHash).isNotSameInstanceAs(hash);
+        assertThat(updatedHash).isEqualTo(hash);
+    }
+
+    @Test
+    public void testHashIsRecomputedWhenSignaturesChange() {
+        CertificateHashCache cache = new CertificateHashCache(/*file=*/ null);
+        byte[] hash = cache.get(createPackageInfo("app", 1, new byte[] {1, 2, 3}));
+
+        PackageInfo resigned = createPackageInfo("app", 1, new byte[] {4, 5, 6});
+        byte[] updatedHash = cache.get(resigned);
+        assertThat(updatedHash).isNotEqualTo(hash);
+        assertThat(updatedHash).isEqualTo(StatsCompanionService.getPackageCertificateHash(
+                resigned.signingInfo));
+    }
+
+    @Test
+    public void testPersistAndLoad() {
+        PackageInfo app1 = createPackageInfo("app1", 1, new byte[] {1, 2, 3});
+        PackageInfo app2 = createPackageInfo("app2", 2, new byte[] {4, 5, 6}, new byte[] {7});
+        CertificateHashCache cache = new CertificateHashCache(getCacheFile());
+        byte[] hash1 = cache.get(app1);
+        byte[] hash2 = cache.get(app2);
+        cache.persist();
+
+        CertificateHashCache loadedCache = new CertificateHashCache(getCacheFile());
+        assertThat(loadedCache.size()).isEqualTo(2);
+        assertThat(loadedCache.get(app1)).isEqualTo(hash1);
+        assertThat(loadedCache.get(app2)).isEqualTo(hash2);
+    }
+
+    @Test
+    public void testCorruptFileIsIgnored() throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(getCacheFile())) {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(CertificateHashCache.FILE_VERSION);
+            out.writeInt(/*count=*/ 2);
+            out.writeUTF("app");
+            out.writeLong(/*lastUpdateTime=*/ 1);
+            out.writeInt(/*signaturesHash=*/ 0);
+            // Larger than any certificate hash.
+            out.writeInt(1024);
+            out.flush();
+        }
+
+        CertificateHashCache cache = new CertificateHashCache(getCacheFile());
+        assertThat(cache.size()).isEqualTo(0);
+
+        PackageInfo pi = createPackageInfo("app", 1, new byte[] {1, 2, 3});
+        assertThat(cache.get(pi)).isEqualTo(
+                StatsCompanionService.getPackageCertificateHash(pi.signingInfo));
+    }
+
+    @Test
+    public void testTruncatedFileIsIgnored() throws IOException {
+        CertificateHashCache cache = new CertificateHashCache(getCacheFile());
+        cache.get(createPackageInfo("app1", 1, new byte[] {1, 2, 3}));
+        cache.get(createPackageInfo("app2", 1, new byte[] {4, 5, 6}));
+        cache.persist();
+
+        File file = getCacheFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+
+        // Entries read before the truncation are dropped too.
+        assertThat(new CertificateHashCache(file).size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testOtherFileVersionIsIgnored() throws IOException {
+        CertificateHashCache cache = new CertificateHashCache(getCacheFile());
+        cache.get(createPackageInfo("app", 1, new byte[] {1, 2, 3}));
+        cache.persist();
+        assertThat(new CertificateHashCache(getCacheFile()).size()).isEqualTo(1);
+
+        // The version is the first field of the file.
+        try (RandomAccessFile file = new RandomAccessFile(getCacheFile(), "rw")) {
+            file.writeInt(CertificateHashCache.FILE_VERSION + 1);
+        }
+        assertThat(new CertificateHashCache(getCacheFile()).size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testPruneDropsPackagesNotLookedUp() {
+        CertificateHashCache cache = new CertificateHashCache(/*file=*/ null);
+        PackageInfo app1 = createPackageInfo("app1", 1, new byte[] {1, 2, 3});
+        PackageInfo app2 = createPackageInfo("app2", 1, new byte[] {4, 5, 6});
+        cache.get(app1);
+        cache.get(app2);
+        cache.prune();
+        assertThat(cache.size()).isEqualTo(2);
+
+        // Only app1 is still installed at the next full sync.
+        cache.get(app1);
+        cache.prune();
+        assertThat(cache.size()).isEqualTo(1);
+
+        cache.remove("app1");
+        assertThat(cache.size()).isEqualTo(0);
+    }
+}
@@ -28,7 +28,11 @@
 
 #include <android-base/file.h>
 #include <android-base/strings.h>
+#include <android-base/unique_fd.h>
 #include <cutils/multiuser.h>
+#include <fcntl.h>
+#include <limits.h>
+#include <poll.h>
 #include <src/statsd_config.pb.h>
 #include <src/uid_data.pb.h>
 #include <private/android_filesystem_config.h>
@@ -39,6 +43,9 @@
 #include <unistd.h>
 #include <utils/String16.h>
 
+#include <deque>
+#include <thread>
+
 using namespace android;
 
 using android::base::StringPrintf;
@@ -121,6 +128,7 @@ StatsService::StatsService(const sp<Looper>& handlerLooper, shared_ptr<LogEventQ
       mStatsCompanionServiceDeathRecipient(
               AIBinder_DeathRecipient_new(StatsService::statsCompanionServiceDied)) {
     mUidMap = UidMap::getInstance();
+    mReportWriteQueue = std::make_shared<ReportWriteQueue>();
     mPullerManager = new StatsPullerManager();
     StatsPuller::SetUidMap(mUidMap);
     mConfigManager = new ConfigManager();
@@ -942,6 +950,10 @@ Status StatsService::informAllUidData(const ScopedFileDescriptor& fd) {
     if (!uidData.ParseFromString(buffer)) {
         return exception(EX_ILLEGAL_ARGUMENT, "Error parsing proto stream for UidData.");
     }
+    // The generation is written last, so a uid map without it was cut short by the sender.
+    if (!uidData.has_generation()) {
+        return exception(EX_ILLEGAL_ARGUMENT, "Incomplete UidData without a generation.");
+    }
 
     vector<String16> versionStrings;
     vector<String16> installers;
@@ -969,14 +981,75 @@ Status StatsService::informAllUidData(const ScopedFileDescriptor& fd) {
         certificateHashes.emplace_back(certHash.begin(), certHash.end());
     }
 
-    mUidMap->updateMap(getElapsedRealtimeNs(), uids, versions, versionStrings, packageNames,
-                       installers, certificateHashes);
+    {
+        std::lock_guard<std::mutex> lock(mUidMapGenerationMutex);
+        mUidMap->updateMap(getElapsedRealtimeNs(), uids, versions, versionStrings, packageNames,
+                           installers, certificateHashes);
+        mUidMapGeneration = uidData.generation();
+    }
 
     mBootCompleteTrigger.markComplete(kUidMapReceivedTag);
     VLOG("StatsService::informAllUidData UidData proto parsed successfully.");
     return Status::ok();
 }
 
+Status StatsService::informUidDataDelta(const vector<uint8_t>& data, bool* _aidl_return) {
+    ENFORCE_UID(AID_SYSTEM);
+
+    UidData uidData;
+    if (!uidData.ParseFromArray(data.data(), data.size())) {
+        return exception(EX_ILLEGAL_ARGUMENT, "Error parsing proto stream for UidData delta.");
+    }
+
+    std::lock_guard<std::mutex> lock(mUidMapGenerationMutex);
+    if (mUidMapGeneration == 0 || uidData.base_generation() != mUidMapGeneration) {
+        VLOG("StatsService::informUidDataDelta at generation %lld, expected %lld",
+             (long long)mUidMapGeneration, (long long)uidData.base_generation());
+        *_aidl_return = false;
+        return Status::ok();
+    }
+
+    applyUidDataChanges(uidData, /*removeConfigs=*/false);
+    mUidMapGeneration = uidData.generation();
+
+    VLOG("StatsService::informUidDataDelta applied %d changes and %d removals",
+         uidData.app_info_size(), uidData.removed_app_size());
+    *_aidl_return = true;
+    return Status::ok();
+}
+
+Status StatsService::informPackageChanges(const vector<uint8_t>& data) {
+    ENFORCE_UID(AID_SYSTEM);
+
+    UidData uidData;
+    if (!uidData.ParseFromArray(data.data(), data.size())) {
+        return exception(EX_ILLEGAL_ARGUMENT, "Error parsing proto stream for package changes.");
+    }
+
+    VLOG("StatsService::informPackageChanges was called with %d updates and %d removals",
+         uidData.app_info_size(), uidData.removed_app_size());
+    // Like informOnePackageRemoved, drop the configs of removed apps.
+    applyUidDataChanges(uidData, /*removeConfigs=*/true);
+    return Status::ok();
+}
+
+void StatsService::applyUidDataChanges(const UidData& uidData, bool removeConfigs) {
+    const int64_t timestamp = getElapsedRealtimeNs();
+    for (const auto& appInfo : uidData.removed_app()) {
+        mUidMap->removeApp(timestamp, String16(appInfo.package_name().c_str()), appInfo.uid());
+        if (removeConfigs) {
+            mConfigManager->RemoveConfigs(appInfo.uid());
+        }
+    }
+    for (const auto& appInfo : uidData.app_info()) {
+        const string& certHash = appInfo.certificate_hash();
+        mUidMap->updateApp(timestamp, String16(appInfo.package_name().c_str()), appInfo.uid(),
+                           appInfo.version(), String16(appInfo.version_string().c_str()),
+                           String16(appInfo.installer().c_str()),
+                           vector<uint8_t>(certHash.begin(), certHash.end()));
+    }
+}
+
 Status StatsService::informOnePackage(const string& app, int32_t uid, int64_t version,
                                       const string& versionString, const string& installer,
                                       const vector<uint8_t>& certificateHash) {
@@ -1128,6 +1201,151 @@ Status StatsService::getData(int64_t key, const int32_t callingUid, vector<uint8
     return Status::ok();
 }
 
+namespace {
+
+// Writes the proto to fd, waiting at most until deadlineNs for the reader to drain it.
+bool writeProtoWithDeadline(ProtoOutputStream& proto, int fd, int64_t deadlineNs) {
+    sp<android::util::ProtoReader> reader = proto.data();
+    while (reader->readBuffer() != NULL) {
+        const int64_t remainingNs = deadlineNs - getElapsedRealtimeNs();
+        if (remainingNs <= 0) {
+            return false;
+        }
+        struct pollfd pfd = {.fd = fd, .events = POLLOUT};
+        const int ret = TEMP_FAILURE_RETRY(poll(&pfd, 1, NanoToMillis(remainingNs) + 1));
+        if (ret <= 0 || (pfd.revents & (POLLERR | POLLHUP | POLLNVAL))) {
+            return false;
+        }
+        // A writable pipe takes PIPE_BUF bytes without blocking.
+        const size_t toWrite = std::min(reader->currentToRead(), (size_t)PIPE_BUF);
+        const ssize_t n = TEMP_FAILURE_RETRY(write(fd, reader->readBuffer(), toWrite));
+        if (n <= 0) {
+            return false;
+        }
+        reader->move(n);
+    }
+    return true;
+}
+
+}  // anonymous namespace
+
+struct StatsService::ReportWriteQueue {
+    struct ReportWrite {
+        ConfigKey configKey;
+        shared_ptr<ProtoOutputStream> proto;
+        android::base::unique_fd fd;
+    };
+
+    std::mutex mMutex;
+    // Reports being dumped, queued or written.
+    int mNumPending = 0;
+    std::deque<ReportWrite> mWrites;
+    bool mWriterRunning = false;
+};
+
+void StatsService::writeQueuedReports(const shared_ptr<ReportWriteQueue>& queue) {
+    while (true) {
+        ReportWriteQueue::ReportWrite reportWrite;
+        {
+            std::lock_guard<std::mutex> lock(queue->mMutex);
+            if (queue->mWrites.empty()) {
+                queue->mWriterRunning = false;
+                return;
+            }
+            reportWrite = std::move(queue->mWrites.front());
+            queue->mWrites.pop_front();
+        }
+        const size_t size = reportWrite.proto->size();
+        const int64_t deadlineNs = getElapsedRealtimeNs() + kGetDataFdTimeoutNs;
+        if (writeProtoWithDeadline(*reportWrite.proto, reportWrite.fd.get(), deadlineNs)) {
+            StatsdStats::getInstance().noteMetricsReportSent(reportWrite.configKey, size);
+        } else {
+            // The report was erased from memory when it was dumped, so it is lost.
+            ALOGW("Failed to write the report of %s to the file descriptor",
+                  reportWrite.configKey.ToString().c_str());
+            StatsdStats::getInstance().noteDataDropped(reportWrite.configKey, size);
+        }
+        reportWrite.fd.reset();
+        reportWrite.proto.reset();
+        {
+            std::lock_guard<std::mutex> lock(queue->mMutex);
+            queue->mNumPending--;
+        }
+    }
+}
+
+Status StatsService::getDataFd(int64_t key, const int32_t callingUid,
+                               const ScopedFileDescriptor& fd) {
+    ENFORCE_UID(AID_SYSTEM);
+
+    VLOG("StatsService::getDataFd with Uid %i", callingUid);
+    ConfigKey configKey(callingUid, key);
+    {
+        std::lock_guard<std::mutex> lock(mReportWriteQueue->mMutex);
+        if (mReportWriteQueue->mNumPending >= kMaxPendingReportWrites) {
+            return exception(EX_ILLEGAL_STATE, "Too many reports being written.");
+        }
+        mReportWriteQueue->mNumPending++;
+    }
+    // The binder fd is closed when this call returns, so the writer thread uses its own.
+    android::base::unique_fd writeFd(fcntl(fd.get(), F_DUPFD_CLOEXEC, 0));
+    if (writeFd.get() < 0) {
+        std::lock_guard<std::mutex> lock(mReportWriteQueue->mMutex);
+        mReportWriteQueue->mNumPending--;
+        return exception(EX_ILLEGAL_STATE, "Failed to dup the file descriptor.");
+    }
+    // Write the report from the proto's chunks, instead of copying it to one contiguous buffer
+    // first.
+    shared_ptr<ProtoOutputStream> proto = std::make_shared<ProtoOutputStream>();
+    mProcessor->onDumpReport(configKey, getElapsedRealtimeNs(), getWallClockNs(),
+                             false /* include_current_bucket*/, true /* erase_data */,
+                             GET_DATA_CALLED, FAST, proto.get());
+
+    // The caller may only drain fd after this call returns, e.g. if fd is a pipe read on the
+    // calling thread, so the report is written by another thread, which gives up on a reader
+    // that stops draining fd.
+    bool startWriter;
+    {
+        std::lock_guard<std::mutex> lock(mReportWriteQueue->mMutex);
+        mReportWriteQueue->mWrites.push_back({configKey, proto, std::move(writeFd)});
+        startWriter = !mReportWriteQueue->mWriterRunning;
+        mReportWriteQueue->mWriterRunning = true;
+    }
+    if (startWriter) {
+        std::thread([queue = mReportWriteQueue] { writeQueuedReports(queue); }).detach();
+    }
+    return Status::ok();
+}
+
+Status StatsService::getDataForConfigs(const vector<int64_t>& keys, const int32_t callingUid,
+                                       vector<StatsConfigDataParcel>* output) {
+    ENFORCE_UID(AID_SYSTEM);
+
+    VLOG("StatsService::getDataForConfigs with Uid %i for %zu configs", callingUid, keys.size());
+    output->reserve(keys.size());
+    size_t totalSize = 0;
+    for (const int64_t key : keys) {
+        const ConfigKey configKey(callingUid, key);
+        // Reports are erased as they are dumped, so stop before the reply may outgrow the binder
+        // buffer. The caller fetches the remaining keys with another call. The first report is
+        // always returned, like with getData.
+        if (!output->empty() &&
+            totalSize + mProcessor->GetMetricsSize(configKey) > kMaxGetDataForConfigsBytes) {
+            break;
+        }
+        StatsConfigDataParcel parcel;
+        parcel.configKey = key;
+        mProcessor->onDumpReport(configKey, getElapsedRealtimeNs(), getWallClockNs(),
+                                 false /* include_current_bucket*/, true /* erase_data */,
+                                 GET_DATA_CALLED, FAST, &parcel.data);
+        totalSize += parcel.data.size();
+        output->push_back(std::move(parcel));
+    }
+    VLOG("StatsService::getDataForConfigs returned %zu configs, %zu bytes", output->size(),
+         totalSize);
+    return Status::ok();
+}
+
 Status StatsService::getMetadata(vector<uint8_t>* output) {
     ENFORCE_UID(AID_SYSTEM);
 
@@ -1146,6 +1364,18 @@ Status StatsService::addConfiguration(int64_t key, const vector <uint8_t>& confi
     }
 }
 
+Status StatsService::addConfigurations(const vector<StatsConfigDataParcel>& configs,
+                                       const int32_t callingUid, vector<int64_t>* output) {
+    ENFORCE_UID(AID_SYSTEM);
+
+    for (const StatsConfigDataParcel& config : configs) {
+        if (!addConfigurationChecked(callingUid, config.configKey, config.data)) {
+            output->push_back(config.configKey);
+        }
+    }
+    return Status::ok();
+}
+
 bool StatsService::addConfigurationChecked(int uid, int64_t key, const vector<uint8_t>& config) {
     ConfigKey configKey(uid, key);
     StatsdConfig cfg;
@@ -1210,6 +1440,16 @@ Status StatsService::removeConfiguration(int64_t key, const int32_t callingUid)
     return Status::ok();
 }
 
+Status StatsService::removeConfigurations(const vector<int64_t>& keys,
+                                          const int32_t callingUid) {
+    ENFORCE_UID(AID_SYSTEM);
+
+    for (const int64_t key : keys) {
+        mConfigManager->RemoveConfig(ConfigKey(callingUid, key));
+    }
+    return Status::ok();
+}
+
 Status StatsService::setBroadcastSubscriber(int64_t configId,
                                             int64_t subscriberId,
                                             const shared_ptr<IPendingIntentRef>& pir,
@@ -1255,6 +1495,40 @@ Status StatsService::registerPullAtomCallback(int32_t uid, int32_t atomTag, int6
     return Status::ok();
 }
 
+Status StatsService::restoreRegistrations(
+        const vector<PullAtomCallbackRegistrationParcel>& pullers,
+        const vector<PendingIntentRegistrationParcel>& dataFetchOperations,
+        const vector<PendingIntentRegistrationParcel>& activeConfigsChangedOperations,
+        const vector<PendingIntentRegistrationParcel>& broadcastSubscribers) {
+    ENFORCE_UID(AID_SYSTEM);
+    VLOG("StatsService::restoreRegistrations called with %zu pullers, %zu data fetch operations, "
+         "%zu active configs changed operations and %zu broadcast subscribers",
+         pullers.size(), dataFetchOperations.size(), activeConfigsChangedOperations.size(),
+         broadcastSubscribers.size());
+
+    for (const PullAtomCallbackRegistrationParcel& puller : pullers) {
+        mPullerManager->RegisterPullAtomCallback(
+                puller.uid, puller.atomTag, MillisToNano(puller.coolDownMillis),
+                MillisToNano(puller.timeoutMillis), puller.additiveFields, puller.callback);
+    }
+    for (const PendingIntentRegistrationParcel& op : dataFetchOperations) {
+        ConfigKey configKey(op.uid, op.configId);
+        mConfigManager->SetConfigReceiver(configKey, op.pendingIntentRef);
+        if (StorageManager::hasConfigMetricsReport(configKey)) {
+            mProcessor->noteOnDiskData(configKey);
+        }
+    }
+    for (const PendingIntentRegistrationParcel& op : activeConfigsChangedOperations) {
+        mConfigManager->SetActiveConfigsChangedReceiver(op.uid, op.pendingIntentRef);
+    }
+    for (const PendingIntentRegistrationParcel& subscriber : broadcastSubscribers) {
+        SubscriberReporter::getInstance().setBroadcastSubscriber(
+                ConfigKey(subscriber.uid, subscriber.configId), subscriber.subscriberId,
+                subscriber.pendingIntentRef);
+    }
+    return Status::ok();
+}
+
 Status StatsService::registerNativePullAtomCallback(
         int32_t atomTag, int64_t coolDownMillis, int64_t timeoutMillis,
         const std::vector<int32_t>& additiveFields,
@@ -20,8 +20,12 @@
 #include <aidl/android/os/BnStatsd.h>
 #include <aidl/android/os/IPendingIntentRef.h>
 #include <aidl/android/os/IPullAtomCallback.h>
+#include <aidl/android/os/PendingIntentRegistrationParcel.h>
+#include <aidl/android/os/PullAtomCallbackRegistrationParcel.h>
+#include <aidl/android/os/StatsConfigDataParcel.h>
 #include <aidl/android/util/PropertyParcel.h>
 #include <gtest/gtest_prod.h>
+#include <src/uid_data.pb.h>
 #include <utils/Looper.h>
 
 #include <mutex>
@@ -44,6 +48,9 @@ using Status = ::ndk::ScopedAStatus;
 using aidl::android::os::BnStatsd;
 using aidl::android::os::IPendingIntentRef;
 using aidl::android::os::IPullAtomCallback;
+using aidl::android::os::PendingIntentRegistrationParcel;
+using aidl::android::os::PullAtomCallbackRegistrationParcel;
+using aidl::android::os::StatsConfigDataParcel;
 using aidl::android::util::PropertyParcel;
 using ::ndk::ScopedAIBinder_DeathRecipient;
 using ::ndk::ScopedFileDescriptor;
@@ -73,10 +80,12 @@ public:
     virtual Status informAlarmForSubscriberTriggeringFired();
 
     virtual Status informAllUidData(const ScopedFileDescriptor& fd);
+    virtual Status informUidDataDelta(const vector<uint8_t>& uidData, bool* _aidl_return);
     virtual Status informOnePackage(const string& app, int32_t uid, int64_t version,
                                     const string& versionString, const string& installer,
                                     const vector<uint8_t>& certificateHash);
     virtual Status informOnePackageRemoved(const string& app, int32_t uid);
+    virtual Status informPackageChanges(const vector<uint8_t>& uidData);
     virtual Status informDeviceShutdown();
 
     /**
@@ -101,6 +110,18 @@ public:
                            const int32_t callingUid,
                            vector<uint8_t>* output) override;
 
+    /**
+     * Binder call for clients to request data for this configuration key, written to fd.
+     */
+    virtual Status getDataFd(int64_t key, const int32_t callingUid,
+                             const ScopedFileDescriptor& fd) override;
+
+    /**
+     * Binder call for clients to request data for several configuration keys at once.
+     */
+    virtual Status getDataForConfigs(const vector<int64_t>& keys, const int32_t callingUid,
+                                     vector<StatsConfigDataParcel>* output) override;
+
 
     /**
      * Binder call for clients to get metadata across all configs in statsd.
@@ -116,6 +137,13 @@ public:
                                     const vector<uint8_t>& config,
                                     const int32_t callingUid) override;
 
+    /**
+     * Binder call to let clients send several configurations at once.
+     */
+    virtual Status addConfigurations(const vector<StatsConfigDataParcel>& configs,
+                                     const int32_t callingUid,
+                                     vector<int64_t>* output) override;
+
     /**
      * Binder call to let clients register the data fetch operation for a configuration.
      */
@@ -146,6 +174,12 @@ public:
     virtual Status removeConfiguration(int64_t key,
                                        const int32_t callingUid) override;
 
+    /**
+     * Binder call to allow clients to remove several configurations at once.
+     */
+    virtual Status removeConfigurations(const vector<int64_t>& keys,
+                                        const int32_t callingUid) override;
+
     /**
      * Binder call to associate the given config's subscriberId with the given pendingIntentRef.
      */
@@ -185,6 +219,15 @@ public:
             const std::vector<int32_t>& additiveFields,
             const shared_ptr<IPullAtomCallback>& pullerCallback) override;
 
+    /**
+     * Binder call to restore a batch of pullers and PendingIntentRef registrations.
+     */
+    virtual Status restoreRegistrations(
+            const vector<PullAtomCallbackRegistrationParcel>& pullers,
+            const vector<PendingIntentRegistrationParcel>& dataFetchOperations,
+            const vector<PendingIntentRegistrationParcel>& activeConfigsChangedOperations,
+            const vector<PendingIntentRegistrationParcel>& broadcastSubscribers) override;
+
     /**
      * Binder call to unregister any existing callback for the given uid and atom.
      */
@@ -394,6 +437,22 @@ private:
      * Mutex for setting the shell subscriber
      */
     mutable mutex mShellSubscriberMutex;
+
+    /**
+     * Generation of the uid map, as last sent by StatsCompanionService. 0 until a uid map with a
+     * generation is received.
+     */
+    int64_t mUidMapGeneration = 0;
+
+    /**
+     * Applies the app_info and removed_app of a UidData delta to the uid map.
+     */
+    void applyUidDataChanges(const UidData& uidData, bool removeConfigs);
+
+    /**
+     * Mutex for applying uid map updates together with mUidMapGeneration.
+     */
+    mutex mUidMapGenerationMutex;
     std::shared_ptr<LogEventQueue> mEventQueue;
 
     std::unique_ptr<std::thread> mLogsReaderThread;
@@ -403,6 +462,29 @@ private:
     static const inline string kUidMapReceivedTag = "UID_MAP";
     static const inline string kAllPullersRegisteredTag = "PULLERS_REGISTERED";
 
+    // Size after which getDataForConfigs stops dumping reports. A quarter of the binder buffer,
+    // as report sizes are only estimated before they are dumped.
+    static const size_t kMaxGetDataForConfigsBytes = 256 * 1024;
+
+    // How long getDataFd keeps writing a report to a file descriptor that is not drained.
+    static const int64_t kGetDataFdTimeoutNs = 10 * NS_PER_SEC;
+
+    // Reports of getDataFd that may be dumped or waiting to be written at once. Further calls
+    // fail without dumping their report.
+    static constexpr int kMaxPendingReportWrites = 4;
+
+    /**
+     * Reports of getDataFd waiting to be written, in call order. Shared with the thread writing
+     * them, which runs while reports are queued.
+     */
+    struct ReportWriteQueue;
+    std::shared_ptr<ReportWriteQueue> mReportWriteQueue;
+
+    /**
+     * Writes the queued reports one at a time, until the queue is empty.
+     */
+    static void writeQueuedReports(const std::shared_ptr<ReportWriteQueue>& queue);
+
     ScopedAIBinder_DeathRecipient mStatsCompanionServiceDeathRecipient;
 
     FRIEND_TEST(StatsLogProcessorTest, TestActivationsPersistAcrossSystemServerRestart);
@@ -410,6 +492,12 @@ private:
     FRIEND_TEST(StatsServiceTest, TestAddConfig_empty);
     FRIEND_TEST(StatsServiceTest, TestAddConfig_invalid);
     FRIEND_TEST(StatsServiceTest, TestGetUidFromArgs);
+    FRIEND_TEST(StatsServiceTest, TestInformAllUidData);
+    FRIEND_TEST(StatsServiceTest, TestInformUidDataDelta);
+    FRIEND_TEST(StatsServiceTest, TestInformPackageChanges);
+    FRIEND_TEST(StatsServiceTest, TestGetDataForConfigs);
+    FRIEND_TEST(StatsServiceTest, TestGetDataFd);
+    FRIEND_TEST(StatsServiceTest, TestGetDataFdTooManyPending);
     FRIEND_TEST(PartialBucketE2eTest, TestCountMetricNoSplitOnNewApp);
     FRIEND_TEST(PartialBucketE2eTest, TestCountMetricSplitOnBoot);
     FRIEND_TEST(PartialBucketE2eTest, TestCountMetricSplitOnUpgrade);
@@ -14,15 +14,56 @@
  * limitations under the License.
  */
 
+#define STATSD_DEBUG false  // STOPSHIP if true
+#include "Log.h"
+
 #include "PullResultReceiver.h"
 
+#include <android-base/unique_fd.h>
+#include <fcntl.h>
+#include <poll.h>
+#include <unistd.h>
+
+#include <thread>
+
+#include "stats_log_util.h"
+
 namespace android {
 namespace os {
 namespace statsd {
 
+// Used until setStreamTimeoutNs is called: the maximum pull timeout.
+const int64_t kDefaultStreamTimeoutNs = 10 * NS_PER_SEC;
+
 PullResultReceiver::PullResultReceiver(
         std::function<void(int32_t, bool, const vector<StatsEventParcel>&)> pullFinishCb)
-    : pullFinishCallback(std::move(pullFinishCb)) {
+    : pullFinishCallback(std::move(pullFinishCb)), streamTimeoutNs(kDefaultStreamTimeoutNs) {
+}
+
+PullResultReceiver::PullResultReceiver(
+        std::function<void(int32_t, bool, const vector<StatsEventParcel>&)> pullFinishCb,
+        std::function<void(int32_t, bool, const vector<uint8_t>&, const vector<int32_t>&)>
+                sharedBufferPullFinishCb)
+    : pullFinishCallback(std::move(pullFinishCb)),
+      sharedBufferPullFinishCallback(std::move(sharedBufferPullFinishCb)),
+      streamTimeoutNs(kDefaultStreamTimeoutNs) {
+}
+
+PullResultReceiver::PullResultReceiver(
+        std::function<void(int32_t, bool, const vector<StatsEventParcel>&)> pullFinishCb,
+        std::function<void(int32_t, bool, const vector<uint8_t>&, const vector<int32_t>&)>
+                sharedBufferPullFinishCb,
+        std::function<void(int32_t, bool, int64_t, int64_t, const vector<uint8_t>&,
+                           const vector<int32_t>&)>
+                incrementalPullFinishCb)
+    : pullFinishCallback(std::move(pullFinishCb)),
+      sharedBufferPullFinishCallback(std::move(sharedBufferPullFinishCb)),
+      incrementalPullFinishCallback(std::move(incrementalPullFinishCb)),
+      streamTimeoutNs(kDefaultStreamTimeoutNs) {
+}
+
+void PullResultReceiver::setStreamTimeoutNs(int64_t timeoutNs) {
+    streamTimeoutNs = timeoutNs;
 }
 
 Status PullResultReceiver::pullFinished(int32_t atomTag, bool success,
@@ -31,6 +72,161 @@ Status PullResultReceiver::pullFinished(int32_t atomTag, bool success,
     return Status::ok();
 }
 
+bool PullResultReceiver::isValidEventBuffer(const vector<uint8_t>& eventBuffer,
+                                            const vector<int32_t>& eventSizes) {
+    size_t totalSize = 0;
+    for (const int32_t eventSize : eventSizes) {
+        if (eventSize < 0 || static_cast<size_t>(eventSize) > eventBuffer.size() - totalSize) {
+            return false;
+        }
+        totalSize += eventSize;
+    }
+    return totalSize == eventBuffer.size();
+}
+
+Status PullResultReceiver::pullFinishedWithSharedBuffer(int32_t atomTag, bool success,
+                                                        const vector<uint8_t>& eventBuffer,
+                                                        const vector<int32_t>& eventSizes) {
+    if (!isValidEventBuffer(eventBuffer, eventSizes)) {
+        // A truncated or malformed result is failed as a whole, rather than used as a complete
+        // result with the events that could be split.
+        ALOGW("Malformed shared buffer pull result for tag %d", atomTag);
+        if (sharedBufferPullFinishCallback) {
+            sharedBufferPullFinishCallback(atomTag, /*success=*/false, vector<uint8_t>(),
+                                           vector<int32_t>());
+        } else {
+            pullFinishCallback(atomTag, /*success=*/false, vector<StatsEventParcel>());
+        }
+        return Status::ok();
+    }
+    if (sharedBufferPullFinishCallback) {
+        sharedBufferPullFinishCallback(atomTag, success, eventBuffer, eventSizes);
+        return Status::ok();
+    }
+
+    // No shared buffer callback registered. Split the buffer into one parcel per event.
+    vector<StatsEventParcel> output;
+    output.reserve(eventSizes.size());
+    size_t offset = 0;
+    for (const int32_t eventSize : eventSizes) {
+        StatsEventParcel parcel;
+        parcel.buffer.assign(eventBuffer.begin() + offset,
+                             eventBuffer.begin() + offset + eventSize);
+        output.push_back(std::move(parcel));
+        offset += eventSize;
+    }
+    pullFinishCallback(atomTag, success, output);
+    return Status::ok();
+}
+
+// Upper bounds for a streamed pull result, so that a bad header cannot make statsd allocate
+// unbounded memory.
+const size_t kMaxStreamedPullResultBytes = 4 * 1024 * 1024;
+const int32_t kMaxStreamedPullEvents = 64 * 1024;
+
+namespace {
+
+// Reads size bytes from fd, waiting at most until deadlineNs for them to be written.
+bool readFullyWithDeadline(int fd, void* data, size_t size, int64_t deadlineNs) {
+    uint8_t* buffer = static_cast<uint8_t*>(data);
+    while (size > 0) {
+        const int64_t remainingNs = deadlineNs - getElapsedRealtimeNs();
+        if (remainingNs <= 0) {
+            return false;
+        }
+        struct pollfd pfd = {.fd = fd, .events = POLLIN};
+        const int ret = TEMP_FAILURE_RETRY(poll(&pfd, 1, NanoToMillis(remainingNs) + 1));
+        if (ret <= 0) {
+            return false;
+        }
+        // Returns what is available without blocking, or 0 once the pipe is closed.
+        const ssize_t n = TEMP_FAILURE_RETRY(read(fd, buffer, size));
+        if (n <= 0) {
+            return false;
+        }
+        buffer += n;
+        size -= n;
+    }
+    return true;
+}
+
+}  // anonymous namespace
+
+Status PullResultReceiver::pullFinishedWithFileDescriptor(int32_t atomTag, bool success,
+                                                          const ScopedFileDescriptor& fd) {
+    // The binder fd is closed when this call returns, so the reader thread uses its own.
+    int readFd = fcntl(fd.get(), F_DUPFD_CLOEXEC, 0);
+    if (readFd < 0) {
+        ALOGW("Failed to dup the streamed pull result fd for tag %d", atomTag);
+        return pullFinishedWithSharedBuffer(atomTag, /*success=*/false, {}, {});
+    }
+    const int64_t deadlineNs = getElapsedRealtimeNs() + streamTimeoutNs;
+    shared_ptr<PullResultReceiver> self = ref<PullResultReceiver>();
+    std::thread([self, atomTag, success, readFd, deadlineNs] {
+        self->readStreamedResult(atomTag, success, readFd, deadlineNs);
+    }).detach();
+    return Status::ok();
+}
+
+void PullResultReceiver::readStreamedResult(int32_t atomTag, bool success, int fd,
+                                            int64_t deadlineNs) {
+    android::base::unique_fd readFd(fd);
+    vector<uint8_t> eventBuffer;
+    vector<int32_t> eventSizes;
+
+    // Stream format: int32 number of events, int32 size of each event, then the events.
+    int32_t numEvents = 0;
+    bool valid = readFullyWithDeadline(readFd.get(), &numEvents, sizeof(numEvents), deadlineNs) &&
+                 numEvents >= 0 && numEvents <= kMaxStreamedPullEvents;
+    if (valid) {
+        eventSizes.resize(numEvents);
+        valid = readFullyWithDeadline(readFd.get(), eventSizes.data(),
+                                      eventSizes.size() * sizeof(int32_t), deadlineNs);
+    }
+    size_t totalSize = 0;
+    for (size_t i = 0; valid && i < eventSizes.size(); i++) {
+        valid = eventSizes[i] >= 0;
+        totalSize += eventSizes[i];
+        valid = valid && totalSize <= kMaxStreamedPullResultBytes;
+    }
+    if (valid) {
+        eventBuffer.resize(totalSize);
+        valid = readFullyWithDeadline(readFd.get(), eventBuffer.data(), totalSize, deadlineNs);
+    }
+
+    if (!valid) {
+        ALOGW("Failed to read streamed pull result for tag %d", atomTag);
+        eventBuffer.clear();
+        eventSizes.clear();
+    }
+    pullFinishedWithSharedBuffer(atomTag, success && valid, eventBuffer, eventSizes);
+}
+
+Status PullResultReceiver::pullFinishedIncremental(int32_t atomTag, bool success,
+                                                   int64_t baseCursor, int64_t cursor,
+                                                   const vector<uint8_t>& eventBuffer,
+                                                   const vector<int32_t>& eventSizes) {
+    if (!isValidEventBuffer(eventBuffer, eventSizes)) {
+        ALOGW("Malformed incremental pull result for tag %d", atomTag);
+        return pullFinishedWithSharedBuffer(atomTag, /*success=*/false, vector<uint8_t>(),
+                                            vector<int32_t>());
+    }
+    if (incrementalPullFinishCallback) {
+        incrementalPullFinishCallback(atomTag, success, baseCursor, cursor, eventBuffer,
+                                      eventSizes);
+        return Status::ok();
+    }
+
+    // No incremental callback registered. A result with every dimension can still be used as is,
+    // but the changed dimensions alone cannot.
+    if (baseCursor == 0) {
+        return pullFinishedWithSharedBuffer(atomTag, success, eventBuffer, eventSizes);
+    }
+    ALOGW("Unexpected incremental pull result for tag %d", atomTag);
+    pullFinishCallback(atomTag, /*success=*/false, vector<StatsEventParcel>());
+    return Status::ok();
+}
+
 PullResultReceiver::~PullResultReceiver() {
 }
 
@@ -15,13 +15,17 @@
  */
 
 #include <aidl/android/os/BnPullAtomResultReceiver.h>
+#include <android/binder_auto_utils.h>
 #include <aidl/android/util/StatsEventParcel.h>
 
+#include <atomic>
+
 using namespace std;
 
 using Status = ::ndk::ScopedAStatus;
 using aidl::android::os::BnPullAtomResultReceiver;
 using aidl::android::util::StatsEventParcel;
+using ::ndk::ScopedFileDescriptor;
 
 namespace android {
 namespace os {
@@ -31,6 +35,27 @@ class PullResultReceiver : public BnPullAtomResultReceiver {
 public:
     PullResultReceiver(function<void(int32_t, bool, const vector<StatsEventParcel>&)>
                                pullFinishCallback);
+
+    /**
+     * Creates a receiver that hands the events of pulls finished with a shared buffer directly to
+     * sharedBufferPullFinishCallback. The callback receives the buffer and the size of each event.
+     */
+    PullResultReceiver(
+            function<void(int32_t, bool, const vector<StatsEventParcel>&)> pullFinishCallback,
+            function<void(int32_t, bool, const vector<uint8_t>&, const vector<int32_t>&)>
+                    sharedBufferPullFinishCallback);
+
+    /**
+     * Creates a receiver that also accepts the results of incremental pulls. The incremental
+     * callback receives the base cursor and the cursor of the result in addition to the events.
+     */
+    PullResultReceiver(
+            function<void(int32_t, bool, const vector<StatsEventParcel>&)> pullFinishCallback,
+            function<void(int32_t, bool, const vector<uint8_t>&, const vector<int32_t>&)>
+                    sharedBufferPullFinishCallback,
+            function<void(int32_t, bool, int64_t, int64_t, const vector<uint8_t>&,
+                          const vector<int32_t>&)>
+                    incrementalPullFinishCallback);
     ~PullResultReceiver();
 
     /**
@@ -39,8 +64,56 @@ public:
     Status pullFinished(int32_t atomTag, bool success,
                         const vector<StatsEventParcel>& output) override;
 
+    /**
+     * Binder call for finishing a pull with all events stored back to back in one buffer.
+     */
+    Status pullFinishedWithSharedBuffer(int32_t atomTag, bool success,
+                                        const vector<uint8_t>& eventBuffer,
+                                        const vector<int32_t>& eventSizes) override;
+
+    /**
+     * Returns whether eventSizes split eventBuffer exactly into events, with no negative size
+     * and no bytes left over.
+     */
+    static bool isValidEventBuffer(const vector<uint8_t>& eventBuffer,
+                                   const vector<int32_t>& eventSizes);
+
+    /**
+     * Sets how long a result streamed through a pipe may take to be read, from the time
+     * pullFinishedWithFileDescriptor is called. The pull fails if it takes longer.
+     */
+    void setStreamTimeoutNs(int64_t timeoutNs);
+
+    /**
+     * Binder call for finishing a pull with the events streamed through a pipe. The pipe is read
+     * on a separate thread, so that a puller that does not write or close it cannot hold a binder
+     * thread.
+     */
+    Status pullFinishedWithFileDescriptor(int32_t atomTag, bool success,
+                                          const ScopedFileDescriptor& fd) override;
+
+    /**
+     * Binder call for finishing a pull that may only contain the dimensions that changed since
+     * the pull that returned baseCursor.
+     */
+    Status pullFinishedIncremental(int32_t atomTag, bool success, int64_t baseCursor,
+                                   int64_t cursor, const vector<uint8_t>& eventBuffer,
+                                   const vector<int32_t>& eventSizes) override;
+
 private:
+    // Reads a streamed pull result and finishes the pull with it.
+    void readStreamedResult(int32_t atomTag, bool success, int fd, int64_t deadlineNs);
+
     function<void(int32_t, bool, const vector<StatsEventParcel>&)> pullFinishCallback;
+
+    function<void(int32_t, bool, const vector<uint8_t>&, const vector<int32_t>&)>
+            sharedBufferPullFinishCallback;
+
+    function<void(int32_t, bool, int64_t, int64_t, const vector<uint8_t>&,
+                  const vector<int32_t>&)>
+            incrementalPullFinishCallback;
+
+    atomic<int64_t> streamTimeoutNs;
 };
 
 }  // namespace statsd
@@ -21,6 +21,7 @@
 #include "PullResultReceiver.h"
 #include "StatsPullerManager.h"
 #include "logd/LogEvent.h"
+#include "puller_util.h"
 #include "stats_log_util.h"
 
 #include <aidl/android/util/StatsEventParcel.h>
@@ -35,6 +36,10 @@ namespace android {
 namespace os {
 namespace statsd {
 
+// Removed dimensions are only dropped by a pull with every dimension, so at most this many
+// incremental pulls are merged in a row.
+const int kMaxIncrementalPulls = 10;
+
 StatsCallbackPuller::StatsCallbackPuller(int tagId, const shared_ptr<IPullAtomCallback>& callback,
                                          const int64_t coolDownNs, int64_t timeoutNs,
                                          const vector<int> additiveFields)
@@ -54,11 +59,41 @@ PullErrorCode StatsCallbackPuller::PullInternal(vector<shared_ptr<LogEvent>>* da
     shared_ptr<condition_variable> cv = make_shared<condition_variable>();
     shared_ptr<bool> pullFinish = make_shared<bool>(false);
     shared_ptr<bool> pullSuccess = make_shared<bool>(false);
+    shared_ptr<bool> incrementalResult = make_shared<bool>(false);
+    shared_ptr<int64_t> baseCursor = make_shared<int64_t>(0);
+    shared_ptr<int64_t> resultCursor = make_shared<int64_t>(0);
     shared_ptr<vector<shared_ptr<LogEvent>>> sharedData =
             make_shared<vector<shared_ptr<LogEvent>>>();
 
+    // Parses one encoded event of the pull result. Must be called with cv_mutex held.
+    auto parseEvent = [sharedData](const uint8_t* buffer, size_t size) {
+        shared_ptr<LogEvent> event = make_shared<LogEvent>(/*uid=*/-1, /*pid=*/-1);
+        bool valid = event->parseBuffer((uint8_t*)buffer, size);
+        if (valid) {
+            sharedData->push_back(event);
+        } else {
+            StatsdStats::getInstance().noteAtomError(event->GetTagId(), /*pull=*/true);
+        }
+    };
+
+    // Parses events stored back to back in eventBuffer. Must be called with cv_mutex held.
+    // Returns false, without parsing any event, if eventSizes do not split eventBuffer exactly.
+    auto parseEventBuffer = [parseEvent](int32_t atomTag, const vector<uint8_t>& eventBuffer,
+                                         const vector<int32_t>& eventSizes) {
+        if (!PullResultReceiver::isValidEventBuffer(eventBuffer, eventSizes)) {
+            ALOGW("Malformed shared buffer pull result for tag %d", atomTag);
+            return false;
+        }
+        size_t offset = 0;
+        for (const int32_t eventSize : eventSizes) {
+            parseEvent(eventBuffer.data() + offset, eventSize);
+            offset += eventSize;
+        }
+        return true;
+    };
+
     shared_ptr<PullResultReceiver> resultReceiver = SharedRefBase::make<PullResultReceiver>(
-            [cv_mutex, cv, pullFinish, pullSuccess, sharedData](
+            [cv_mutex, cv, pullFinish, pullSuccess, parseEvent](
                     int32_t atomTag, bool success, const vector<StatsEventParcel>& output) {
                 // This is the result of the pull, executing in a statsd binder thread.
                 // The pull could have taken a long time, and we should only modify
@@ -66,25 +101,50 @@ PullErrorCode StatsCallbackPuller::PullInternal(vector<shared_ptr<LogEvent>>* da
                 {
                     lock_guard<mutex> lk(*cv_mutex);
                     for (const StatsEventParcel& parcel: output) {
-                        shared_ptr<LogEvent> event = make_shared<LogEvent>(/*uid=*/-1, /*pid=*/-1);
-                        bool valid = event->parseBuffer((uint8_t*)parcel.buffer.data(),
-                                                        parcel.buffer.size());
-                        if (valid) {
-                            sharedData->push_back(event);
-                        } else {
-                            StatsdStats::getInstance().noteAtomError(event->GetTagId(),
-                                                                     /*pull=*/true);
-                        }
+                        parseEvent(parcel.buffer.data(), parcel.buffer.size());
                     }
                     *pullSuccess = success;
                     *pullFinish = true;
                 }
                 cv->notify_one();
+            },
+            [cv_mutex, cv, pullFinish, pullSuccess, parseEventBuffer](
+                    int32_t atomTag, bool success, const vector<uint8_t>& eventBuffer,
+                    const vector<int32_t>& eventSizes) {
+                // Same as above, but all events are stored back to back in eventBuffer.
+                {
+                    lock_guard<mutex> lk(*cv_mutex);
+                    *pullSuccess = parseEventBuffer(atomTag, eventBuffer, eventSizes) && success;
+                    *pullFinish = true;
+                }
+                cv->notify_one();
+            },
+            [cv_mutex, cv, pullFinish, pullSuccess, incrementalResult, baseCursor, resultCursor,
+             parseEventBuffer](int32_t atomTag, bool success, int64_t base, int64_t cursor,
+                               const vector<uint8_t>& eventBuffer,
+                               const vector<int32_t>& eventSizes) {
+                // Same as above, but the events may only be the dimensions that changed since
+                // the pull that returned base.
+                {
+                    lock_guard<mutex> lk(*cv_mutex);
+                    *pullSuccess = parseEventBuffer(atomTag, eventBuffer, eventSizes) && success;
+                    *incrementalResult = true;
+                    *baseCursor = base;
+                    *resultCursor = cursor;
+                    *pullFinish = true;
+                }
+                cv->notify_one();
             });
 
+    resultReceiver->setStreamTimeoutNs(mPullTimeoutNs);
+
     // Initiate the pull. This is a oneway call to a different process, except
     // in unit tests. In process calls are not oneway.
-    Status status = mCallback->onPullAtom(mTagId, resultReceiver);
+    const bool incrementalPull =
+            mIncrementalCursor != 0 && mIncrementalPullCount < kMaxIncrementalPulls;
+    Status status = incrementalPull ? mCallback->onPullAtomIncremental(mTagId, mIncrementalCursor,
+                                                                       resultReceiver)
+                                    : mCallback->onPullAtom(mTagId, resultReceiver);
     if (!status.isOk()) {
         StatsdStats::getInstance().notePullBinderCallFailed(mTagId);
         if (status.getExceptionCode() == EX_TRANSACTION_FAILED &&
@@ -106,15 +166,53 @@ PullErrorCode StatsCallbackPuller::PullInternal(vector<shared_ptr<LogEvent>>* da
             return PULL_SUCCESS;
         } else {
             // Only copy the data if we did not timeout and the pull was successful.
-            if (*pullSuccess) {
+            if (!*pullSuccess) {
+                resetIncrementalState();
+                return PULL_FAIL;
+            }
+            if (!*incrementalResult) {
+                resetIncrementalState();
                 *data = std::move(*sharedData);
+            } else if (applyIncrementalResult(*baseCursor, *resultCursor, sharedData.get())) {
+                // The merged result is kept for the next pull, so hand out copies that can be
+                // modified when isolated uids are mapped to host uids.
+                data->reserve(mIncrementalData.size());
+                for (const shared_ptr<LogEvent>& event : mIncrementalData) {
+                    data->push_back(make_shared<LogEvent>(*event));
+                }
+            } else {
+                return PULL_FAIL;
             }
             VLOG("StatsCallbackPuller::pull succeeded for %d", mTagId);
-            return *pullSuccess ? PULL_SUCCESS : PULL_FAIL;
+            return PULL_SUCCESS;
         }
     }
 }
 
+bool StatsCallbackPuller::applyIncrementalResult(int64_t baseCursor, int64_t cursor,
+                                                 vector<shared_ptr<LogEvent>>* events) {
+    if (cursor == 0 || (baseCursor != 0 && baseCursor != mIncrementalCursor)) {
+        ALOGW("Incremental pull result for tag %d does not apply to the previous pull", mTagId);
+        resetIncrementalState();
+        return false;
+    }
+    if (baseCursor == 0) {
+        mIncrementalData = std::move(*events);
+        mIncrementalPullCount = 0;
+    } else {
+        mergeIncrementalPullData(mIncrementalData, *events, mAdditiveFields);
+        mIncrementalPullCount++;
+    }
+    mIncrementalCursor = cursor;
+    return true;
+}
+
+void StatsCallbackPuller::resetIncrementalState() {
+    mIncrementalCursor = 0;
+    mIncrementalData.clear();
+    mIncrementalPullCount = 0;
+}
+
 }  // namespace statsd
 }  // namespace os
 }  // namespace android
@@ -34,11 +34,29 @@ public:
 
 private:
     PullErrorCode PullInternal(vector<std::shared_ptr<LogEvent>>* data) override;
+
+    // Merges the result of an incremental pull into mIncrementalData. Returns false if the result
+    // does not apply to mIncrementalData.
+    bool applyIncrementalResult(int64_t baseCursor, int64_t cursor,
+                                vector<std::shared_ptr<LogEvent>>* events);
+
+    void resetIncrementalState();
+
     const shared_ptr<IPullAtomCallback> mCallback;
 
+    // State of incremental pulls, only accessed by PullInternal under the lock of StatsPuller.
+    // mIncrementalCursor is the cursor of mIncrementalData, the merged result of the previous
+    // incremental pulls, or 0 if the next pull needs every dimension.
+    int64_t mIncrementalCursor = 0;
+    vector<std::shared_ptr<LogEvent>> mIncrementalData;
+    // Number of incremental pulls merged since the last pull with every dimension.
+    int mIncrementalPullCount = 0;
+
     FRIEND_TEST(StatsCallbackPullerTest, PullFail);
     FRIEND_TEST(StatsCallbackPullerTest, PullSuccess);
     FRIEND_TEST(StatsCallbackPullerTest, PullTimeout);
+    FRIEND_TEST(StatsCallbackPullerTest, IncrementalPull);
+    FRIEND_TEST(StatsCallbackPullerTest, IncrementalPullCursorMismatch);
 };
 
 }  // namespace statsd
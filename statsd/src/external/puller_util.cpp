@@ -20,6 +20,9 @@
 #include "puller_util.h"
 #include "stats_log_util.h"
 
+#include <map>
+#include <set>
+
 namespace android {
 namespace os {
 namespace statsd {
@@ -153,6 +156,48 @@ void mapAndMergeIsolatedUidsToHostUid(vector<shared_ptr<LogEvent>>& data, const
     data = mergedData;
 }
 
+namespace {
+
+// Returns the values that identify the dimension of the event: all but the additive fields.
+vector<FieldValue> getDimensionValues(const LogEvent& event, const set<int>& additiveFields) {
+    vector<FieldValue> dimensionValues;
+    for (const FieldValue& fieldValue : event.getValues()) {
+        // Repeated additive fields are treated as non-additive fields.
+        if (isPrimitiveRepeatedField(fieldValue.mField) ||
+            additiveFields.find(fieldValue.mField.getPosAtDepth(0)) == additiveFields.end()) {
+            dimensionValues.push_back(fieldValue);
+        }
+    }
+    return dimensionValues;
+}
+
+}  // anonymous namespace
+
+/**
+ * Merges the result of an incremental pull into the result of the previous pulls.
+ * changedData only contains the dimensions whose additive fields changed. Each of its events
+ * replaces the event of data with the same non-additive field values, or is appended if there is
+ * none. Events of data that are not in changedData are kept as they are.
+ */
+void mergeIncrementalPullData(vector<shared_ptr<LogEvent>>& data,
+                              const vector<shared_ptr<LogEvent>>& changedData,
+                              const vector<int>& additiveFieldsVec) {
+    const set<int> additiveFields(additiveFieldsVec.begin(), additiveFieldsVec.end());
+    map<vector<FieldValue>, size_t> dimensionIndices;
+    for (size_t i = 0; i < data.size(); i++) {
+        dimensionIndices[getDimensionValues(*data[i], additiveFields)] = i;
+    }
+    for (const shared_ptr<LogEvent>& event : changedData) {
+        const auto [it, inserted] = dimensionIndices.emplace(
+                getDimensionValues(*event, additiveFields), data.size());
+        if (inserted) {
+            data.push_back(event);
+        } else {
+            data[it->second] = event;
+        }
+    }
+}
+
 }  // namespace statsd
 }  // namespace os
 }  // namespace android
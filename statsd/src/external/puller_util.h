@@ -29,6 +29,10 @@ void mapAndMergeIsolatedUidsToHostUid(std::vector<std::shared_ptr<LogEvent>>& da
                                       const sp<UidMap>& uidMap, int tagId,
                                       const vector<int>& additiveFieldsVec);
 
+void mergeIncrementalPullData(std::vector<std::shared_ptr<LogEvent>>& data,
+                              const std::vector<std::shared_ptr<LogEvent>>& changedData,
+                              const vector<int>& additiveFieldsVec);
+
 }  // namespace statsd
 }  // namespace os
 }  // namespace android
@@ -14,8 +14,11 @@
 
 #include "StatsService.h"
 #include "config/ConfigKey.h"
+#include "src/stats_log.pb.h"
 #include "src/statsd_config.pb.h"
 
+#include <android-base/file.h>
+#include <android/binder_auto_utils.h>
 #include <android/binder_interface_utils.h>
 #include <gmock/gmock.h>
 #include <gtest/gtest.h>
@@ -30,10 +33,32 @@ namespace os {
 namespace statsd {
 
 using android::util::ProtoOutputStream;
+using ::ndk::ScopedFileDescriptor;
 using ::ndk::SharedRefBase;
 
 #ifdef __ANDROID__
 
+namespace {
+
+// Returns the read end of a pipe holding the serialized uidData.
+ScopedFileDescriptor makeUidDataPipe(const UidData& uidData) {
+    int fds[2];
+    EXPECT_EQ(0, pipe(fds));
+    const string serialized = uidData.SerializeAsString();
+    EXPECT_TRUE(android::base::WriteFully(fds[1], serialized.data(), serialized.size()));
+    close(fds[1]);
+    return ScopedFileDescriptor(fds[0]);
+}
+
+void addAppInfo(UidData* uidData, int32_t uid, const string& packageName, int64_t version) {
+    ApplicationInfo* appInfo = uidData->add_app_info();
+    appInfo->set_uid(uid);
+    appInfo->set_package_name(packageName);
+    appInfo->set_version(version);
+}
+
+}  // anonymous namespace
+
 TEST(StatsServiceTest, TestAddConfig_simple) {
     shared_ptr<StatsService> service = SharedRefBase::make<StatsService>(nullptr, nullptr);
     StatsdConfig config;
@@ -95,6 +120,191 @@ TEST(StatsServiceTest, TestGetUidFromArgs) {
     EXPECT_FALSE(service->getUidFromArgs(args, 2, uid));
 }
 
+TEST(StatsServiceTest, TestInformAllUidData) {
+    shared_ptr<StatsService> service = SharedRefBase::make<StatsService>(nullptr, nullptr);
+    UidData uidData;
+    addAppInfo(&uidData, 1000, "app1", 1);
+
+    // A uid map without a generation was cut short by the sender.
+    EXPECT_FALSE(service->informAllUidData(makeUidDataPipe(uidData)).isOk());
+    EXPECT_FALSE(service->mUidMap->hasApp(1000, "app1"));
+    EXPECT_EQ(0, service->mUidMapGeneration);
+
+    uidData.set_generation(1);
+    EXPECT_TRUE(service->informAllUidData(makeUidDataPipe(uidData)).isOk());
+    EXPECT_TRUE(service->mUidMap->hasApp(1000, "app1"));
+    EXPECT_EQ(1, service->mUidMapGeneration);
+}
+
+TEST(StatsServiceTest, TestInformUidDataDelta) {
+    shared_ptr<StatsService> service = SharedRefBase::make<StatsService>(nullptr, nullptr);
+    UidData delta;
+    addAppInfo(&delta, 1002, "app2", 1);
+    delta.set_generation(2);
+    delta.set_base_generation(1);
+    const string serializedDelta = delta.SerializeAsString();
+    bool applied = true;
+
+    // Without a full uid map, statsd is at generation 0 and rejects every delta.
+    EXPECT_TRUE(service->informUidDataDelta({serializedDelta.begin(), serializedDelta.end()},
+                                            &applied)
+                        .isOk());
+    EXPECT_FALSE(applied);
+    EXPECT_FALSE(service->mUidMap->hasApp(1002, "app2"));
+
+    UidData uidData;
+    addAppInfo(&uidData, 1000, "app0", 1);
+    addAppInfo(&uidData, 1001, "app1", 1);
+    uidData.set_generation(1);
+    ASSERT_TRUE(service->informAllUidData(makeUidDataPipe(uidData)).isOk());
+
+    // A delta from a base generation statsd does not have is rejected, and leaves the map as is.
+    UidData mismatchedDelta = delta;
+    mismatchedDelta.set_base_generation(3);
+    const string serializedMismatchedDelta = mismatchedDelta.SerializeAsString();
+    applied = true;
+    EXPECT_TRUE(service->informUidDataDelta(
+                               {serializedMismatchedDelta.begin(), serializedMismatchedDelta.end()},
+                               &applied)
+                        .isOk());
+    EXPECT_FALSE(applied);
+    EXPECT_FALSE(service->mUidMap->hasApp(1002, "app2"));
+    EXPECT_EQ(1, service->mUidMapGeneration);
+
+    // A delta from the current generation applies its additions, updates and removals.
+    addAppInfo(&delta, 1001, "app1", 2);
+    ApplicationInfo* removedApp = delta.add_removed_app();
+    removedApp->set_uid(1000);
+    removedApp->set_package_name("app0");
+    const string serializedFullDelta = delta.SerializeAsString();
+    applied = false;
+    EXPECT_TRUE(service->informUidDataDelta(
+                               {serializedFullDelta.begin(), serializedFullDelta.end()}, &applied)
+                        .isOk());
+    EXPECT_TRUE(applied);
+    EXPECT_EQ(2, service->mUidMapGeneration);
+    EXPECT_FALSE(service->mUidMap->hasApp(1000, "app0"));
+    EXPECT_TRUE(service->mUidMap->hasApp(1002, "app2"));
+    EXPECT_EQ(2, service->mUidMap->getAppVersion(1001, "app1"));
+}
+
+TEST(StatsServiceTest, TestInformPackageChanges) {
+    shared_ptr<StatsService> service = SharedRefBase::make<StatsService>(nullptr, nullptr);
+    StatsdConfig config;
+    config.set_id(12345);
+    const string serializedConfig = config.SerializeAsString();
+    ASSERT_TRUE(service->addConfigurationChecked(1000, 12345,
+                                                 {serializedConfig.begin(),
+                                                  serializedConfig.end()}));
+    ASSERT_TRUE(service->addConfigurationChecked(1001, 12345,
+                                                 {serializedConfig.begin(),
+                                                  serializedConfig.end()}));
+
+    UidData uidData;
+    addAppInfo(&uidData, 1000, "app0", 1);
+    addAppInfo(&uidData, 1001, "app1", 1);
+    uidData.set_generation(1);
+    ASSERT_TRUE(service->informAllUidData(makeUidDataPipe(uidData)).isOk());
+
+    UidData changes;
+    addAppInfo(&changes, 1001, "app1", 2);
+    addAppInfo(&changes, 1002, "app2", 1);
+    ApplicationInfo* removedApp = changes.add_removed_app();
+    removedApp->set_uid(1000);
+    removedApp->set_package_name("app0");
+    const string serializedChanges = changes.SerializeAsString();
+    EXPECT_TRUE(
+            service->informPackageChanges({serializedChanges.begin(), serializedChanges.end()})
+                    .isOk());
+
+    EXPECT_FALSE(service->mUidMap->hasApp(1000, "app0"));
+    EXPECT_EQ(2, service->mUidMap->getAppVersion(1001, "app1"));
+    EXPECT_TRUE(service->mUidMap->hasApp(1002, "app2"));
+
+    // Like with informOnePackageRemoved, the configs of removed apps are removed too.
+    const vector<ConfigKey> configKeys = service->mConfigManager->GetAllConfigKeys();
+    EXPECT_THAT(configKeys, Not(Contains(ConfigKey(1000, 12345))));
+    EXPECT_THAT(configKeys, Contains(ConfigKey(1001, 12345)));
+
+    // Package changes do not change the uid map generation.
+    EXPECT_EQ(1, service->mUidMapGeneration);
+
+    service->removeConfiguration(12345, 1001);
+}
+
+TEST(StatsServiceTest, TestGetDataForConfigs) {
+    shared_ptr<StatsService> service = SharedRefBase::make<StatsService>(nullptr, nullptr);
+    const int32_t uid = 123;
+    StatsdConfig config;
+    config.set_id(12345);
+    string serialized = config.SerializeAsString();
+    ASSERT_TRUE(service->addConfigurationChecked(uid, 12345,
+                                                 {serialized.begin(), serialized.end()}));
+    config.set_id(54321);
+    serialized = config.SerializeAsString();
+    ASSERT_TRUE(service->addConfigurationChecked(uid, 54321,
+                                                 {serialized.begin(), serialized.end()}));
+
+    vector<StatsConfigDataParcel> output;
+    EXPECT_TRUE(service->getDataForConfigs({54321, 12345}, uid, &output).isOk());
+
+    // Small reports all fit in one reply, in the order of the keys.
+    ASSERT_EQ(2, output.size());
+    EXPECT_EQ(54321, output[0].configKey);
+    EXPECT_EQ(12345, output[1].configKey);
+    for (const StatsConfigDataParcel& parcel : output) {
+        ConfigMetricsReportList reports;
+        ASSERT_TRUE(reports.ParseFromArray(parcel.data.data(), parcel.data.size()));
+        EXPECT_EQ(uid, reports.config_key().uid());
+        EXPECT_EQ(parcel.configKey, reports.config_key().id());
+    }
+}
+
+TEST(StatsServiceTest, TestGetDataFd) {
+    shared_ptr<StatsService> service = SharedRefBase::make<StatsService>(nullptr, nullptr);
+    const int32_t uid = 123;
+    StatsdConfig config;
+    config.set_id(12345);
+    const string serialized = config.SerializeAsString();
+    ASSERT_TRUE(service->addConfigurationChecked(uid, 12345,
+                                                 {serialized.begin(), serialized.end()}));
+
+    int fds[2];
+    ASSERT_EQ(0, pipe(fds));
+    android::base::unique_fd readFd(fds[0]);
+    {
+        // The call returns before the report is read, and statsd keeps its own copy of the
+        // write end.
+        ScopedFileDescriptor writeFd(fds[1]);
+        EXPECT_TRUE(service->getDataFd(12345, uid, writeFd).isOk());
+    }
+
+    // End of file is reached once statsd closed its copy of the write end.
+    string data;
+    ASSERT_TRUE(android::base::ReadFdToString(readFd.get(), &data));
+    ConfigMetricsReportList reports;
+    ASSERT_TRUE(reports.ParseFromString(data));
+    EXPECT_EQ(uid, reports.config_key().uid());
+    EXPECT_EQ(12345, reports.config_key().id());
+}
+
+TEST(StatsServiceTest, TestGetDataFdTooManyPending) {
+    shared_ptr<StatsService> service = SharedRefBase::make<StatsService>(nullptr, nullptr);
+    const int32_t uid = 123;
+    int fds[2];
+    ASSERT_EQ(0, pipe(fds));
+    android::base::unique_fd readFd(fds[0]);
+    ScopedFileDescriptor writeFd(fds[1]);
+
+    // Calls fail without dumping their report while too many reports wait to be written.
+    service->mReportWriteQueue->mNumPending = StatsService::kMaxPendingReportWrites;
+    EXPECT_FALSE(service->getDataFd(12345, uid, writeFd).isOk());
+    EXPECT_EQ(StatsService::kMaxPendingReportWrites, service->mReportWriteQueue->mNumPending);
+
+    service->mReportWriteQueue->mNumPending = 0;
+    EXPECT_TRUE(service->getDataFd(12345, uid, writeFd).isOk());
+}
+
 #else
 GTEST_LOG_(INFO) << "This test does nothing.\n";
 #endif
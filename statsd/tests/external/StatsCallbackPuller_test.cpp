@@ -13,16 +13,21 @@
 // limitations under the License.
 
 #include "src/external/StatsCallbackPuller.h"
+#include "src/external/PullResultReceiver.h"
 
 #include <aidl/android/os/BnPullAtomCallback.h>
 #include <aidl/android/os/IPullAtomResultReceiver.h>
 #include <aidl/android/util/StatsEventParcel.h>
+#include <android-base/file.h>
+#include <android/binder_auto_utils.h>
 #include <android/binder_interface_utils.h>
 #include <gmock/gmock.h>
 #include <gtest/gtest.h>
 #include <stdio.h>
 
 #include <chrono>
+#include <condition_variable>
+#include <mutex>
 #include <thread>
 #include <vector>
 
@@ -42,6 +47,7 @@ using Status = ::ndk::ScopedAStatus;
 using aidl::android::os::BnPullAtomCallback;
 using aidl::android::os::IPullAtomResultReceiver;
 using aidl::android::util::StatsEventParcel;
+using ::ndk::ScopedFileDescriptor;
 using ::ndk::SharedRefBase;
 using std::make_shared;
 using std::shared_ptr;
@@ -52,7 +58,18 @@ using testing::Contains;
 namespace {
 int pullTagId = -12;
 bool pullSuccess;
+bool useSharedBuffer;
+bool useFileDescriptor;
+bool useIncremental;
 vector<int64_t> values;
+// Dimension of each value, for incremental pulls.
+vector<int32_t> keys;
+// Cursor received by the last incremental pull request, or -1 if there was none.
+int64_t requestedCursor;
+// Cursor returned by incremental pulls.
+int64_t resultCursor;
+// Base cursor returned by incremental pulls instead of the requested cursor, or -1.
+int64_t baseCursorOverride;
 int64_t pullDelayNs;
 int64_t pullTimeoutNs;
 int64_t pullCoolDownNs;
@@ -66,7 +83,89 @@ AStatsEvent* createSimpleEvent(int64_t value) {
     return event;
 }
 
+AStatsEvent* createKeyedEvent(int32_t key, int64_t value) {
+    AStatsEvent* event = AStatsEvent_obtain();
+    AStatsEvent_setAtomId(event, pullTagId);
+    AStatsEvent_writeInt32(event, key);
+    AStatsEvent_writeInt64(event, value);
+    AStatsEvent_build(event);
+    return event;
+}
+
+void executeIncrementalPull(const shared_ptr<IPullAtomResultReceiver>& resultReceiver,
+                            int64_t cursor) {
+    vector<uint8_t> eventBuffer;
+    vector<int32_t> eventSizes;
+    for (int i = 0; i < values.size(); i++) {
+        AStatsEvent* event = createKeyedEvent(keys[i], values[i]);
+        size_t size;
+        uint8_t* buffer = AStatsEvent_getBuffer(event, &size);
+        eventBuffer.insert(eventBuffer.end(), buffer, buffer + size);
+        eventSizes.push_back(size);
+        AStatsEvent_release(event);
+    }
+
+    const int64_t baseCursor = baseCursorOverride >= 0 ? baseCursorOverride : cursor;
+    resultReceiver->pullFinishedIncremental(pullTagId, pullSuccess, baseCursor, resultCursor,
+                                            eventBuffer, eventSizes);
+}
+
+void executeSharedBufferPull(const shared_ptr<IPullAtomResultReceiver>& resultReceiver) {
+    // Store stats_events back to back in one buffer.
+    vector<uint8_t> eventBuffer;
+    vector<int32_t> eventSizes;
+    for (int i = 0; i < values.size(); i++) {
+        AStatsEvent* event = createSimpleEvent(values[i]);
+        size_t size;
+        uint8_t* buffer = AStatsEvent_getBuffer(event, &size);
+        eventBuffer.insert(eventBuffer.end(), buffer, buffer + size);
+        eventSizes.push_back(size);
+        AStatsEvent_release(event);
+    }
+
+    sleep_for(std::chrono::nanoseconds(pullDelayNs));
+    resultReceiver->pullFinishedWithSharedBuffer(pullTagId, pullSuccess, eventBuffer, eventSizes);
+}
+
+void executeFileDescriptorPull(const shared_ptr<IPullAtomResultReceiver>& resultReceiver) {
+    // Write the number of events, the size of each event, then the events.
+    vector<int32_t> header;
+    vector<uint8_t> eventBuffer;
+    header.push_back(values.size());
+    for (int i = 0; i < values.size(); i++) {
+        AStatsEvent* event = createSimpleEvent(values[i]);
+        size_t size;
+        uint8_t* buffer = AStatsEvent_getBuffer(event, &size);
+        eventBuffer.insert(eventBuffer.end(), buffer, buffer + size);
+        header.push_back(size);
+        AStatsEvent_release(event);
+    }
+
+    int fds[2];
+    ASSERT_EQ(0, pipe(fds));
+    ASSERT_TRUE(android::base::WriteFully(fds[1], header.data(), header.size() * sizeof(int32_t)));
+    ASSERT_TRUE(android::base::WriteFully(fds[1], eventBuffer.data(), eventBuffer.size()));
+    close(fds[1]);
+
+    sleep_for(std::chrono::nanoseconds(pullDelayNs));
+    resultReceiver->pullFinishedWithFileDescriptor(pullTagId, pullSuccess,
+                                                   ScopedFileDescriptor(fds[0]));
+}
+
 void executePull(const shared_ptr<IPullAtomResultReceiver>& resultReceiver) {
+    if (useIncremental) {
+        executeIncrementalPull(resultReceiver, /*cursor=*/0);
+        return;
+    }
+    if (useFileDescriptor) {
+        executeFileDescriptorPull(resultReceiver);
+        return;
+    }
+    if (useSharedBuffer) {
+        executeSharedBufferPull(resultReceiver);
+        return;
+    }
+
     // Convert stats_events into StatsEventParcels.
     vector<StatsEventParcel> parcels;
     for (int i = 0; i < values.size(); i++) {
@@ -94,6 +193,14 @@ public:
         pullThread = std::thread(executePull, resultReceiver);
         return Status::ok();
     }
+
+    Status onPullAtomIncremental(
+            int atomTag, int64_t cursor,
+            const shared_ptr<IPullAtomResultReceiver>& resultReceiver) override {
+        requestedCursor = cursor;
+        pullThread = std::thread(executeIncrementalPull, resultReceiver, cursor);
+        return Status::ok();
+    }
 };
 
 class StatsCallbackPullerTest : public ::testing::Test {
@@ -103,12 +210,47 @@ public:
 
     void SetUp() override {
         pullSuccess = false;
+        useSharedBuffer = false;
+        useFileDescriptor = false;
+        useIncremental = false;
         pullDelayNs = 0;
         values.clear();
+        keys.clear();
+        requestedCursor = -1;
+        resultCursor = 0;
+        baseCursorOverride = -1;
         pullTimeoutNs = 10000000000LL;  // 10 seconds.
         pullCoolDownNs = 1000000000;    // 1 second.
     }
 
+    // Result of a pull finished through a PullResultReceiver, set on its reader thread.
+    struct StreamedPullResult {
+        std::mutex m;
+        std::condition_variable cv;
+        bool finished = false;
+        bool success = false;
+    };
+
+    static shared_ptr<PullResultReceiver> makeReceiver(
+            const shared_ptr<StreamedPullResult>& result) {
+        return SharedRefBase::make<PullResultReceiver>(
+                [](int32_t, bool, const vector<StatsEventParcel>&) {},
+                [result](int32_t, bool success, const vector<uint8_t>&, const vector<int32_t>&) {
+                    {
+                        std::lock_guard<std::mutex> lk(result->m);
+                        result->success = success;
+                        result->finished = true;
+                    }
+                    result->cv.notify_one();
+                });
+    }
+
+    static bool waitForResult(const shared_ptr<StreamedPullResult>& result) {
+        std::unique_lock<std::mutex> lk(result->m);
+        return result->cv.wait_for(lk, std::chrono::seconds(1),
+                                   [result] { return result->finished; });
+    }
+
     void TearDown() override {
         if (pullThread.joinable()) {
             pullThread.join();
@@ -139,6 +281,115 @@ TEST_F(StatsCallbackPullerTest, PullSuccess) {
     EXPECT_EQ(value, dataHolder[0]->getValues()[0].mValue.int_value);
 }
 
+TEST_F(StatsCallbackPullerTest, PullSuccessWithSharedBuffer) {
+    shared_ptr<FakePullAtomCallback> cb = SharedRefBase::make<FakePullAtomCallback>();
+    pullSuccess = true;
+    useSharedBuffer = true;
+    values.push_back(43);
+    values.push_back(44);
+    values.push_back(45);
+
+    StatsCallbackPuller puller(pullTagId, cb, pullCoolDownNs, pullTimeoutNs, {});
+
+    vector<std::shared_ptr<LogEvent>> dataHolder;
+    EXPECT_EQ(puller.PullInternal(&dataHolder), PULL_SUCCESS);
+
+    ASSERT_EQ(3, dataHolder.size());
+    for (int i = 0; i < values.size(); i++) {
+        EXPECT_EQ(pullTagId, dataHolder[i]->GetTagId());
+        ASSERT_EQ(1, dataHolder[i]->size());
+        EXPECT_EQ(values[i], dataHolder[i]->getValues()[0].mValue.int_value);
+    }
+}
+
+TEST_F(StatsCallbackPullerTest, PullSuccessWithFileDescriptor) {
+    shared_ptr<FakePullAtomCallback> cb = SharedRefBase::make<FakePullAtomCallback>();
+    pullSuccess = true;
+    useFileDescriptor = true;
+    values.push_back(43);
+    values.push_back(44);
+    values.push_back(45);
+
+    StatsCallbackPuller puller(pullTagId, cb, pullCoolDownNs, pullTimeoutNs, {});
+
+    vector<std::shared_ptr<LogEvent>> dataHolder;
+    EXPECT_EQ(puller.PullInternal(&dataHolder), PULL_SUCCESS);
+
+    ASSERT_EQ(3, dataHolder.size());
+    for (int i = 0; i < values.size(); i++) {
+        EXPECT_EQ(pullTagId, dataHolder[i]->GetTagId());
+        ASSERT_EQ(1, dataHolder[i]->size());
+        EXPECT_EQ(values[i], dataHolder[i]->getValues()[0].mValue.int_value);
+    }
+}
+
+TEST_F(StatsCallbackPullerTest, StreamedResultNotWrittenInTime) {
+    shared_ptr<StreamedPullResult> result = make_shared<StreamedPullResult>();
+    shared_ptr<PullResultReceiver> receiver = makeReceiver(result);
+    receiver->setStreamTimeoutNs(MillisToNano(10));
+
+    // The write end stays open without data, like a stuck puller. The binder call must not wait
+    // for it.
+    int fds[2];
+    ASSERT_EQ(0, pipe(fds));
+    EXPECT_TRUE(receiver->pullFinishedWithFileDescriptor(pullTagId, /*success=*/true,
+                                                         ScopedFileDescriptor(fds[0]))
+                        .isOk());
+
+    ASSERT_TRUE(waitForResult(result));
+    EXPECT_FALSE(result->success);
+    close(fds[1]);
+}
+
+TEST_F(StatsCallbackPullerTest, StreamedResultTooLarge) {
+    shared_ptr<StreamedPullResult> result = make_shared<StreamedPullResult>();
+    shared_ptr<PullResultReceiver> receiver = makeReceiver(result);
+
+    // A header announcing more events than allowed fails the pull without reading them.
+    int fds[2];
+    ASSERT_EQ(0, pipe(fds));
+    const int32_t numEvents = 1024 * 1024;
+    ASSERT_TRUE(android::base::WriteFully(fds[1], &numEvents, sizeof(numEvents)));
+    close(fds[1]);
+    EXPECT_TRUE(receiver->pullFinishedWithFileDescriptor(pullTagId, /*success=*/true,
+                                                         ScopedFileDescriptor(fds[0]))
+                        .isOk());
+
+    ASSERT_TRUE(waitForResult(result));
+    EXPECT_FALSE(result->success);
+}
+
+TEST_F(StatsCallbackPullerTest, SharedBufferSizesMismatch) {
+    AStatsEvent* event = createSimpleEvent(43);
+    size_t size;
+    uint8_t* buffer = AStatsEvent_getBuffer(event, &size);
+    const vector<uint8_t> eventBuffer(buffer, buffer + size);
+    AStatsEvent_release(event);
+
+    // Sizes that overrun the buffer, leave bytes over, or are negative fail the pull.
+    const vector<vector<int32_t>> badEventSizes = {{static_cast<int32_t>(size) + 1},
+                                                   {static_cast<int32_t>(size) - 1},
+                                                   {static_cast<int32_t>(size), 1},
+                                                   {-1, static_cast<int32_t>(size) + 1}};
+    for (const vector<int32_t>& eventSizes : badEventSizes) {
+        shared_ptr<StreamedPullResult> result = make_shared<StreamedPullResult>();
+        shared_ptr<PullResultReceiver> receiver = makeReceiver(result);
+        EXPECT_TRUE(receiver->pullFinishedWithSharedBuffer(pullTagId, /*success=*/true,
+                                                           eventBuffer, eventSizes)
+                            .isOk());
+        ASSERT_TRUE(waitForResult(result));
+        EXPECT_FALSE(result->success);
+    }
+
+    shared_ptr<StreamedPullResult> result = make_shared<StreamedPullResult>();
+    shared_ptr<PullResultReceiver> receiver = makeReceiver(result);
+    EXPECT_TRUE(receiver->pullFinishedWithSharedBuffer(pullTagId, /*success=*/true, eventBuffer,
+                                                       {static_cast<int32_t>(size)})
+                        .isOk());
+    ASSERT_TRUE(waitForResult(result));
+    EXPECT_TRUE(result->success);
+}
+
 TEST_F(StatsCallbackPullerTest, PullFail) {
     shared_ptr<FakePullAtomCallback> cb = SharedRefBase::make<FakePullAtomCallback>();
     pullSuccess = false;
@@ -180,6 +431,75 @@ TEST_F(StatsCallbackPullerTest, PullTimeout) {
     ASSERT_EQ(0, dataHolder.size());
 }
 
+TEST_F(StatsCallbackPullerTest, IncrementalPull) {
+    shared_ptr<FakePullAtomCallback> cb = SharedRefBase::make<FakePullAtomCallback>();
+    pullSuccess = true;
+    useIncremental = true;
+    keys = {1, 2};
+    values = {10, 20};
+    resultCursor = 100;
+
+    StatsCallbackPuller puller(pullTagId, cb, pullCoolDownNs, pullTimeoutNs, {2});
+
+    // The first pull asks for every dimension.
+    vector<shared_ptr<LogEvent>> dataHolder;
+    EXPECT_EQ(puller.PullInternal(&dataHolder), PULL_SUCCESS);
+    pullThread.join();
+    EXPECT_EQ(-1, requestedCursor);
+    ASSERT_EQ(2, dataHolder.size());
+    EXPECT_EQ(100, puller.mIncrementalCursor);
+
+    // The second pull only returns the changed and the new dimensions.
+    keys = {2, 3};
+    values = {25, 30};
+    resultCursor = 200;
+    dataHolder.clear();
+    EXPECT_EQ(puller.PullInternal(&dataHolder), PULL_SUCCESS);
+    pullThread.join();
+    EXPECT_EQ(100, requestedCursor);
+    EXPECT_EQ(200, puller.mIncrementalCursor);
+
+    ASSERT_EQ(3, dataHolder.size());
+    const vector<int64_t> expectedValues = {10, 25, 30};
+    for (int i = 0; i < dataHolder.size(); i++) {
+        ASSERT_EQ(2, dataHolder[i]->size());
+        EXPECT_EQ(i + 1, dataHolder[i]->getValues()[0].mValue.int_value);
+        EXPECT_EQ(expectedValues[i], dataHolder[i]->getValues()[1].mValue.long_value);
+    }
+}
+
+TEST_F(StatsCallbackPullerTest, IncrementalPullCursorMismatch) {
+    shared_ptr<FakePullAtomCallback> cb = SharedRefBase::make<FakePullAtomCallback>();
+    pullSuccess = true;
+    useIncremental = true;
+    keys = {1};
+    values = {10};
+    resultCursor = 100;
+
+    StatsCallbackPuller puller(pullTagId, cb, pullCoolDownNs, pullTimeoutNs, {2});
+
+    vector<shared_ptr<LogEvent>> dataHolder;
+    EXPECT_EQ(puller.PullInternal(&dataHolder), PULL_SUCCESS);
+    pullThread.join();
+
+    // A result computed against another cursor cannot be merged.
+    baseCursorOverride = 50;
+    resultCursor = 200;
+    dataHolder.clear();
+    EXPECT_EQ(puller.PullInternal(&dataHolder), PULL_FAIL);
+    pullThread.join();
+    ASSERT_EQ(0, dataHolder.size());
+    EXPECT_EQ(0, puller.mIncrementalCursor);
+
+    // The next pull asks for every dimension again.
+    requestedCursor = -1;
+    baseCursorOverride = -1;
+    EXPECT_EQ(puller.PullInternal(&dataHolder), PULL_SUCCESS);
+    pullThread.join();
+    EXPECT_EQ(-1, requestedCursor);
+    ASSERT_EQ(1, dataHolder.size());
+}
+
 // Register a puller and ensure that the timeout logic works.
 TEST_F(StatsCallbackPullerTest, RegisterAndTimeout) {
     shared_ptr<FakePullAtomCallback> cb = SharedRefBase::make<FakePullAtomCallback>();
@@ -71,6 +71,11 @@ public:
         resultReceiver->pullFinished(atomTag, /*success*/ true, parcels);
         return Status::ok();
     }
+    Status onPullAtomIncremental(
+            int atomTag, int64_t cursor,
+            const shared_ptr<IPullAtomResultReceiver>& resultReceiver) override {
+        return onPullAtom(atomTag, resultReceiver);
+    }
     int32_t mUid;
 };
 
@@ -641,6 +641,49 @@ TEST(PullerUtilTest, MultipleRepeatedFields) {
     EXPECT_EQ(3, actualFieldValues->at(5).mValue.int_value);
 }
 
+TEST(PullerUtilTest, MergeIncrementalPullData) {
+    vector<shared_ptr<LogEvent>> data = {
+            // 20->22->21
+            makeUidLogEvent(uidAtomTagId, timestamp, hostUid, hostNonAdditiveData,
+                            hostAdditiveData),
+
+            // 20->32->21
+            makeUidLogEvent(uidAtomTagId, timestamp, hostUid, isolatedNonAdditiveData,
+                            hostAdditiveData),
+    };
+    const vector<shared_ptr<LogEvent>> changedData = {
+            // 20->32->31
+            makeUidLogEvent(uidAtomTagId, timestamp, hostUid, isolatedNonAdditiveData,
+                            isolatedAdditiveData),
+
+            // 2000->22->31
+            makeUidLogEvent(uidAtomTagId, timestamp, hostUid2, hostNonAdditiveData,
+                            isolatedAdditiveData),
+    };
+
+    mergeIncrementalPullData(data, changedData, additiveFields);
+
+    ASSERT_EQ(3, (int)data.size());
+
+    const vector<FieldValue>* actualFieldValues = &data[0]->getValues();
+    ASSERT_EQ(3, actualFieldValues->size());
+    EXPECT_EQ(hostUid, actualFieldValues->at(0).mValue.int_value);
+    EXPECT_EQ(hostNonAdditiveData, actualFieldValues->at(1).mValue.int_value);
+    EXPECT_EQ(hostAdditiveData, actualFieldValues->at(2).mValue.int_value);
+
+    actualFieldValues = &data[1]->getValues();
+    ASSERT_EQ(3, actualFieldValues->size());
+    EXPECT_EQ(hostUid, actualFieldValues->at(0).mValue.int_value);
+    EXPECT_EQ(isolatedNonAdditiveData, actualFieldValues->at(1).mValue.int_value);
+    EXPECT_EQ(isolatedAdditiveData, actualFieldValues->at(2).mValue.int_value);
+
+    actualFieldValues = &data[2]->getValues();
+    ASSERT_EQ(3, actualFieldValues->size());
+    EXPECT_EQ(hostUid2, actualFieldValues->at(0).mValue.int_value);
+    EXPECT_EQ(hostNonAdditiveData, actualFieldValues->at(1).mValue.int_value);
+    EXPECT_EQ(isolatedAdditiveData, actualFieldValues->at(2).mValue.int_value);
+}
+
 }  // namespace statsd
 }  // namespace os
 }  // namespace android
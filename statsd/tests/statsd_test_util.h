@@ -553,6 +553,11 @@ public:
     int pullNum = 1;
     Status onPullAtom(int atomTag,
                       const shared_ptr<IPullAtomResultReceiver>& resultReceiver) override;
+    Status onPullAtomIncremental(
+            int atomTag, int64_t cursor,
+            const shared_ptr<IPullAtomResultReceiver>& resultReceiver) override {
+        return onPullAtom(atomTag, resultReceiver);
+    }
 };
 
 template <typename T>